@@ -0,0 +1,84 @@
+package com.games.malcolm.graphgame;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Loading grid arrangements with crossing diagonals edge by edge and all at once. Both have
+ * to end up with the same mesh, the bulk load should be much faster.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BulkLoadBenchmark {
+    private static final String TAG = "BulkLoadBenchmark";
+    private static final int SPACING = 100;
+
+    @Test
+    public void addGraphEdges_fasterThanOneByOne() throws Exception {
+        for (int n : new int[] {8, 16}) {
+            load(n, false); // warm up
+            load(n, true);
+            long start = System.nanoTime();
+            MeshGraph oneByOne = load(n, false);
+            long middle = System.nanoTime();
+            MeshGraph bulk = load(n, true);
+            long end = System.nanoTime();
+            oneByOne.validateGraphFull();
+            bulk.validateGraphFull();
+            assertEquals(oneByOne.mVertices.size(), bulk.mVertices.size());
+            assertEquals(oneByOne.mEdges.size(), bulk.mEdges.size());
+            assertEquals(oneByOne.mFaces.size(), bulk.mFaces.size());
+            Log.i(TAG, String.format("%d edges: one by one=%.1fms bulk=%.1fms",
+                    bulk.mEdges.size() / 2, (middle - start) / 1e6, (end - middle) / 1e6));
+        }
+    }
+
+    // An n x n grid of vertices joined to their neighbours, with both diagonals of every
+    // other cell so they cross in the middle of it
+    private static MeshGraph load(int n, boolean bulk) {
+        int[] xs = new int[n * n];
+        int[] ys = new int[n * n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                xs[i * n + j] = SPACING * (i + 1);
+                ys[i * n + j] = SPACING * (j + 1);
+            }
+        }
+        int[] from = new int[4 * n * n];
+        int[] to = new int[4 * n * n];
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                int v = i * n + j;
+                if (i + 1 < n) {
+                    from[m] = v;
+                    to[m++] = v + n;
+                }
+                if (j + 1 < n) {
+                    from[m] = v;
+                    to[m++] = v + 1;
+                }
+                if (i + 1 < n && j + 1 < n && (i + j) % 2 == 0) {
+                    from[m] = v;
+                    to[m++] = v + n + 1;
+                    from[m] = v + 1;
+                    to[m++] = v + n;
+                }
+            }
+        }
+        if (bulk) {
+            return new MeshGraph(xs, ys, Arrays.copyOf(from, m), Arrays.copyOf(to, m));
+        }
+        MeshGraph mesh = new MeshGraph();
+        int[] handles = new int[n * n];
+        for (int i = 0; i < n * n; i++) handles[i] = mesh.addGraphVertex(xs[i], ys[i]);
+        for (int k = 0; k < m; k++) mesh.addGraphEdge(handles[from[k]], handles[to[k]]);
+        return mesh;
+    }
+}
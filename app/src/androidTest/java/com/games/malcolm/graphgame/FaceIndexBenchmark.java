@@ -0,0 +1,105 @@
+package com.games.malcolm.graphgame;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Point location in a grid with thousands of faces, for far jumps that go through the face
+ * index and local steps that walk over from the last face, against a scan over every face
+ * like faceBetweenPoints used to do.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FaceIndexBenchmark {
+    private static final String TAG = "FaceIndexBenchmark";
+    private static final int GRID = 50; // (GRID - 1)^2 inner faces
+    private static final int SPACING = 100;
+    private static final int QUERIES = 20000;
+
+    @Test
+    public void faceBetweenPoints_matchesScan() throws Exception {
+        Random random = new Random(3);
+        Point[] queries = new Point[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            queries[i] = inCell(random, random.nextInt(GRID + 1), random.nextInt(GRID + 1));
+        }
+        run("random", queries);
+    }
+    @Test
+    public void faceBetweenPoints_localQueries() throws Exception {
+        // Like a drag, each query is in the same cell as the last one or a neighbour
+        Random random = new Random(4);
+        Point[] queries = new Point[QUERIES];
+        int i = GRID / 2;
+        int j = GRID / 2;
+        for (int k = 0; k < QUERIES; k++) {
+            i = Math.max(0, Math.min(GRID, i + random.nextInt(3) - 1));
+            j = Math.max(0, Math.min(GRID, j + random.nextInt(3) - 1));
+            queries[k] = inCell(random, i, j);
+        }
+        run("local", queries);
+    }
+
+    private static void run(String name, Point[] queries) {
+        MeshGraph mesh = grid();
+        assertEquals((GRID - 1) * (GRID - 1) + 1, mesh.mFaces.size());
+        // Warm up, then time both
+        int sink = 0;
+        for (Point q : queries) {
+            sink += mesh.faceBetweenPoints(q).mId - scan(mesh, q).mId;
+        }
+        long start = System.nanoTime();
+        Mesh.Face[] found = new Mesh.Face[queries.length];
+        for (int i = 0; i < queries.length; i++) {
+            found[i] = mesh.faceBetweenPoints(queries[i]);
+            sink += found[i].mId;
+        }
+        long locateNs = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < queries.length; i++) {
+            Mesh.Face f = scan(mesh, queries[i]);
+            assertSame(f, found[i]);
+            sink -= f.mId;
+        }
+        long scanNs = System.nanoTime() - start;
+        Log.i(TAG, String.format("%s: faces=%d locate=%.1fus scan=%.1fus (%d)", name,
+                mesh.mFaces.size(), locateNs / 1000.0 / queries.length,
+                scanNs / 1000.0 / queries.length, sink));
+    }
+    // A point strictly inside cell (i, j), away from the grid lines where the answer is up
+    // to rounding
+    private static Point inCell(Random random, int i, int j) {
+        return new Point(SPACING * i + 1 + random.nextInt(SPACING - 2),
+                SPACING * j + 1 + random.nextInt(SPACING - 2));
+    }
+    private static MeshGraph grid() {
+        MeshGraph mesh = new MeshGraph();
+        int[] handles = new int[GRID * GRID];
+        for (int i = 0; i < GRID; i++) {
+            for (int j = 0; j < GRID; j++) {
+                handles[i * GRID + j] = mesh.addGraphVertex(SPACING * (i + 1), SPACING * (j + 1));
+            }
+        }
+        for (int i = 0; i < GRID; i++) {
+            for (int j = 0; j < GRID; j++) {
+                int v = handles[i * GRID + j];
+                if (i + 1 < GRID) mesh.addGraphEdge(v, handles[(i + 1) * GRID + j]);
+                if (j + 1 < GRID) mesh.addGraphEdge(v, handles[i * GRID + j + 1]);
+            }
+        }
+        return mesh;
+    }
+    private static Mesh.Face scan(Mesh mesh, Point p) {
+        for (Mesh.Face f : mesh.mFaces) {
+            if (f.mId == 0) continue;
+            if (f.containsPoint(p)) return f;
+        }
+        return mesh.mFaces.get(0);
+    }
+}
@@ -0,0 +1,106 @@
+package com.games.malcolm.graphgame;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Loading a Graph level of about 7000 edges edge by edge, and all at once with 1 to N tasks
+ * finding the crossings, N being the number of cores. Every load has to find the same
+ * crossings on every vertex.
+ */
+@RunWith(AndroidJUnit4.class)
+public class GraphLoadBenchmark {
+    private static final String TAG = "GraphLoadBenchmark";
+    private static final int SPACING = 100;
+    private static final int N = 48;
+    private static final int REPEATS = 3;
+
+    @Test
+    public void addGraphEdges_scalesWithTasks() throws Exception {
+        int[] from = new int[4 * N * N];
+        int[] to = new int[4 * N * N];
+        int m = edges(from, to);
+        from = Arrays.copyOf(from, m);
+        to = Arrays.copyOf(to, m);
+
+        Graph reference = vertices();
+        long start = System.nanoTime();
+        for (int k = 0; k < m; k++) reference.addGraphEdge(from[k], to[k]);
+        Log.i(TAG, String.format("%d edges one by one: %.1fms", m,
+                (System.nanoTime() - start) / 1e6));
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int tasks = 1; tasks <= cores; tasks++) {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, tasks - 1));
+            try {
+                vertices().addGraphEdges(from, to, executor, tasks); // warm up
+                long best = Long.MAX_VALUE;
+                Graph graph = null;
+                for (int i = 0; i < REPEATS; i++) {
+                    graph = vertices();
+                    start = System.nanoTime();
+                    graph.addGraphEdges(from, to, executor, tasks);
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+                assertSameCrossings(reference, graph);
+                Log.i(TAG, String.format("%d edges, %d tasks: %.1fms", m, tasks, best / 1e6));
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+
+    private static void assertSameCrossings(Graph expected, Graph actual) {
+        assertEquals(expected.crossingCount(), actual.crossingCount());
+        for (int v = 0; v < N * N; v++) {
+            assertEquals(expected.vertexCrossings(v), actual.vertexCrossings(v));
+        }
+    }
+
+    // An N x N grid of vertices. A new graph hands out the same handles every time, so the
+    // edges can refer to vertex i by handle i.
+    private static Graph vertices() {
+        Graph graph = new Graph();
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < N; j++) {
+                int handle = graph.addGraphVertex(SPACING * (i + 1), SPACING * (j + 1));
+                assertEquals(i * N + j, handle);
+            }
+        }
+        return graph;
+    }
+    // Every vertex joined to its neighbours in the grid, with both diagonals of every other
+    // cell so they cross in the middle of it. Returns how many edges there are.
+    private static int edges(int[] from, int[] to) {
+        int m = 0;
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < N; j++) {
+                int v = i * N + j;
+                if (i + 1 < N) {
+                    from[m] = v;
+                    to[m++] = v + N;
+                }
+                if (j + 1 < N) {
+                    from[m] = v;
+                    to[m++] = v + 1;
+                }
+                if (i + 1 < N && j + 1 < N && (i + j) % 2 == 0) {
+                    from[m] = v;
+                    to[m++] = v + N + 1;
+                    from[m] = v + 1;
+                    to[m++] = v + N;
+                }
+            }
+        }
+        return m;
+    }
+}
@@ -0,0 +1,68 @@
+package com.games.malcolm.graphgame;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Adding short edges to grid arrangements of about 250 and 1000 edges. Each new edge crosses
+ * one existing edge, so with the segment grid its cost shouldn't depend on how many edges
+ * are already there.
+ */
+@RunWith(AndroidJUnit4.class)
+public class IntersectionBenchmark {
+    private static final String TAG = "IntersectionBenchmark";
+    private static final int SPACING = 100;
+
+    @Test
+    public void addGraphEdge_costIndependentOfArrangementSize() throws Exception {
+        addEdges(12); // 264 edges
+        double small = addEdges(12);
+        addEdges(23); // 1012 edges
+        double large = addEdges(23);
+        Log.i(TAG, String.format("per edge: 264 edges=%.1fus 1012 edges=%.1fus", small, large));
+    }
+
+    // Build a grid arrangement with n x n vertices, then join the centres of neighbouring
+    // cells along every other row. Returns the time per added edge in microseconds.
+    private static double addEdges(int n) {
+        MeshGraph mesh = new MeshGraph();
+        int[] grid = new int[n * n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                grid[i * n + j] = mesh.addGraphVertex(SPACING * (i + 1), SPACING * (j + 1));
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                int v = grid[i * n + j];
+                if (i + 1 < n) mesh.addGraphEdge(v, grid[(i + 1) * n + j]);
+                if (j + 1 < n) mesh.addGraphEdge(v, grid[i * n + j + 1]);
+            }
+        }
+        int cells = n - 1;
+        int[] centres = new int[cells * cells];
+        for (int i = 0; i < cells; i++) {
+            for (int j = 0; j < cells; j += 2) {
+                centres[i * cells + j] = mesh.addGraphVertex(SPACING * (i + 1) + SPACING / 2,
+                        SPACING * (j + 1) + SPACING / 2);
+            }
+        }
+        int edges = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i + 1 < cells; i++) {
+            for (int j = 0; j < cells; j += 2) {
+                mesh.addGraphEdge(centres[i * cells + j], centres[(i + 1) * cells + j]);
+                edges++;
+            }
+        }
+        long ns = System.nanoTime() - start;
+        mesh.validateGraphFull();
+        assertTrue(edges > 0);
+        return ns / 1000.0 / edges;
+    }
+}
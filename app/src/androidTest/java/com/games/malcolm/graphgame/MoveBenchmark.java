@@ -0,0 +1,68 @@
+package com.games.malcolm.graphgame;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Dragging one vertex of grid arrangements of about 250 and 1000 edges in small steps. Only
+ * the edges of the dragged vertex are rebuilt, so a step shouldn't get slower as the
+ * arrangement grows.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MoveBenchmark {
+    private static final String TAG = "MoveBenchmark";
+    private static final int SPACING = 100;
+    private static final int STEPS = 40;
+
+    @Test
+    public void moveGraphVertex_costIndependentOfArrangementSize() throws Exception {
+        dragSteps(12); // 264 edges
+        double small = dragSteps(12);
+        dragSteps(23); // 1012 edges
+        double large = dragSteps(23);
+        Log.i(TAG, String.format("per step: 264 edges=%.1fus 1012 edges=%.1fus", small, large));
+    }
+
+    // Build a grid arrangement with n x n vertices plus one vertex in the middle of a cell,
+    // joined to four vertices around it so its edges cross the cell's sides, then drag it back
+    // and forth inside the cell. Returns the time per step in microseconds.
+    private static double dragSteps(int n) {
+        MeshGraph mesh = new MeshGraph();
+        int[] grid = new int[n * n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                grid[i * n + j] = mesh.addGraphVertex(SPACING * (i + 1), SPACING * (j + 1));
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                int v = grid[i * n + j];
+                if (i + 1 < n) mesh.addGraphEdge(v, grid[(i + 1) * n + j]);
+                if (j + 1 < n) mesh.addGraphEdge(v, grid[i * n + j + 1]);
+            }
+        }
+        int c = n / 2;
+        int x = SPACING * (c + 1) + SPACING / 2;
+        int y = SPACING * (c + 1) + SPACING / 2;
+        int dragged = mesh.addGraphVertex(x, y);
+        assertTrue(dragged >= 0);
+        mesh.addGraphEdge(dragged, grid[(c - 1) * n + c]);
+        mesh.addGraphEdge(dragged, grid[c * n + c + 2]);
+        mesh.addGraphEdge(dragged, grid[(c + 2) * n + c + 1]);
+        mesh.addGraphEdge(dragged, grid[(c + 1) * n + c - 1]);
+        long start = System.nanoTime();
+        for (int step = 0; step < STEPS; step++) {
+            int dx = (step % 10 < 5 ? 1 : -1) * SPACING / 8;
+            x += dx;
+            mesh.moveGraphVertex(dragged, x, y);
+        }
+        long ns = System.nanoTime() - start;
+        mesh.validateGraphFull();
+        return ns / 1000.0 / STEPS;
+    }
+}
@@ -0,0 +1,109 @@
+package com.games.malcolm.graphgame;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Bulk loading a grid arrangement of about 7000 edges with 1 to N tasks, N being the number
+ * of cores. Every run has to give the same mesh as the run with one task.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ParallelBuildBenchmark {
+    private static final String TAG = "ParallelBuildBenchmark";
+    private static final int SPACING = 100;
+    private static final int N = 48;
+    private static final int REPEATS = 3;
+
+    @Test
+    public void addGraphEdges_scalesWithTasks() throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        MeshGraph reference = null;
+        for (int tasks = 1; tasks <= cores; tasks++) {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, tasks - 1));
+            try {
+                addEdges(vertices(), executor, tasks); // warm up
+                long best = Long.MAX_VALUE;
+                MeshGraph mesh = null;
+                for (int i = 0; i < REPEATS; i++) {
+                    mesh = vertices();
+                    best = Math.min(best, addEdges(mesh, executor, tasks));
+                }
+                if (reference == null) {
+                    reference = mesh;
+                    reference.validateGraphFull();
+                } else {
+                    assertSameMesh(reference, mesh);
+                }
+                Log.i(TAG, String.format("%d edges, %d tasks: %.1fms",
+                        mesh.mEdges.size() / 2, tasks, best / 1e6));
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+
+    private static void assertSameMesh(MeshGraph expected, MeshGraph actual) {
+        assertEquals(expected.mVertices.size(), actual.mVertices.size());
+        assertEquals(expected.mEdges.size(), actual.mEdges.size());
+        assertEquals(expected.mFaces.size(), actual.mFaces.size());
+        // Crossing vertices come in the order the intersections were made
+        for (int i = 0; i < expected.mVertices.size(); i++) {
+            Mesh.Vertex p = expected.mVertices.get(i);
+            Mesh.Vertex q = actual.mVertices.get(i);
+            assertTrue(p.x() == q.x() && p.y() == q.y());
+        }
+    }
+
+    // An N x N grid of vertices. A new mesh hands out the same handles every time, so the
+    // edges can refer to vertex i by handle i.
+    private static MeshGraph vertices() {
+        MeshGraph mesh = new MeshGraph();
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < N; j++) {
+                int handle = mesh.addGraphVertex(SPACING * (i + 1), SPACING * (j + 1));
+                assertEquals(i * N + j, handle);
+            }
+        }
+        return mesh;
+    }
+    // Join every vertex to its neighbours in the grid, with both diagonals of every other
+    // cell so they cross in the middle of it. Returns the time adding them took, in ns.
+    private static long addEdges(MeshGraph mesh, ExecutorService executor, int tasks) {
+        int[] from = new int[4 * N * N];
+        int[] to = new int[4 * N * N];
+        int m = 0;
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < N; j++) {
+                int v = i * N + j;
+                if (i + 1 < N) {
+                    from[m] = v;
+                    to[m++] = v + N;
+                }
+                if (j + 1 < N) {
+                    from[m] = v;
+                    to[m++] = v + 1;
+                }
+                if (i + 1 < N && j + 1 < N && (i + j) % 2 == 0) {
+                    from[m] = v;
+                    to[m++] = v + N + 1;
+                    from[m] = v + 1;
+                    to[m++] = v + N;
+                }
+            }
+        }
+        from = Arrays.copyOf(from, m);
+        to = Arrays.copyOf(to, m);
+        long start = System.nanoTime();
+        mesh.addGraphEdges(from, to, executor, tasks);
+        return System.nanoTime() - start;
+    }
+}
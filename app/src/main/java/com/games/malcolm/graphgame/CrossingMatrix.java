@@ -0,0 +1,149 @@
+package com.games.malcolm.graphgame;
+
+import java.util.Arrays;
+
+/**
+ *
+ * Which edges cross which, as one bitset row per edge over the dense edge ids, with the total
+ * number of crossing pairs kept up to date. Whether there are any crossings at all is known in
+ * O(1), and the crossings of one edge are a popcount of its row. Each edge also knows its two
+ * end vertices, by stable handle, and the crossings on the edges of every vertex are kept up to
+ * date with set and clearRow, so they are known in O(1) too.
+ *
+ * The owner mirrors its dense edge list: addEdge when it appends an edge, removeEdge when it
+ * moves its last edge into a freed id, and set and clearRow as crossings come and go.
+ */
+
+public class CrossingMatrix {
+    private static final int MIN_WORDS = 1;
+
+    private long[][] mRows = new long[0][];
+    private int mWords = MIN_WORDS; // length of every row
+    private int mSize; // edges
+    private int mCount; // crossing pairs
+    private int[] mEnds = new int[0]; // vertex handles at both ends of each edge
+    private int[] mVertexCrossings = new int[0]; // by vertex handle
+
+    public void clear() {
+        for (int i = 0; i < mSize; i++) Arrays.fill(mRows[i], 0);
+        Arrays.fill(mVertexCrossings, 0);
+        mSize = 0;
+        mCount = 0;
+    }
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Number of crossing pairs.
+     */
+    public int count() {
+        return mCount;
+    }
+    public boolean crosses(int i, int j) {
+        return (mRows[i][j >>> 6] & (1L << j)) != 0;
+    }
+    /**
+     * Number of edges that edge i crosses.
+     */
+    public int crossingsOf(int i) {
+        long[] row = mRows[i];
+        int n = 0;
+        for (int w = 0; w < mWords; w++) n += Long.bitCount(row[w]);
+        return n;
+    }
+    /**
+     * Number of crossings on the edges of the vertex with this handle. Edges of the same vertex
+     * never cross each other, so no crossing is counted twice.
+     */
+    public int crossingsOfVertex(int handle) {
+        return handle < mVertexCrossings.length ? mVertexCrossings[handle] : 0;
+    }
+
+    /**
+     * Append an edge between the vertices with handles end1 and end2 that crosses nothing yet,
+     * and return its id.
+     */
+    public int addEdge(int end1, int end2) {
+        if (mSize == mWords * 64) grow();
+        if (mSize == mRows.length) {
+            mRows = Arrays.copyOf(mRows, Math.max(4, 2 * mRows.length));
+            mEnds = Arrays.copyOf(mEnds, 2 * mRows.length);
+        }
+        if (mRows[mSize] == null) mRows[mSize] = new long[mWords];
+        int most = Math.max(end1, end2);
+        if (most >= mVertexCrossings.length) {
+            mVertexCrossings = Arrays.copyOf(mVertexCrossings,
+                    Math.max(most + 1, 2 * mVertexCrossings.length));
+        }
+        mEnds[2 * mSize] = end1;
+        mEnds[2 * mSize + 1] = end2;
+        return mSize++;
+    }
+    /**
+     * Take out edge id and its crossings. The last edge takes its id.
+     */
+    public void removeEdge(int id) {
+        clearRow(id);
+        int last = --mSize;
+        if (id == last) return;
+        long[] row = mRows[last];
+        for (int w = 0; w < mWords; w++) {
+            for (long bits = row[w]; bits != 0; bits &= bits - 1) {
+                int j = (w << 6) + Long.numberOfTrailingZeros(bits);
+                clearBit(j, last);
+                setBit(j, id);
+            }
+        }
+        mRows[last] = mRows[id]; // all zero, ready for the next addEdge
+        mRows[id] = row;
+        mEnds[2 * id] = mEnds[2 * last];
+        mEnds[2 * id + 1] = mEnds[2 * last + 1];
+    }
+
+    /**
+     * Record that edges i and j cross. Nothing changes if that is known already.
+     */
+    public void set(int i, int j) {
+        if (crosses(i, j)) return;
+        setBit(i, j);
+        setBit(j, i);
+        countCrossing(i, j, 1);
+        mCount++;
+    }
+    /**
+     * Forget every crossing of edge i.
+     */
+    public void clearRow(int i) {
+        long[] row = mRows[i];
+        for (int w = 0; w < mWords; w++) {
+            for (long bits = row[w]; bits != 0; bits &= bits - 1) {
+                int j = (w << 6) + Long.numberOfTrailingZeros(bits);
+                clearBit(j, i);
+                countCrossing(i, j, -1);
+                mCount--;
+            }
+            row[w] = 0;
+        }
+    }
+
+    private void countCrossing(int i, int j, int delta) {
+        mVertexCrossings[mEnds[2 * i]] += delta;
+        mVertexCrossings[mEnds[2 * i + 1]] += delta;
+        mVertexCrossings[mEnds[2 * j]] += delta;
+        mVertexCrossings[mEnds[2 * j + 1]] += delta;
+    }
+    private void setBit(int i, int j) {
+        mRows[i][j >>> 6] |= 1L << j;
+    }
+    private void clearBit(int i, int j) {
+        mRows[i][j >>> 6] &= ~(1L << j);
+    }
+    // Twice the columns, for every row that has been handed out
+    private void grow() {
+        mWords *= 2;
+        for (int i = 0; i < mRows.length; i++) {
+            if (mRows[i] != null) mRows[i] = Arrays.copyOf(mRows[i], mWords);
+        }
+    }
+}
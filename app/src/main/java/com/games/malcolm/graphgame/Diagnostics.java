@@ -0,0 +1,37 @@
+package com.games.malcolm.graphgame;
+
+/**
+ *
+ * Message formatting for the validators. Validators are handed the element they were reached
+ * from and a label instead of a prebuilt prefix string, so nothing is formatted unless a check
+ * actually fails.
+ */
+
+final class Diagnostics {
+    private Diagnostics() {}
+
+    /**
+     * The prefix for a failure found while validating something reached from context, e.g.
+     * "HalfEdge: [...] opposite: ". Empty if there is no context.
+     */
+    static String prefix(Object context, String label) {
+        if (context == null) return "";
+        return String.valueOf(context) + label;
+    }
+
+    /**
+     * Header followed by each of the first n items on its own line.
+     */
+    static String dump(String header, Iterable<?> items, int n) {
+        StringBuilder sb = new StringBuilder(header);
+        int i = 0;
+        for (Object item : items) {
+            if (i++ == n) break;
+            sb.append('\n').append(item);
+        }
+        return sb.toString();
+    }
+    static String dump(String header, Iterable<?> items) {
+        return dump(header, items, Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,187 @@
+package com.games.malcolm.graphgame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ *
+ * Packed R-tree over the bounding boxes of the faces of a Mesh, so point location only has to
+ * run the ray crossing test on the few faces whose box contains the point.
+ *
+ * The tree is bulk loaded with Sort-Tile-Recursive packing and isn't updated in place. A face
+ * whose box changes drops out of the tree and waits in a short pending list that is scanned
+ * linearly, and the tree is rebuilt once enough faces are pending or gone. The mesh keeps
+ * every face box a superset of its loop and calls update whenever it grows one.
+ */
+
+class FaceIndex {
+    private static final int NODE_SIZE = 8;
+    private static final int MIN_PENDING = 32;
+
+    // Faces in leaf order. A leaf is only current while its face's mLeaf still points at it.
+    private Mesh.Face[] mLeaves = new Mesh.Face[0];
+    // minX, minY, maxX, maxY of every node, the leaves first and then each level above
+    private float[] mBoxes = new float[0];
+    private int[] mLevelStart = new int[1]; // first node of each level, then the node count
+    private int mLevelCount;
+    private int mStale; // leaves whose face changed or was removed since the last build
+    private final ArrayList<Mesh.Face> mPending = new ArrayList<>();
+    private final ArrayList<Mesh.Face> mResult = new ArrayList<>();
+    private int[] mStack = new int[0];
+
+    public void clear() {
+        for (Mesh.Face f : mPending) f.mPending = -1;
+        for (int i = 0; i < levelSize(0); i++) {
+            if (mLeaves[i].mLeaf == i) mLeaves[i].mLeaf = -1;
+        }
+        mPending.clear();
+        mLeaves = new Mesh.Face[0];
+        mLevelCount = 0;
+        mStale = 0;
+    }
+
+    /**
+     * The box of f changed, or f is new.
+     */
+    public void update(Mesh.Face f) {
+        if (f.mLeaf >= 0) {
+            f.mLeaf = -1;
+            mStale++;
+        }
+        if (f.mPending < 0) {
+            f.mPending = mPending.size();
+            mPending.add(f);
+        }
+    }
+    public void remove(Mesh.Face f) {
+        if (f.mLeaf >= 0) {
+            f.mLeaf = -1;
+            mStale++;
+        }
+        if (f.mPending >= 0) {
+            Mesh.Face last = mPending.remove(mPending.size() - 1);
+            if (last != f) {
+                last.mPending = f.mPending;
+                mPending.set(last.mPending, last);
+            }
+            f.mPending = -1;
+        }
+    }
+
+    /**
+     * Faces whose box contains (x, y), in no particular order. The list is reused by the next
+     * call.
+     */
+    public ArrayList<Mesh.Face> facesAt(float x, float y) {
+        if (mPending.size() + mStale > Math.max(MIN_PENDING, levelSize(0) / 4)) build();
+        mResult.clear();
+        for (Mesh.Face f : mPending) {
+            if (f.mMinX <= x && x <= f.mMaxX && f.mMinY <= y && y <= f.mMaxY) mResult.add(f);
+        }
+        if (mLevelCount == 0) return mResult;
+        int sp = 0;
+        mStack[sp++] = mLevelCount - 1;
+        mStack[sp++] = 0;
+        while (sp > 0) {
+            int index = mStack[--sp];
+            int level = mStack[--sp];
+            int b = 4 * (mLevelStart[level] + index);
+            if (x < mBoxes[b] || y < mBoxes[b + 1] || x > mBoxes[b + 2] || y > mBoxes[b + 3])
+                continue;
+            if (level == 0) {
+                if (mLeaves[index].mLeaf == index) mResult.add(mLeaves[index]);
+                continue;
+            }
+            int end = Math.min((index + 1) * NODE_SIZE, levelSize(level - 1));
+            for (int child = index * NODE_SIZE; child < end; child++) {
+                mStack[sp++] = level - 1;
+                mStack[sp++] = child;
+            }
+        }
+        return mResult;
+    }
+
+    private int levelSize(int level) {
+        if (level >= mLevelCount) return 0;
+        return mLevelStart[level + 1] - mLevelStart[level];
+    }
+
+    private void build() {
+        // Everything that is still current, from the old tree and the pending list
+        int n = 0;
+        Mesh.Face[] faces = new Mesh.Face[levelSize(0) - mStale + mPending.size()];
+        for (int i = 0; i < levelSize(0); i++) {
+            if (mLeaves[i].mLeaf == i) faces[n++] = mLeaves[i];
+        }
+        for (Mesh.Face f : mPending) {
+            f.mPending = -1;
+            faces[n++] = f;
+        }
+        mPending.clear();
+        mStale = 0;
+
+        // Sort into vertical slices by x, then each slice by y, so every run of NODE_SIZE
+        // leaves is a compact tile
+        Arrays.sort(faces, 0, n, new OrderByCenterX());
+        int leafNodes = (n + NODE_SIZE - 1) / NODE_SIZE;
+        int sliceSize = NODE_SIZE * (int) Math.ceil(Math.sqrt(leafNodes));
+        for (int lo = 0; lo < n; lo += sliceSize) {
+            Arrays.sort(faces, lo, Math.min(lo + sliceSize, n), new OrderByCenterY());
+        }
+        mLeaves = faces;
+
+        mLevelCount = 0;
+        int total = 0;
+        for (int size = n; size > 0; size = size == 1 ? 0 : (size + NODE_SIZE - 1) / NODE_SIZE) {
+            if (mLevelCount + 1 >= mLevelStart.length) {
+                mLevelStart = Arrays.copyOf(mLevelStart, 2 * mLevelStart.length);
+            }
+            mLevelStart[mLevelCount++] = total;
+            total += size;
+        }
+        mLevelStart[mLevelCount] = total;
+        if (mBoxes.length < 4 * total) mBoxes = new float[4 * total];
+        if (mStack.length < 2 * NODE_SIZE * mLevelCount + 2) {
+            mStack = new int[2 * NODE_SIZE * mLevelCount + 2];
+        }
+
+        for (int i = 0; i < n; i++) {
+            Mesh.Face f = faces[i];
+            f.mLeaf = i;
+            mBoxes[4 * i] = f.mMinX;
+            mBoxes[4 * i + 1] = f.mMinY;
+            mBoxes[4 * i + 2] = f.mMaxX;
+            mBoxes[4 * i + 3] = f.mMaxY;
+        }
+        for (int level = 1; level < mLevelCount; level++) {
+            int childCount = levelSize(level - 1);
+            for (int i = 0; i < levelSize(level); i++) {
+                int b = 4 * (mLevelStart[level] + i);
+                mBoxes[b] = mBoxes[b + 1] = Float.POSITIVE_INFINITY;
+                mBoxes[b + 2] = mBoxes[b + 3] = Float.NEGATIVE_INFINITY;
+                int end = Math.min((i + 1) * NODE_SIZE, childCount);
+                for (int child = i * NODE_SIZE; child < end; child++) {
+                    int c = 4 * (mLevelStart[level - 1] + child);
+                    mBoxes[b] = Math.min(mBoxes[b], mBoxes[c]);
+                    mBoxes[b + 1] = Math.min(mBoxes[b + 1], mBoxes[c + 1]);
+                    mBoxes[b + 2] = Math.max(mBoxes[b + 2], mBoxes[c + 2]);
+                    mBoxes[b + 3] = Math.max(mBoxes[b + 3], mBoxes[c + 3]);
+                }
+            }
+        }
+    }
+
+    private static class OrderByCenterX implements Comparator<Mesh.Face> {
+        @Override
+        public int compare(Mesh.Face f1, Mesh.Face f2) {
+            return Float.compare(f1.mMinX + f1.mMaxX, f2.mMinX + f2.mMaxX);
+        }
+    }
+    private static class OrderByCenterY implements Comparator<Mesh.Face> {
+        @Override
+        public int compare(Mesh.Face f1, Mesh.Face f2) {
+            return Float.compare(f1.mMinY + f1.mMaxY, f2.mMinY + f2.mMaxY);
+        }
+    }
+}
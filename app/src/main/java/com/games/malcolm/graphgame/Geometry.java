@@ -0,0 +1,67 @@
+package com.games.malcolm.graphgame;
+
+/**
+ *
+ * Plain vector math on raw float coordinates. Nothing here allocates, so hit tests, point
+ * location and the validators can run over every vertex and edge without making garbage.
+ * Point keeps its methods for callers that already hold Points, and they come here too.
+ *
+ * Crossing and orientation tests, which have to be exact, are in Predicates.
+ */
+
+public final class Geometry {
+    private Geometry() {}
+
+    public static float dot(float ax, float ay, float bx, float by) {
+        return ax * bx + ay * by;
+    }
+    public static float cross(float ax, float ay, float bx, float by) {
+        return ax * by - ay * bx;
+    }
+    public static float distanceSquared(float ax, float ay, float bx, float by) {
+        float dx = ax - bx;
+        float dy = ay - by;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Whether (px, py) is strictly within radius of (cx, cy).
+     */
+    public static boolean isInCircle(float px, float py, float cx, float cy, float radius) {
+        return distanceSquared(px, py, cx, cy) < radius * radius;
+    }
+    /**
+     * Whether two points are close enough to count as the same one, which is what
+     * Point.equals means: less than half a unit apart on both axes.
+     */
+    public static boolean samePoint(float ax, float ay, float bx, float by) {
+        return Math.abs(ax - bx) < 0.5 && Math.abs(ay - by) < 0.5;
+    }
+
+    /**
+     * Counterclockwise angle in degrees from the direction of (x1, y1) to the direction of
+     * (x2, y2), both seen from (cx, cy). In [0, 360), and 0 if either point is on the center.
+     */
+    public static float angleBetween(float cx, float cy, float x1, float y1, float x2, float y2) {
+        float ax = x1 - cx;
+        float ay = y1 - cy;
+        float bx = x2 - cx;
+        float by = y2 - cy;
+        float la = (float) Math.sqrt(dot(ax, ay, ax, ay));
+        float lb = (float) Math.sqrt(dot(bx, by, bx, by));
+        if (la == 0 || lb == 0) return 0.0F;
+        float cos = dot(ax, ay, bx, by) / (la * lb);
+        if (cos > 1.0F) cos = 1.0F;
+        else if (cos < -1.0F) cos = -1.0F;
+        float angle = (float) (Math.acos(cos) * 180 / Math.PI);
+        return cross(ax, ay, bx, by) < 0 ? 360 - angle : angle;
+    }
+    // Monotone stand-in for atan2: increases counterclockwise from the x axis, in [0, 4).
+    // Orders directions exactly like their angles do, without any trig.
+    public static float pseudoAngle(float dx, float dy) {
+        float sum = Math.abs(dx) + Math.abs(dy);
+        if (sum == 0) return 0;
+        float p = dx / sum; // -1 to 1
+        return dy >= 0 ? 1 - p : 3 + p;
+    }
+}
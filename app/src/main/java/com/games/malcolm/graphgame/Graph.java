@@ -11,6 +11,7 @@ import android.util.Log;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.concurrent.Executor;
 
 /**
  * Created by Thomas on 3/4/17.
@@ -20,6 +21,7 @@ public class Graph {
 
     private final static int VERTEX_RADIUS = 30;
     private final static int EDGE_WIDTH = 10;
+    private final static int TOUCH_RADIUS = VERTEX_RADIUS * 2; // see pointOnAnyVertex
 //    private int mClearingTouches = 3;
 
     private static final String TAG = "Graph";
@@ -30,6 +32,7 @@ public class Graph {
         private int mRadius = 30;
 
         int mId;
+        int mHandle; // what callers of the public methods hold, stable unlike mId
         Point mP;
         ArrayList<Edge> mEdges;
 
@@ -49,14 +52,9 @@ public class Graph {
         public void move(int newX, int newY) {
             mP.x = newX;
             mP.y = newY;
+            for (Edge ge : mEdges) ge.mSegment.set(ge.mV1.mP, ge.mV2.mP);
         }
 
-        public boolean isNeighbor(Vertex v) {
-            for (Edge ge : mEdges) {
-                if (ge.mV1 == v || ge.mV2 == v) return true;
-            }
-            return false;
-        }
         public ArrayList<Vertex> getNeighbors() {
             ArrayList<Vertex> neighbors = new ArrayList<>();
             for (Edge ge : mEdges) {
@@ -64,12 +62,6 @@ public class Graph {
             }
             return neighbors;
         }
-        public Edge getEdgeBetween(Vertex v) {
-            for (Edge ge : mEdges) {
-                if (ge.mV1 == v || ge.mV2 == v) return ge;
-            }
-            return null;
-        }
 
 
         public void draw(final Canvas canv, boolean isSelected) {
@@ -104,9 +96,11 @@ public class Graph {
 
     private static class Edge {
         int mId;
+        int mHandle;
         Vertex mV1;
         Vertex mV2;
         ArrayList<Intersection> mIntersections;
+        final Segment mSegment = new Segment(); // mV1 to mV2, reset when either one moves
 
 
         Edge(Vertex v1, Vertex v2, int id) {
@@ -114,6 +108,7 @@ public class Graph {
             mV2 = v2;
             mId = id;
             mIntersections = new ArrayList<>();
+            mSegment.set(v1.mP, v2.mP);
         }
 
         public void draw(final Canvas canv, boolean isSelected) {
@@ -168,7 +163,7 @@ public class Graph {
     }
 
     private static class Intersection {
-        int mId;
+        int mId; // index in mIntersections
 //        Vertex mV;
         Edge mGe1;
         Edge mGe2;
@@ -267,6 +262,19 @@ public class Graph {
 //    private HashSet<Face> mInnerFaces = new HashSet<>();
 //    private Face outerFace = new Face(true);
     private ArrayList<Intersection> mIntersections = new ArrayList<>();
+    /** Which edges cross, by edge id. None left means the level is solved. */
+    private CrossingMatrix mCrossings = new CrossingMatrix();
+    /** For finding all the crossings at once, reused between passes */
+    private TiledCrossings mTiles = new TiledCrossings();
+    /** Edge segments by edge id, for testing one edge against all of them */
+    private SegmentBatch mBatch = new SegmentBatch();
+    /** Handles for vertices and edges, the public methods take vertex handles */
+    private HandleTable mVertexHandles = new HandleTable();
+    private HandleTable mEdgeHandles = new HandleTable();
+    /** {vertex handle, vertex handle} -> edge handle */
+    private PairIndex mEdgeIndex = new PairIndex(false);
+    /** Vertex handles by where they are, cells twice the touch radius across */
+    private PointGrid mVertexGrid = new PointGrid(2 * TOUCH_RADIUS);
 
 
     Graph() {
@@ -280,79 +288,215 @@ public class Graph {
 //        }
 
         Vertex newVertex = new Vertex(x, y, mVertices.size());
+        newVertex.mHandle = mVertexHandles.add();
         mVertices.add(newVertex);
+        mVertexGrid.add(newVertex.mHandle, x, y);
 //        outerFace.addVertex(newVertex);
-        return newVertex.mId;
+        return newVertex.mHandle;
     }
-    public void addGraphEdge(final int v1Ind, final int v2Ind) {
+    public void addGraphEdge(final int v1Handle, final int v2Handle) {
 //        if (mEdges.size() == EDGES_LIMIT) {
 //            Log.i(TAG, "At Edge Limit. Not adding more.");
 //            return;
 //        }
-        Vertex v1 = mVertices.get(v1Ind);
-        Vertex v2 = mVertices.get(v2Ind);
-        if (v1.isNeighbor(v2)) return;
+        Edge ge = addEdge(v1Handle, v2Handle);
+        if (ge != null) addIntersections(ge);
+    }
+    /**
+     * Add edges from[k] to to[k], by vertex handle, and find their crossings in one pass at
+     * the end, like when a level is loaded.
+     */
+    public void addGraphEdges(int[] from, int[] to) {
+        addGraphEdges(from, to, null, 1);
+    }
+    /**
+     * Same, with the crossings found by up to tasks tasks on executor. Comes out the same
+     * however many there are.
+     */
+    public void addGraphEdges(int[] from, int[] to, Executor executor, int tasks) {
+        for (int k = 0; k < from.length; k++) addEdge(from[k], to[k]);
+        findAllIntersections(executor, tasks);
+    }
+    private Edge addEdge(final int v1Handle, final int v2Handle) {
+        Vertex v1 = getVertex(v1Handle);
+        Vertex v2 = getVertex(v2Handle);
+        if (v1 == null || v2 == null || v1 == v2) return null;
+        if (getEdgeBetween(v1, v2) != null) return null;
 
         Edge ge = new Edge(v1, v2, mEdges.size());
+        ge.mHandle = mEdgeHandles.add();
         mEdges.add(ge);
+        mCrossings.addEdge(v1.mHandle, v2.mHandle);
+        mBatch.add(ge.mSegment.mX1, ge.mSegment.mY1, ge.mSegment.mX2, ge.mSegment.mY2);
         v1.mEdges.add(ge);
         v2.mEdges.add(ge);
-        setIntersections();
+        mEdgeIndex.put(v1.mHandle, v2.mHandle, ge.mHandle);
+        return ge;
+    }
+    private Edge getEdgeBetween(Vertex v1, Vertex v2) {
+        int handle = mEdgeIndex.get(v1.mHandle, v2.mHandle);
+        return handle == PairIndex.NONE ? null : mEdges.get(mEdgeHandles.indexOf(handle));
+    }
+    private Vertex getVertex(int handle) {
+        int id = mVertexHandles.indexOf(handle);
+        return id == HandleTable.NONE ? null : mVertices.get(id);
     }
 
 
-    private ArrayList<Intersection> getIntersections() {
-        ArrayList<Intersection> intersections = new ArrayList<>();
-        for (int i = 0; i < mEdges.size(); i++) {
-            for (int j = i+1; j < mEdges.size(); j++) {
-                Edge ge1 = mEdges.get(i);
-                Edge ge2 = mEdges.get(j);
-                if (Point.segmentsIntersect(
-                        ge1.mV1.mP, ge1.mV2.mP,
-                        ge2.mV1.mP, ge2.mV2.mP)) {
-
-                    Point p = Point.lineIntersection(
-                            ge1.mV1.mP, ge1.mV2.mP,
-                            ge2.mV1.mP, ge2.mV2.mP);
-                    intersections.add(new Intersection(p, ge1, ge2));
-                }
-            }
+    // Crossings only change for the edges that were added, moved or deleted, so only theirs
+    // are redone, against every other edge. The lower id edge of a pair is mGe1.
+    private void addIntersections(Edge ge) {
+        // Neither ge itself nor the edges it shares a vertex with properly cross it
+        Segment s = ge.mSegment;
+        int n = mBatch.crossing(s.mX1, s.mY1, s.mX2, s.mY2);
+        for (int i = 0; i < n; i++) {
+            Edge other = mEdges.get(mBatch.hit(i));
+            if (ge.mId < other.mId) addIntersection(ge, other);
+            else addIntersection(other, ge);
         }
-        return intersections;
     }
-    private void setIntersections() {
-        for (Edge ge: mEdges) {
-            ge.mIntersections = new ArrayList<>();
+    // Every crossing again from scratch, in the order of a pass over all pairs i < j, so
+    // mIntersections comes out the same whichever way it is split up
+    private void findAllIntersections(Executor executor, int tasks) {
+        for (Edge ge : mEdges) {
+            ge.mIntersections.clear();
+            mCrossings.clearRow(ge.mId);
         }
-        mIntersections = getIntersections();
-        for (Intersection in: mIntersections) {
-            in.mGe1.mIntersections.add(in);
-            in.mGe2.mIntersections.add(in);
+        mIntersections.clear();
+        Segment[] segments = new Segment[mEdges.size()];
+        for (int i = 0; i < segments.length; i++) segments[i] = mEdges.get(i).mSegment;
+        int count = mTiles.findAll(segments, segments.length, executor, tasks);
+        for (int k = 0; k < count; k++) {
+            addIntersection(mEdges.get(mTiles.first(k)), mEdges.get(mTiles.second(k)));
         }
     }
+    // ge1 and ge2 cross, and ge1 has the lower id
+    private void addIntersection(Edge ge1, Edge ge2) {
+        Intersection in = new Intersection(ge1.mSegment.intersection(ge2.mSegment), ge1, ge2);
+        in.mId = mIntersections.size();
+        mIntersections.add(in);
+        mCrossings.set(ge1.mId, ge2.mId);
+        ge1.mIntersections.add(in);
+        ge2.mIntersections.add(in);
+    }
+    private void removeIntersections(Edge ge) {
+        for (Intersection in : ge.mIntersections) {
+            Edge other = in.mGe1 == ge ? in.mGe2 : in.mGe1;
+            other.mIntersections.remove(in);
+            Intersection last = mIntersections.remove(mIntersections.size() - 1);
+            if (last != in) {
+                last.mId = in.mId;
+                mIntersections.set(last.mId, last);
+            }
+        }
+        ge.mIntersections.clear();
+        mCrossings.clearRow(ge.mId);
+    }
 
-
-    public int pointOnAnyVertex(final Point p) {
-        return pointOnAnyVertex(p, -1);
+    /**
+     * Number of pairs of edges that cross.
+     */
+    public int crossingCount() {
+        return mCrossings.count();
+    }
+    /**
+     * True when no two edges cross, which is what solves a level.
+     */
+    public boolean isSolved() {
+        return mCrossings.count() == 0;
     }
-    private int pointOnAnyVertex(final Point p, int skip) {
-        for (int i = 0; i < mVertices.size(); i++) {
-            if (i == skip) continue;
-            if (p.isInCircle(mVertices.get(i).mP, VERTEX_RADIUS * 2)) {
-                return i;
+    /**
+     * Number of edges crossing the edge between two vertices, or -1 if there is no such edge.
+     */
+    public int edgeCrossings(final int v1Handle, final int v2Handle) {
+        Vertex v1 = getVertex(v1Handle);
+        Vertex v2 = getVertex(v2Handle);
+        if (v1 == null || v2 == null) return -1;
+        Edge ge = getEdgeBetween(v1, v2);
+        return ge == null ? -1 : mCrossings.crossingsOf(ge.mId);
+    }
+    /**
+     * Number of crossings on the edges of a vertex, or -1 if there is no such vertex. Edges
+     * of the same vertex never cross each other, so no crossing is counted twice.
+     */
+    public int vertexCrossings(final int vertexHandle) {
+        Vertex v = getVertex(vertexHandle);
+        return v == null ? -1 : mCrossings.crossingsOfVertex(v.mHandle);
+    }
+    /**
+     * Handle of the vertex whose edges have the most crossings, or -1 if nothing crosses.
+     */
+    public int mostCrossedVertex() {
+        if (isSolved()) return -1;
+        Vertex best = null;
+        int bestCount = 0;
+        for (Vertex v : mVertices) {
+            int n = mCrossings.crossingsOfVertex(v.mHandle);
+            if (n > bestCount) {
+                best = v;
+                bestCount = n;
             }
         }
-        return -1;
+        return best.mHandle;
+    }
+
+
+    /**
+     * Handle of a vertex near p, or -1 if there is none.
+     */
+    public int pointOnAnyVertex(final Point p) {
+        return pointOnAnyVertex(p.x, p.y);
+    }
+    public int pointOnAnyVertex(final float x, final float y) {
+        int i = pointOnAnyVertex(x, y, -1);
+        return i < 0 ? -1 : mVertices.get(i).mHandle;
+    }
+    // The lowest id, like a scan over mVertices would find, but only among the vertices in
+    // the grid cells around (x, y)
+    private int pointOnAnyVertex(final float x, final float y, int skip) {
+        int best = -1;
+        for (int i = 0, n = mVertexGrid.within(x, y, TOUCH_RADIUS); i < n; i++) {
+            int id = mVertexHandles.indexOf(mVertexGrid.foundKey(i));
+            if (id == skip) continue;
+            if (best < 0 || id < best) best = id;
+        }
+        return best;
+    }
+    /**
+     * Handles of the k vertices nearest to (x, y), nearest first. Fewer if there aren't k.
+     */
+    public int[] nearestVertices(final float x, final float y, int k) {
+        int[] handles = new int[mVertexGrid.nearest(x, y, k)];
+        for (int i = 0; i < handles.length; i++) handles[i] = mVertexGrid.foundKey(i);
+        return handles;
+    }
+    /**
+     * Handles of the vertices in the rectangle, edges included.
+     */
+    public int[] verticesIn(final float minX, final float minY, final float maxX,
+                            final float maxY) {
+        int[] handles = new int[mVertexGrid.inRect(minX, minY, maxX, maxY)];
+        for (int i = 0; i < handles.length; i++) handles[i] = mVertexGrid.foundKey(i);
+        return handles;
     }
 
 
 
-    public void moveVertex(final int vertexInd, final int x, final int y) {
-        mVertices.get(vertexInd).move(x, y);
-        setIntersections();
+    public void moveVertex(final int vertexHandle, final int x, final int y) {
+        Vertex v = getVertex(vertexHandle);
+        if (v == null) return;
+        for (Edge ge : v.mEdges) removeIntersections(ge);
+        mVertexGrid.remove(v.mHandle, v.mP.x, v.mP.y);
+        v.move(x, y);
+        mVertexGrid.add(v.mHandle, x, y);
+        for (Edge ge : v.mEdges) {
+            Segment s = ge.mSegment;
+            mBatch.set(ge.mId, s.mX1, s.mY1, s.mX2, s.mY2);
+        }
+        for (Edge ge : v.mEdges) addIntersections(ge);
     }
 
-    public void draw(final Canvas canv, int selectedVertexInd) {
+    public void draw(final Canvas canv, int selectedVertex) {
         ArrayList<Integer> colors = new ArrayList<>(Arrays.asList(Color.YELLOW,
                 Color.MAGENTA, Color.GREEN, Color.CYAN, Color.BLUE, Color.DKGRAY));
 //        for (Face f : mFaces) {
@@ -364,7 +508,7 @@ public class Graph {
             ge.draw(canv, false);
         }
         for (Vertex gv : mVertices) {
-            gv.draw(canv, gv.mId == selectedVertexInd);
+            gv.draw(canv, gv.mHandle == selectedVertex);
         }
         for (Intersection in : mIntersections) {
             in.draw(canv);
@@ -387,16 +531,22 @@ public class Graph {
 //        Log.i(TAG, "Number of intersections: " + mVirtualVertices.size());
 //    }
 
-    public void deleteGraphEdge(final int startVertexInd, final int endVertexInd) {
-        Vertex v1 = mVertices.get(startVertexInd);
-        Vertex v2 = mVertices.get(endVertexInd);
-        Edge ge = v1.getEdgeBetween(v2);
+    public void deleteGraphEdge(final int startVertex, final int endVertex) {
+        Vertex v1 = getVertex(startVertex);
+        Vertex v2 = getVertex(endVertex);
+        if (v1 == null || v2 == null) return;
+        Edge ge = getEdgeBetween(v1, v2);
         deleteGraphEdge(ge);
     }
     private void deleteGraphEdge(Edge ge) {
         if (ge == null) return;
+        removeIntersections(ge);
         ge.mV1.mEdges.remove(ge);
         ge.mV2.mEdges.remove(ge);
+        mEdgeIndex.remove(ge.mV1.mHandle, ge.mV2.mHandle);
+        mEdgeHandles.remove(ge.mId);
+        mCrossings.removeEdge(ge.mId);
+        mBatch.remove(ge.mId);
 
         Edge last = mEdges.remove(mEdges.size() - 1);
         if (last.mId == ge.mId) {
@@ -404,10 +554,17 @@ public class Graph {
         }
         last.mId = ge.mId;
         mEdges.set(last.mId, last);
-        setIntersections();
+        // Keep the lower id edge of every pair first
+        for (Intersection in : last.mIntersections) {
+            if (in.mGe2 == last && in.mGe1.mId > last.mId) {
+                in.mGe2 = in.mGe1;
+                in.mGe1 = last;
+            }
+        }
     }
-    public void deleteGraphVertex(final int vertexInd) {
-        Vertex v = mVertices.get(vertexInd);
+    public void deleteGraphVertex(final int vertexHandle) {
+        Vertex v = getVertex(vertexHandle);
+        if (v == null) return;
         deleteGraphVertex(v);
     }
     private void deleteGraphVertex(Vertex v) {
@@ -419,6 +576,8 @@ public class Graph {
         for (Edge ge : toRemove) {
             deleteGraphEdge(ge);
         }
+        mVertexGrid.remove(v.mHandle, v.mP.x, v.mP.y);
+        mVertexHandles.remove(v.mId);
         Vertex last = mVertices.remove(mVertices.size() - 1);
         if (last.mId == v.mId) {
             return;
@@ -426,11 +585,24 @@ public class Graph {
         last.mId = v.mId;
         mVertices.set(last.mId, last);
     }
+    /**
+     * Pack the handle tables after many deletions. Live handles stay valid.
+     */
+    public void compact() {
+        mVertexHandles.compact();
+        mEdgeHandles.compact();
+    }
 
     public void clear() {
         mEdges.clear();
         mVertices.clear();
         mIntersections.clear();
+        mCrossings.clear();
+        mBatch.clear();
+        mVertexHandles.clear();
+        mEdgeHandles.clear();
+        mEdgeIndex.clear();
+        mVertexGrid.clear();
 //        mVirtualVertices.clear();
 //        outerFace = new Face(true);
     }
@@ -0,0 +1,195 @@
+package com.games.malcolm.graphgame;
+
+import java.util.Arrays;
+
+/**
+ *
+ * Stable handles for elements that are stored densely and removed by swap-with-last.
+ *
+ * A handle is a slot index plus the generation of that slot. The slot points at the current
+ * dense id of the element, and is updated when the element is moved, so a handle keeps naming
+ * the same element for its whole life. Removing an element bumps the generation of its slot
+ * and puts the slot on a free list for reuse, so a stale handle is detected in O(1) instead of
+ * silently naming whatever element was moved into its old id.
+ *
+ * The owner calls add when it appends an element and remove when it moves its last element
+ * into the freed id, so the table always mirrors the dense list.
+ */
+
+public class HandleTable {
+    public static final int NONE = -1;
+    private static final int MIN_CAPACITY = 16;
+    private static final int SLOT_BITS = 20;
+    private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+    // The top bit is left clear so handles are never negative, which leaves -1 for NONE.
+    // Generations wrap after 2048 reuses of the same slot.
+    private static final int GENERATION_MASK = (1 << (31 - SLOT_BITS)) - 1;
+
+    private int[] mIndex; // slot -> dense id, or the next free slot if the slot is free
+    private int[] mGeneration; // slot -> generation
+    private int[] mSlot; // dense id -> slot
+    private int mSlotCount; // slots handed out so far, live or free
+    private int mSize; // live handles
+    private int mFreeHead = NONE;
+
+    HandleTable() {
+        mIndex = new int[MIN_CAPACITY];
+        mGeneration = new int[MIN_CAPACITY];
+        mSlot = new int[MIN_CAPACITY];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Hand out a handle for a new element with dense id size().
+     */
+    public int add() {
+        int slot;
+        if (mFreeHead != NONE) {
+            slot = mFreeHead;
+            mFreeHead = mIndex[slot];
+        } else {
+            if (mSlotCount > SLOT_MASK) throw new AssertionError("Out of handles");
+            if (mSlotCount == mIndex.length) {
+                mIndex = Arrays.copyOf(mIndex, 2 * mIndex.length);
+                mGeneration = Arrays.copyOf(mGeneration, 2 * mGeneration.length);
+            }
+            slot = mSlotCount++;
+        }
+        if (mSize == mSlot.length) mSlot = Arrays.copyOf(mSlot, 2 * mSlot.length);
+        mIndex[slot] = mSize;
+        mSlot[mSize] = slot;
+        mSize++;
+        return handle(slot);
+    }
+    /**
+     * The element at dense id is removed and the last element takes its id.
+     */
+    public void remove(int id) {
+        int slot = mSlot[id];
+        int last = --mSize;
+        if (id != last) {
+            int lastSlot = mSlot[last];
+            mSlot[id] = lastSlot;
+            mIndex[lastSlot] = id;
+        }
+        free(slot);
+    }
+    /**
+     * The elements at dense ids i and j trade handles.
+     */
+    public void exchange(int i, int j) {
+        int slot = mSlot[i];
+        mSlot[i] = mSlot[j];
+        mSlot[j] = slot;
+        mIndex[mSlot[i]] = i;
+        mIndex[mSlot[j]] = j;
+    }
+
+    /**
+     * True if the next add will hand out a slot that was freed before, see undoAdd.
+     */
+    public boolean nextAddReusesSlot() {
+        return mFreeHead != NONE;
+    }
+    /**
+     * Reverse the last add. fromFreeList is what nextAddReusesSlot returned before it. The
+     * handle it returned is made stale rather than handed out again.
+     */
+    public void undoAdd(boolean fromFreeList) {
+        int slot = mSlot[--mSize];
+        bump(slot);
+        if (fromFreeList) {
+            mIndex[slot] = mFreeHead;
+            mFreeHead = slot;
+        } else {
+            mSlotCount--;
+        }
+    }
+    /**
+     * Reverse the last remove(id). The element gets back handle, which it had before. Its
+     * slot may have been handed out and taken back since, so the generation is restored from
+     * the handle rather than stepped back.
+     */
+    public void undoRemove(int id, int handle) {
+        int slot = mFreeHead;
+        mFreeHead = mIndex[slot];
+        mGeneration[slot] = handle >>> SLOT_BITS;
+        int last = mSize++;
+        if (id != last) {
+            int lastSlot = mSlot[id];
+            mSlot[last] = lastSlot;
+            mIndex[lastSlot] = last;
+        }
+        mSlot[id] = slot;
+        mIndex[slot] = id;
+    }
+
+    /**
+     * Dense id of the element named by handle, or NONE if it has been removed.
+     */
+    public int indexOf(int handle) {
+        if (handle < 0) return NONE;
+        int slot = handle & SLOT_MASK;
+        if (slot >= mSlotCount || mGeneration[slot] != handle >>> SLOT_BITS) return NONE;
+        return mIndex[slot];
+    }
+    public boolean isValid(int handle) {
+        return indexOf(handle) != NONE;
+    }
+    public int handleOf(int id) {
+        return handle(mSlot[id]);
+    }
+    /**
+     * Slot of a handle. Owners can keep their own arrays by slot, no two live handles share one.
+     */
+    public static int slotOf(int handle) {
+        return handle & SLOT_MASK;
+    }
+
+    /**
+     * Invalidate every handle. Slots are kept, with their generations bumped, so handles from
+     * before the clear are never mistaken for new ones.
+     */
+    public void clear() {
+        for (int i = 0; i < mSize; i++) bump(mSlot[i]);
+        mSize = 0;
+        rebuildFreeList();
+    }
+    /**
+     * Drop free slots from the end of the slot array and reuse the remaining free slots lowest
+     * first, so the slots stay packed after many removals. Live handles stay valid.
+     */
+    public void compact() {
+        int used = 0;
+        for (int i = 0; i < mSize; i++) used = Math.max(used, mSlot[i] + 1);
+        // Dropped slots keep their generation, so a slot handed out again can't revive a
+        // stale handle
+        mSlotCount = used;
+        rebuildFreeList();
+    }
+
+    private int handle(int slot) {
+        return (mGeneration[slot] << SLOT_BITS) | slot;
+    }
+    private void bump(int slot) {
+        mGeneration[slot] = (mGeneration[slot] + 1) & GENERATION_MASK;
+    }
+    private void free(int slot) {
+        bump(slot);
+        mIndex[slot] = mFreeHead;
+        mFreeHead = slot;
+    }
+    private void rebuildFreeList() {
+        boolean[] live = new boolean[mSlotCount];
+        for (int i = 0; i < mSize; i++) live[mSlot[i]] = true;
+        mFreeHead = NONE;
+        for (int slot = mSlotCount - 1; slot >= 0; slot--) {
+            if (live[slot]) continue;
+            mIndex[slot] = mFreeHead;
+            mFreeHead = slot;
+        }
+    }
+}
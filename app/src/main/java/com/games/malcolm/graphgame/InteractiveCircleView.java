@@ -21,10 +21,12 @@ public class InteractiveCircleView extends View {
 
     // TODO: Move these things into the graph class. It should handle how things move around.
     private static final int CIRCLES_LIMIT = 6;
+    // Vertices are held by their Graph handle, so they stay valid when others are deleted
     private SparseIntArray mVertexPointer;
     private MODE mMode = MODE.CREATE_V;
     private int mSelectedVertex = -1;
     private int debugStep = 0;
+    private int[] mDebugVertices = new int[4];
 
     private enum MODE {
         SELECT_V,
@@ -98,7 +100,7 @@ public class InteractiveCircleView extends View {
 
                 xTouch = (int) event.getX(0);
                 yTouch = (int) event.getY(0);
-                touchedVertex = mGraph.pointOnAnyVertex(new Point(xTouch, yTouch));
+                touchedVertex = mGraph.pointOnAnyVertex(xTouch, yTouch);
                 switch (mMode) {
                     case SELECT_V:
                         mSelectedVertex =
@@ -168,28 +170,28 @@ public class InteractiveCircleView extends View {
                         Log.i(TAG, "debug step: " + debugStep);
                         switch (debugStep) {
                             case 0:
-                                mGraph.addGraphVertex(402, 925);
+                                mDebugVertices[0] = mGraph.addGraphVertex(402, 925);
                                 break;
                             case 1:
-                                mGraph.addGraphVertex(492, 1155);
+                                mDebugVertices[1] = mGraph.addGraphVertex(492, 1155);
                                 break;
                             case 2:
-                                mGraph.addGraphVertex(765, 987);
+                                mDebugVertices[2] = mGraph.addGraphVertex(765, 987);
                                 break;
                             case 3:
-                                mGraph.addGraphVertex(501, 1178);
+                                mDebugVertices[3] = mGraph.addGraphVertex(501, 1178);
                                 break;
                             case 4:
-                                mGraph.addGraphEdge(1, 2);
+                                mGraph.addGraphEdge(mDebugVertices[1], mDebugVertices[2]);
                                 break;
                             case 5:
-                                mGraph.addGraphEdge(0, 2);
+                                mGraph.addGraphEdge(mDebugVertices[0], mDebugVertices[2]);
                                 break;
                             case 6:
-                                mGraph.addGraphEdge(1, 0);
+                                mGraph.addGraphEdge(mDebugVertices[1], mDebugVertices[0]);
                                 break;
                             case 7:
-                                mGraph.addGraphEdge(0, 3);
+                                mGraph.addGraphEdge(mDebugVertices[0], mDebugVertices[3]);
                                 break;
                             default:
                                 break;
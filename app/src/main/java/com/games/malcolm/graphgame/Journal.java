@@ -0,0 +1,93 @@
+package com.games.malcolm.graphgame;
+
+import java.util.Arrays;
+
+/**
+ *
+ * Undo log for transactional edits. Each entry is an op code chosen by the owner, the object
+ * that was written, the value it held before and up to three ints. Entries are kept in
+ * parallel arrays so recording a write doesn't allocate once the arrays have grown.
+ *
+ * Nothing is recorded unless a transaction is open. The owner undoes the entries from last to
+ * first, which restores every write in exactly the reverse order it happened.
+ */
+
+class Journal {
+    private static final int MIN_CAPACITY = 64;
+
+    private int[] mOps = new int[MIN_CAPACITY];
+    private Object[] mTargets = new Object[MIN_CAPACITY];
+    private Object[] mValues = new Object[MIN_CAPACITY];
+    private int[] mA = new int[MIN_CAPACITY];
+    private int[] mB = new int[MIN_CAPACITY];
+    private int[] mC = new int[MIN_CAPACITY];
+    private int mSize;
+    private boolean mRecording;
+
+    public boolean isRecording() {
+        return mRecording;
+    }
+    public void begin() {
+        if (mRecording) throw new AssertionError("Transactions can't be nested");
+        mRecording = true;
+    }
+    /**
+     * Stop recording and forget every entry.
+     */
+    public void end() {
+        mRecording = false;
+        Arrays.fill(mTargets, 0, mSize, null);
+        Arrays.fill(mValues, 0, mSize, null);
+        mSize = 0;
+    }
+
+    public void record(int op, Object target, Object value) {
+        record(op, target, value, 0, 0, 0);
+    }
+    public void record(int op, Object target, int a) {
+        record(op, target, null, a, 0, 0);
+    }
+    public void record(int op, Object target, Object value, int a, int b, int c) {
+        if (!mRecording) return;
+        if (mSize == mOps.length) grow();
+        mOps[mSize] = op;
+        mTargets[mSize] = target;
+        mValues[mSize] = value;
+        mA[mSize] = a;
+        mB[mSize] = b;
+        mC[mSize] = c;
+        mSize++;
+    }
+
+    public int size() {
+        return mSize;
+    }
+    public int op(int i) {
+        return mOps[i];
+    }
+    public Object target(int i) {
+        return mTargets[i];
+    }
+    public Object value(int i) {
+        return mValues[i];
+    }
+    public int a(int i) {
+        return mA[i];
+    }
+    public int b(int i) {
+        return mB[i];
+    }
+    public int c(int i) {
+        return mC[i];
+    }
+
+    private void grow() {
+        int capacity = 2 * mOps.length;
+        mOps = Arrays.copyOf(mOps, capacity);
+        mTargets = Arrays.copyOf(mTargets, capacity);
+        mValues = Arrays.copyOf(mValues, capacity);
+        mA = Arrays.copyOf(mA, capacity);
+        mB = Arrays.copyOf(mB, capacity);
+        mC = Arrays.copyOf(mC, capacity);
+    }
+}
@@ -2,8 +2,9 @@ package com.games.malcolm.graphgame;
 
 import android.util.Log;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
  *
@@ -14,159 +15,330 @@ import java.util.Set;
 
 public class Mesh {
     private static final String TAG = "Mesh";
+    private static final int MAX_WALK = 8; // edges crossed before point location gives up
+    private static final float EDGE_GRID_CELL_SIZE = 120;
+    private static final int MIN_ROWS = 16;
 
-    protected static class Vertex {
+    // Elements are stable views over their row in the columns below, at mId. They hold
+    // what only the mesh itself looks at, everything else goes through the accessors.
+    protected class Vertex {
         public int mId;
-        public Point mP;
-        public HalfEdge mHe;
+        public int mHandle; // stable for the life of the vertex, unlike mId
+        public int mDegree; // number of outgoing halfedges, kept up to date by the mesh
+        boolean mDirty; // queued for the next incremental validation
+        // Outgoing halfedges sorted by HalfEdge.mAngle, i.e counterclockwise around the point
+        ArrayList<HalfEdge> mRing;
 
-        Vertex(Point p, int id) {
-            mP = p;
+        Vertex(int id) {
             mId = id;
+            mRing = new ArrayList<>();
         }
 
-        public ArrayList<HalfEdge> getOutEdges() {
-            ArrayList<HalfEdge> hes = new ArrayList<>();
-            if (mHe == null) return hes;
-            return mHe.getOppositeNextLoop();
+        public float x() {
+            return mVertexX[mId];
         }
-        public ArrayList<HalfEdge> getInEdges() {
-            ArrayList<HalfEdge> hes = new ArrayList<>();
-            for (HalfEdge he : getOutEdges()) {
-                hes.add(he.mOpposite);
-            }
-            return hes;
+        public float y() {
+            return mVertexY[mId];
         }
-        public ArrayList<Vertex> getNeighbors() {
-            ArrayList<Vertex> vs = new ArrayList<>();
-            for (HalfEdge he : getOutEdges()) {
-                vs.add(he.mVertex);
-            }
-            return vs;
+        /**
+         * A copy of the point, for callers that want one. Changing it doesn't move the vertex.
+         */
+        public Point point() {
+            return new Point(x(), y());
+        }
+        public HalfEdge he() {
+            return edgeAt(mVertexHe[mId]);
         }
-
         public boolean isIsolated() {
-            return mHe == null;
+            return mVertexHe[mId] == HandleTable.NONE;
         }
 
         @Override
         public String toString() {
-            String pStr = mP != null ? mP.toString() : "null";
-            String heStr = mHe != null ? String.valueOf(mHe.mId) : "null";
-            return "Vertex: [id: " + mId +", p: " + pStr + ", he: " + heStr + "]";
+            HalfEdge he = he();
+            String heStr = he != null ? String.valueOf(he.mId) : "null";
+            return "Vertex: [id: " + mId +", p: " + point() + ", he: " + heStr + "]";
         }
     }
-    protected static class Face {
+    protected class Face {
         public int mId;
-        public HalfEdge mHe;
+        public int mHandle; // stable for the life of the face, unlike mId
+        public int mSize; // number of halfedges in the loop, kept up to date by the mesh
+        boolean mDirty; // queued for the next incremental validation
+        boolean mSaved; // metrics journaled by the open transaction, see saveMetrics
+        // Bounding box for the face index. Always holds the whole loop, may be larger.
+        float mMinX = Float.POSITIVE_INFINITY;
+        float mMinY = Float.POSITIVE_INFINITY;
+        float mMaxX = Float.NEGATIVE_INFINITY;
+        float mMaxY = Float.NEGATIVE_INFINITY;
+        int mLeaf = -1; // position in the face index tree, -1 if not in it
+        int mPending = -1; // position in the face index pending list, -1 if not in it
+        // Sums over the loop of the cross product of each halfedge's endpoints, and of that
+        // times the sum of their x and y. Kept up to date by the mesh, see addTerms.
+        double mCross;
+        double mMomentX;
+        double mMomentY;
+        // Sums of the magnitudes of every term that went into them since the loop was last
+        // measured. Their rounding error is relative to these, not to the loop as it is now.
+        double mCrossMagnitude;
+        double mMomentMagnitude;
         Face(int id) {
             mId = id;
         }
 
-        public boolean isOuterFace() {
-            return mId == 0;
+        public HalfEdge he() {
+            return edgeAt(mFaceHe[mId]);
         }
-        public ArrayList<HalfEdge> getEdges() {
-            ArrayList<HalfEdge> hes = new ArrayList<>();
-            if (mHe == null) return hes;
-            return mHe.getNextLoop();
+        /**
+         * Signed area of the loop. Inner faces are negative, since y points down on screen, and
+         * the outer face is positive, or zero while the mesh has no cycles.
+         */
+        public double signedArea() {
+            return mCross / 2;
         }
-        public ArrayList<Vertex> getVertices() {
-            ArrayList<Vertex> vs = new ArrayList<>();
-            for (HalfEdge he : getEdges()) {
-                vs.add(he.mVertex);
-            }
-            return vs;
+        /**
+         * Centroid of the area enclosed by the loop, or null if it encloses none.
+         */
+        public Point centroid() {
+            if (mCross == 0) return null;
+            double d = 3 * mCross;
+            return new Point((float) (mMomentX / d), (float) (mMomentY / d));
+        }
+        public boolean windsLikeInnerFace() {
+            return mCross < 0;
         }
 
+        public boolean isOuterFace() {
+            return mId == 0;
+        }
         public boolean touchesEdge(HalfEdge he) {
-            return getEdges().contains(he);
+            HalfEdge start = he();
+            if (start == null) return false;
+            HalfEdge iter = start;
+            do {
+                if (iter == he) return true;
+                iter = iter.next();
+            } while (iter != start);
+            return false;
         }
         public boolean touchesVertex(Vertex v) {
-            return getVertices().contains(v);
+            HalfEdge start = he();
+            if (start == null) return false;
+            HalfEdge iter = start;
+            do {
+                if (iter.vertex() == v) return true;
+                iter = iter.next();
+            } while (iter != start);
+            return false;
         }
 
         // Use crossings method. Count number of crossings with horizontal ray to the right.
         // This is undefined when the point is on the edge of the face.
         public boolean containsPoint(Point p) {
-            int crossings = 0;
-            for (HalfEdge he : getEdges()) {
-                Point p1 = he.mVertex.mP;
-                Point p2 = he.mOpposite.mVertex.mP;
-                boolean cond1 = (p1.y <= p.y) && (p2.y > p.y);
-                boolean cond2 = (p2.y <= p.y) && (p1.y > p.y);
-                if (!(cond1 || cond2)) continue; // no crossing
-                // Is crossing to the right of p
-                float m = (p1.y - p2.y) / (p1.x - p2.x);
-                if (p1.x + (p.y - p1.y) / m > p.x) crossings++;
-            }
-            return crossings % 2 == 1; // odd number of crossings
+            return containsPoint(p.x, p.y);
+        }
+        public boolean containsPoint(float px, float py) {
+            HalfEdge start = he();
+            return start != null && loopContainsPoint(start, px, py);
         }
         public boolean containsFace(Face f) {
-            Set<Vertex> vs = new HashSet<>(getVertices());
-            Set<Vertex> fvs = new HashSet<>(f.getVertices());
-            for (Vertex v : fvs) {
-                if (vs.contains(v)) continue; // shared vertex not relevant
-                if (!containsPoint(v.mP)) return false; // doesn't contain all of points of f
-            }
-            for (Vertex v : vs) {
-                if (fvs.contains(v)) continue; // shared vertex not relevant
-                if (f.containsPoint(v.mP)) return false; // at least partially contained by f
-            }
+            HalfEdge start = f.he();
+            HalfEdge he = start;
+            do {
+                Vertex v = he.vertex();
+                he = he.next();
+                if (touchesVertex(v)) continue; // shared vertex not relevant
+                // doesn't contain all of points of f
+                if (!containsPoint(v.x(), v.y())) return false;
+            } while (he != start);
+            start = he();
+            he = start;
+            do {
+                Vertex v = he.vertex();
+                he = he.next();
+                if (f.touchesVertex(v)) continue; // shared vertex not relevant
+                // at least partially contained by f
+                if (f.containsPoint(v.x(), v.y())) return false;
+            } while (he != start);
             return true;
         }
 
         @Override
         public String toString() {
-            String heStr = mHe != null ? String.valueOf(mHe.mId) : "null";
+            HalfEdge he = he();
+            String heStr = he != null ? String.valueOf(he.mId) : "null";
             return "Face: [id: " + mId +", he: "+ heStr + "]";
         }
     }
-    protected static class HalfEdge {
+    protected class HalfEdge {
         public int mId;
-        public Vertex mVertex;
-        public HalfEdge mNext;
-        public HalfEdge mOpposite;
-        public Face mFace;
-        HalfEdge(Vertex vertex, Face face, int id) {
+        public int mHandle; // stable for the life of the halfedge, unlike mId
+        boolean mDirty; // queued for the next incremental validation
+        float mAngle; // pseudo-angle of the edge direction at the vertex it starts from
+        // From the vertex it starts from to vertex(), kept with the edge grid entry
+        final Segment mSegment = new Segment();
+        HalfEdge(int id) {
             mId = id;
-            mVertex = vertex;
-            mFace = face;
         }
 
-        public ArrayList<HalfEdge> getNextLoop() {
-            ArrayList<HalfEdge> hes = new ArrayList<>();
-            HalfEdge he = this;
-            do {
-                hes.add(he);
-                he = he.mNext;
-            } while (he.mId != mId);
-            return hes;
-        }
-        public ArrayList<HalfEdge> getOppositeNextLoop() {
-            ArrayList<HalfEdge> hes = new ArrayList<>();
-            HalfEdge he = this;
-            do {
-                hes.add(he);
-                he = he.mOpposite.mNext;
-            } while (he.mId != mId);
-            return hes;
+        /**
+         * The vertex this halfedge points to.
+         */
+        public Vertex vertex() {
+            return vertexAt(mEdgeVertex[mId]);
+        }
+        public HalfEdge next() {
+            return edgeAt(mEdgeNext[mId]);
+        }
+        public HalfEdge opposite() {
+            return edgeAt(mEdgeOpposite[mId]);
+        }
+        public Face face() {
+            return faceAt(mEdgeFace[mId]);
         }
 
         @Override
         public String toString() {
-            String vStr = mVertex != null ? String.valueOf(mVertex.mId) : "null";
-            String oStr = mOpposite != null ? String.valueOf(mOpposite.mId) : "null";
-            String nStr = mNext != null ? String.valueOf(mNext.mId) : "null";
-            String fStr = mFace != null ? String.valueOf(mFace.mId) : "null";
+            Vertex v = vertex();
+            HalfEdge opposite = opposite();
+            HalfEdge next = next();
+            Face f = face();
+            String vStr = v != null ? String.valueOf(v.mId) : "null";
+            String oStr = opposite != null ? String.valueOf(opposite.mId) : "null";
+            String nStr = next != null ? String.valueOf(next.mId) : "null";
+            String fStr = f != null ? String.valueOf(f.mId) : "null";
             return "HalfEdge: [id: " + mId +", v: "+ vStr + ", opposite: " + oStr
                     + ", next: "+ nStr + ", face: " + fStr + "]";
         }
     }
 
+    /**
+     * Reusable cursor over a face loop (following next) or the outgoing halfedges of a vertex
+     * (following opposite().next()). It is its own iterator, so it can be used in a for-each
+     * loop without allocating. A single instance must not be used by two nested loops.
+     */
+    protected static class Circulator implements Iterable<HalfEdge>, Iterator<HalfEdge> {
+        private HalfEdge mStart;
+        private HalfEdge mCurrent;
+        private boolean mAroundVertex;
+
+        public Circulator loop(Face f) {
+            return reset(f.he(), false);
+        }
+        public Circulator loop(HalfEdge start) {
+            return reset(start, false);
+        }
+        public Circulator outEdges(Vertex v) {
+            return reset(v.he(), true);
+        }
+        public Circulator outEdges(HalfEdge start) {
+            return reset(start, true);
+        }
+        private Circulator reset(HalfEdge start, boolean aroundVertex) {
+            mStart = start;
+            mCurrent = start;
+            mAroundVertex = aroundVertex;
+            return this;
+        }
+
+        @Override
+        public Iterator<HalfEdge> iterator() {
+            return this;
+        }
+        @Override
+        public boolean hasNext() {
+            return mCurrent != null;
+        }
+        @Override
+        public HalfEdge next() {
+            if (mCurrent == null) throw new NoSuchElementException();
+            HalfEdge he = mCurrent;
+            HalfEdge next = mAroundVertex ? he.opposite().next() : he.next();
+            mCurrent = next == mStart ? null : next;
+            return he;
+        }
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    // Crossings method on the loop through start
+    private static boolean loopContainsPoint(HalfEdge start, float px, float py) {
+        int crossings = 0;
+        HalfEdge he = start;
+        do {
+            Vertex v1 = he.vertex();
+            Vertex v2 = he.opposite().vertex();
+            he = he.next();
+            if (Predicates.crossesRayToRight(px, py, v1.x(), v1.y(), v2.x(), v2.y())) crossings++;
+        } while (he != start);
+        return crossings % 2 == 1; // odd number of crossings
+    }
+
     public ArrayList<HalfEdge> mEdges;
     public ArrayList<Vertex> mVertices;
     public ArrayList<Face> mFaces;
+    // Topology and coordinates, in one row per element at its id. Links are stored as
+    // handles, so when a removed element's id is taken by the last one only that row has to
+    // move, nothing that links to it. Rows past the end of their list are left over. Not
+    // private, the element classes read them on every step and shouldn't need accessors.
+    int[] mEdgeVertex = new int[MIN_ROWS]; // vertex the halfedge points to
+    int[] mEdgeNext = new int[MIN_ROWS];
+    int[] mEdgeOpposite = new int[MIN_ROWS];
+    int[] mEdgeFace = new int[MIN_ROWS];
+    int[] mVertexHe = new int[MIN_ROWS]; // an outgoing halfedge, NONE if isolated
+    float[] mVertexX = new float[MIN_ROWS];
+    float[] mVertexY = new float[MIN_ROWS];
+    int[] mFaceHe = new int[MIN_ROWS]; // a halfedge of the loop, NONE if there is none
+    // Live elements by the slot of their handle, so following a link doesn't have to go
+    // through the handle tables. Removed elements are taken out, and undo puts them back.
+    HalfEdge[] mEdgeSlots = new HalfEdge[MIN_ROWS];
+    Vertex[] mVertexSlots = new Vertex[MIN_ROWS];
+    Face[] mFaceSlots = new Face[MIN_ROWS];
+
+    // Cursors for internal traversals. One for face loops and one for vertex rings, so a
+    // ring walk can call something that walks a face loop but not the other way around.
+    protected final Circulator mLoopCursor = new Circulator();
+    protected final Circulator mRingCursor = new Circulator();
+
+    // Elements touched since the last validation. validateMesh only checks these and their
+    // neighbours. Any method that rewires pointers has to mark what it changed.
+    private final ArrayList<HalfEdge> mDirtyEdges = new ArrayList<>();
+    private final ArrayList<Vertex> mDirtyVertices = new ArrayList<>();
+    private final ArrayList<Face> mDirtyFaces = new ArrayList<>();
+    // Sums of mSize over the faces and of mDegree over the vertices, and the number of
+    // vertices with edges. Kept by setSize and setDegree, so validation gets them for free.
+    private int mSizeTotal;
+    private int mDegreeTotal;
+    private int mConnectedVertices;
+    // Inside a transaction, deleting an edge that is all that holds two parts of the mesh
+    // together leaves its face with a second loop. The face keeps he() on the loop that bounds
+    // it, and each other loop is listed here by one of its halfedges until an edge joins it
+    // up again. Their halfedges still count towards the size and metrics of the face. A
+    // transaction can only be committed with none left.
+    private final ArrayList<HalfEdge> mDetached = new ArrayList<>();
+    // Faces whose metrics the open transaction has journaled
+    private final ArrayList<Face> mSavedFaces = new ArrayList<>();
+    // Test mode: run the full validators after every incremental one and compare
+    protected boolean mCrossCheckValidation;
+    private final SegmentSweep mSweep = new SegmentSweep();
+    // Stable handles for the elements. Ids are dense and change when an element is removed.
+    private final HandleTable mVertexHandles = new HandleTable();
+    private final HandleTable mEdgeHandles = new HandleTable();
+    private final HandleTable mFaceHandles = new HandleTable();
+    // (from vertex handle, to vertex handle) -> halfedge handle, see edgeBetweenVertices
+    private final PairIndex mEdgeIndex = new PairIndex(true);
+    // Halfedge handles by the cells their segment passes through, see validateDirtyHalfEdge
+    private final SegmentGrid mEdgeGrid = new SegmentGrid(EDGE_GRID_CELL_SIZE);
+    // Face bounding boxes, for point location in faceBetweenPoints
+    private final FaceIndex mFaceIndex = new FaceIndex();
+    // Where the last faceBetweenPoints ended, the next one walks over from there
+    private int mLastFace = HandleTable.NONE;
+    private float mLastX;
+    private float mLastY;
+    // Undo log for the open transaction, if any
+    protected final Journal mJournal = new Journal();
 
     Mesh() {
         clear();
@@ -175,72 +347,661 @@ public class Mesh {
         mEdges = new ArrayList<>();
         mVertices = new ArrayList<>();
         mFaces = new ArrayList<>();
+        mVertexHandles.clear();
+        mEdgeHandles.clear();
+        mFaceHandles.clear();
+        Arrays.fill(mVertexSlots, null);
+        Arrays.fill(mEdgeSlots, null);
+        Arrays.fill(mFaceSlots, null);
+        mEdgeIndex.clear();
+        mFaceIndex.clear();
+        mEdgeGrid.clear();
+        mLastFace = HandleTable.NONE;
+        mDirtyEdges.clear();
+        mDirtyVertices.clear();
+        mDirtyFaces.clear();
+        mDetached.clear();
+        mSizeTotal = mDegreeTotal = mConnectedVertices = 0;
         addFace(); // outerFace
     }
 
+    public void setCrossCheckValidation(boolean crossCheck) {
+        mCrossCheckValidation = crossCheck;
+    }
+
     public Vertex addVertex(Point p) {
-        Vertex vertex = new Vertex(p, mVertices.size());
-        mVertices.add(vertex);
+        return addVertex(p.x, p.y);
+    }
+    public Vertex addVertex(float x, float y) {
+        Vertex vertex = new Vertex(mVertices.size());
+        if (vertex.mId == mVertexHe.length) {
+            int rows = 2 * vertex.mId;
+            mVertexHe = Arrays.copyOf(mVertexHe, rows);
+            mVertexX = Arrays.copyOf(mVertexX, rows);
+            mVertexY = Arrays.copyOf(mVertexY, rows);
+        }
+        vertex.mHandle = handleAdd(mVertexHandles);
+        addToSlots(vertex);
+        listAdd(mVertices, vertex);
+        setPoint(vertex, x, y);
+        setHe(vertex, null);
+        markDirty(vertex);
         return vertex;
     }
     public Face addFace() {
         Face face = new Face(mFaces.size());
-        mFaces.add(face);
+        if (face.mId == mFaceHe.length) mFaceHe = Arrays.copyOf(mFaceHe, 2 * face.mId);
+        saveMetrics(face);
+        face.mHandle = handleAdd(mFaceHandles);
+        addToSlots(face);
+        listAdd(mFaces, face);
+        setHe(face, null);
+        markDirty(face);
         return face;
     }
     public HalfEdge addHalfEdge(Vertex from, Vertex to, Face face) {
-        HalfEdge he = new HalfEdge(to, face, mEdges.size());
-        mEdges.add(he);
-        from.mHe = he;
+        HalfEdge he = new HalfEdge(mEdges.size());
+        if (he.mId == mEdgeNext.length) {
+            int rows = 2 * he.mId;
+            mEdgeVertex = Arrays.copyOf(mEdgeVertex, rows);
+            mEdgeNext = Arrays.copyOf(mEdgeNext, rows);
+            mEdgeOpposite = Arrays.copyOf(mEdgeOpposite, rows);
+            mEdgeFace = Arrays.copyOf(mEdgeFace, rows);
+        }
+        he.mHandle = handleAdd(mEdgeHandles);
+        addToSlots(he);
+        listAdd(mEdges, he);
+        setVertex(he, to);
+        setFace(he, face);
+        setNext(he, null);
+        setOpposite(he, null);
+        setHe(from, he);
+        indexPut(mEdgeIndex, from.mHandle, to.mHandle, he.mHandle);
+        addToGrid(he, from);
+        ringInsert(from, he);
+        markDirty(he);
+        markDirty(from);
+        markDirty(face);
         return he;
     }
 
+    /**
+     * Drop every edge and face, leaving all vertices isolated. Not journaled, so not allowed
+     * in a transaction.
+     */
+    protected void clearEdges() {
+        if (mJournal.isRecording()) throw new AssertionError("clearEdges in a transaction");
+        mFaceIndex.clear();
+        mEdges = new ArrayList<>();
+        mFaces = new ArrayList<>();
+        mEdgeHandles.clear();
+        mFaceHandles.clear();
+        Arrays.fill(mEdgeSlots, null);
+        Arrays.fill(mFaceSlots, null);
+        mEdgeIndex.clear();
+        mEdgeGrid.clear();
+        mLastFace = HandleTable.NONE;
+        for (Vertex v : mVertices) {
+            mVertexHe[v.mId] = HandleTable.NONE;
+            v.mDegree = 0;
+            v.mRing.clear();
+            markDirty(v);
+        }
+        mSizeTotal = mDegreeTotal = mConnectedVertices = 0;
+        addFace(); // outerFace
+    }
+    /**
+     * Add the n edges from[i] to[i] to a mesh that has none, and link them up in one pass
+     * instead of splitting a face for each. The edges must not cross and must all be
+     * connected, isolated vertices aside. Returns the halfedge from from[i] to to[i] for each.
+     */
+    protected HalfEdge[] buildEdges(Vertex[] from, Vertex[] to, int n) {
+        if (mJournal.isRecording()) throw new AssertionError("buildEdges in a transaction");
+        if (!mEdges.isEmpty()) throw new AssertionError("buildEdges on a mesh with edges");
+        Face outerFace = mFaces.get(0);
+        HalfEdge[] hes = new HalfEdge[n];
+        for (int i = 0; i < n; i++) {
+            HalfEdge he1 = addHalfEdge(from[i], to[i], outerFace);
+            HalfEdge he2 = addHalfEdge(to[i], from[i], outerFace);
+            setOpposite(he1, he2);
+            setOpposite(he2, he1);
+            setDegree(from[i], from[i].mDegree + 1);
+            setDegree(to[i], to[i].mDegree + 1);
+            hes[i] = he1;
+        }
+        // The rings are sorted now. Coming into a vertex, a loop leaves by the next edge
+        // counterclockwise from the one it came in by.
+        for (Vertex v : mVertices) {
+            ArrayList<HalfEdge> ring = v.mRing;
+            for (int k = 0; k < ring.size(); k++) {
+                setNext(ring.get(k).opposite(), ring.get((k + 1) % ring.size()));
+            }
+        }
+        // Each loop is a face. Only the outer boundary doesn't wind like an inner face.
+        boolean[] traced = new boolean[mEdges.size()];
+        boolean outerTraced = false;
+        for (int i = 0; i < traced.length; i++) {
+            if (traced[i]) continue;
+            HalfEdge start = mEdges.get(i);
+            double cross = 0;
+            for (HalfEdge he : mLoopCursor.loop(start)) {
+                Vertex p = he.opposite().vertex();
+                Vertex q = he.vertex();
+                cross += (double) p.x() * q.y() - (double) q.x() * p.y();
+                traced[he.mId] = true;
+            }
+            Face f = outerFace;
+            if (cross < 0) {
+                f = addFace();
+            } else if (outerTraced) {
+                throw new AssertionError("buildEdges on edges that are not connected");
+            }
+            outerTraced |= f == outerFace;
+            int size = 0;
+            for (HalfEdge he : mLoopCursor.loop(start)) {
+                setFace(he, f);
+                size++;
+            }
+            setHe(f, start);
+            setSize(f, size);
+            measure(f, start);
+            mFaceIndex.update(f);
+        }
+        return hes;
+    }
+
+    protected void markDirty(HalfEdge he) {
+        if (he.mDirty) return;
+        he.mDirty = true;
+        mDirtyEdges.add(he);
+    }
+    protected void markDirty(Vertex v) {
+        if (v.mDirty) return;
+        v.mDirty = true;
+        mDirtyVertices.add(v);
+    }
+    protected void markDirty(Face f) {
+        if (f.mDirty) return;
+        f.mDirty = true;
+        mDirtyFaces.add(f);
+    }
+
+    /**
+     * Start a transaction. Until it is committed or rolled back every write the primitives
+     * make is recorded in the journal, and validation is deferred so a composite operation
+     * can pass through invalid states. Transactions can't be nested.
+     */
+    public void beginTransaction() {
+        mJournal.begin();
+    }
+    public boolean inTransaction() {
+        return mJournal.isRecording();
+    }
+    /**
+     * Keep the changes made since beginTransaction and validate them once.
+     */
+    public void commitTransaction() {
+        if (isInPieces()) throw new AssertionError("Committing a mesh in "
+                + (mDetached.size() + 1) + " pieces");
+        mJournal.end();
+        forgetSavedMetrics();
+        validateTransaction();
+    }
+    /**
+     * Undo every change made since beginTransaction, in O(changes). The mesh is left exactly
+     * as it was, ids and handles included.
+     */
+    public void rollbackTransaction() {
+        for (int i = mJournal.size() - 1; i >= 0; i--) {
+            undo(mJournal, i);
+        }
+        mJournal.end();
+        // Only the faces whose box changed, or that came or went, need a new place in the index
+        for (Face f : mSavedFaces) {
+            if (inMesh(f)) mFaceIndex.update(f);
+            else mFaceIndex.remove(f);
+        }
+        forgetSavedMetrics();
+        validateTransaction();
+    }
+    /**
+     * Start a new detached loop at he, for an edge added between two isolated vertices into a
+     * face that already has a loop. Only allowed in a transaction.
+     */
+    protected void detachLoop(HalfEdge he) {
+        if (!mJournal.isRecording()) throw new AssertionError("Detached loop outside a "
+                + "transaction: " + he.toString());
+        listAdd(mDetached, he);
+    }
+    /**
+     * True while the open transaction has left the mesh in more than one piece, see
+     * deleteEdge. It has to be joined up again or rolled back.
+     */
+    public boolean isInPieces() {
+        return !mDetached.isEmpty();
+    }
+    private void forgetSavedMetrics() {
+        for (Face f : mSavedFaces) f.mSaved = false;
+        mSavedFaces.clear();
+    }
+    protected void validateTransaction() {
+        validateMesh();
+    }
+
+    // Journal op codes. Subclasses start their own at OP_SUBCLASS.
+    private static final int OP_NEXT = 0;
+    private static final int OP_OPPOSITE = 1;
+    private static final int OP_EDGE_VERTEX = 2;
+    private static final int OP_EDGE_FACE = 3;
+    private static final int OP_EDGE_ANGLE = 4;
+    private static final int OP_EDGE_ID = 5;
+    private static final int OP_VERTEX_HE = 6;
+    private static final int OP_VERTEX_DEGREE = 7;
+    private static final int OP_VERTEX_ID = 8;
+    private static final int OP_FACE_HE = 9;
+    private static final int OP_FACE_SIZE = 10;
+    private static final int OP_FACE_ID = 11;
+    private static final int OP_LIST_ADD = 12;
+    private static final int OP_LIST_REMOVE = 13;
+    private static final int OP_LIST_SET = 14;
+    private static final int OP_INDEX = 15;
+    private static final int OP_HANDLE_ADD = 16;
+    private static final int OP_HANDLE_REMOVE = 17;
+    private static final int OP_HANDLE_EXCHANGE = 18;
+    private static final int OP_EDGE_GRID_ADD = 19;
+    private static final int OP_EDGE_GRID_REMOVE = 20;
+    private static final int OP_VERTEX_POINT = 21;
+    private static final int OP_FACE_METRICS = 22;
+    protected static final int OP_SUBCLASS = 64;
+
+    /**
+     * Restore the write recorded in entry i. Subclasses handle their own op codes and pass the
+     * rest on.
+     */
+    @SuppressWarnings("unchecked")
+    protected void undo(Journal j, int i) {
+        Object target = j.target(i);
+        switch (j.op(i)) {
+            case OP_NEXT:
+                mEdgeNext[j.a(i)] = j.b(i);
+                markDirty((HalfEdge) target);
+                break;
+            case OP_OPPOSITE:
+                mEdgeOpposite[j.a(i)] = j.b(i);
+                markDirty((HalfEdge) target);
+                break;
+            case OP_EDGE_VERTEX:
+                mEdgeVertex[j.a(i)] = j.b(i);
+                markDirty((HalfEdge) target);
+                break;
+            case OP_EDGE_FACE:
+                mEdgeFace[j.a(i)] = j.b(i);
+                markDirty((HalfEdge) target);
+                break;
+            case OP_EDGE_ANGLE:
+                ((HalfEdge) target).mAngle = Float.intBitsToFloat(j.a(i));
+                break;
+            case OP_EDGE_ID:
+                ((HalfEdge) target).mId = j.a(i);
+                markDirty((HalfEdge) target);
+                break;
+            case OP_VERTEX_HE:
+                mVertexHe[j.a(i)] = j.b(i);
+                markDirty((Vertex) target);
+                break;
+            case OP_VERTEX_DEGREE:
+                countDegree(((Vertex) target).mDegree, j.a(i));
+                ((Vertex) target).mDegree = j.a(i);
+                markDirty((Vertex) target);
+                break;
+            case OP_VERTEX_ID:
+                ((Vertex) target).mId = j.a(i);
+                markDirty((Vertex) target);
+                break;
+            case OP_VERTEX_POINT:
+                mVertexX[j.a(i)] = Float.intBitsToFloat(j.b(i));
+                mVertexY[j.a(i)] = Float.intBitsToFloat(j.c(i));
+                markDirty((Vertex) target);
+                break;
+            case OP_FACE_HE:
+                mFaceHe[j.a(i)] = j.b(i);
+                markDirty((Face) target);
+                break;
+            case OP_FACE_SIZE:
+                mSizeTotal += j.a(i) - ((Face) target).mSize;
+                ((Face) target).mSize = j.a(i);
+                markDirty((Face) target);
+                break;
+            case OP_FACE_ID:
+                ((Face) target).mId = j.a(i);
+                markDirty((Face) target);
+                break;
+            case OP_FACE_METRICS: {
+                Face f = (Face) target;
+                double[] saved = (double[]) j.value(i);
+                f.mCross = saved[0];
+                f.mMomentX = saved[1];
+                f.mMomentY = saved[2];
+                f.mCrossMagnitude = saved[3];
+                f.mMomentMagnitude = saved[4];
+                f.mMinX = (float) saved[5];
+                f.mMinY = (float) saved[6];
+                f.mMaxX = (float) saved[7];
+                f.mMaxY = (float) saved[8];
+                markDirty(f);
+                break;
+            }
+            case OP_LIST_ADD:
+                ((ArrayList<Object>) target).remove(j.a(i));
+                break;
+            case OP_LIST_REMOVE:
+                ((ArrayList<Object>) target).add(j.a(i), j.value(i));
+                markElementDirty(j.value(i));
+                break;
+            case OP_LIST_SET:
+                ((ArrayList<Object>) target).set(j.a(i), j.value(i));
+                markElementDirty(j.value(i));
+                break;
+            case OP_INDEX:
+                if (j.c(i) == PairIndex.NONE) ((PairIndex) target).remove(j.a(i), j.b(i));
+                else ((PairIndex) target).put(j.a(i), j.b(i), j.c(i));
+                break;
+            case OP_HANDLE_ADD:
+                ((HandleTable) target).undoAdd(j.a(i) != 0);
+                break;
+            case OP_HANDLE_REMOVE:
+                ((HandleTable) target).undoRemove(j.a(i), j.b(i));
+                if (j.value(i) != null) addToSlots(j.value(i));
+                break;
+            case OP_HANDLE_EXCHANGE:
+                ((HandleTable) target).exchange(j.a(i), j.b(i));
+                break;
+            case OP_EDGE_GRID_ADD: {
+                HalfEdge he = (HalfEdge) target;
+                Vertex from = (Vertex) j.value(i);
+                Vertex to = he.vertex();
+                mEdgeGrid.remove(he.mHandle, from.x(), from.y(), to.x(), to.y());
+                break;
+            }
+            case OP_EDGE_GRID_REMOVE: {
+                HalfEdge he = (HalfEdge) target;
+                Vertex from = (Vertex) j.value(i);
+                Vertex to = he.vertex();
+                mEdgeGrid.add(he.mHandle, from.x(), from.y(), to.x(), to.y());
+                he.mSegment.set(from.x(), from.y(), to.x(), to.y());
+                break;
+            }
+            default:
+                throw new AssertionError("Unknown journal op " + j.op(i));
+        }
+    }
+    // Elements put back into a list by undo may have neighbours that changed around them
+    protected void markElementDirty(Object o) {
+        if (o instanceof HalfEdge) markDirty((HalfEdge) o);
+        else if (o instanceof Vertex) markDirty((Vertex) o);
+        else if (o instanceof Face) markDirty((Face) o);
+    }
+
+    // Journaled writes. Everything the primitives change goes through these, so an open
+    // transaction can put it back. Outside a transaction they are plain writes.
+    protected void setNext(HalfEdge he, HalfEdge next) {
+        writeEdge(OP_NEXT, mEdgeNext, he, handle(next));
+    }
+    protected void setOpposite(HalfEdge he, HalfEdge opposite) {
+        writeEdge(OP_OPPOSITE, mEdgeOpposite, he, handle(opposite));
+    }
+    protected void setVertex(HalfEdge he, Vertex v) {
+        writeEdge(OP_EDGE_VERTEX, mEdgeVertex, he, v.mHandle);
+    }
+    protected void setFace(HalfEdge he, Face f) {
+        writeEdge(OP_EDGE_FACE, mEdgeFace, he, f.mHandle);
+    }
+    private void setAngle(HalfEdge he, float angle) {
+        mJournal.record(OP_EDGE_ANGLE, he, Float.floatToRawIntBits(he.mAngle));
+        he.mAngle = angle;
+    }
+    private void setId(HalfEdge he, int id) {
+        mJournal.record(OP_EDGE_ID, he, he.mId);
+        he.mId = id;
+    }
+    protected void setHe(Vertex v, HalfEdge he) {
+        mJournal.record(OP_VERTEX_HE, v, null, v.mId, mVertexHe[v.mId], 0);
+        mVertexHe[v.mId] = handle(he);
+    }
+    protected void setDegree(Vertex v, int degree) {
+        mJournal.record(OP_VERTEX_DEGREE, v, v.mDegree);
+        countDegree(v.mDegree, degree);
+        v.mDegree = degree;
+    }
+    private void countDegree(int from, int to) {
+        mDegreeTotal += to - from;
+        if (from == 0 && to > 0) mConnectedVertices++;
+        else if (from > 0 && to == 0) mConnectedVertices--;
+    }
+    private void setId(Vertex v, int id) {
+        mJournal.record(OP_VERTEX_ID, v, v.mId);
+        v.mId = id;
+    }
+    private void setPoint(Vertex v, float x, float y) {
+        mJournal.record(OP_VERTEX_POINT, v, null, v.mId, Float.floatToRawIntBits(mVertexX[v.mId]),
+                Float.floatToRawIntBits(mVertexY[v.mId]));
+        mVertexX[v.mId] = x;
+        mVertexY[v.mId] = y;
+    }
+    protected void setHe(Face f, HalfEdge he) {
+        mJournal.record(OP_FACE_HE, f, null, f.mId, mFaceHe[f.mId], 0);
+        mFaceHe[f.mId] = handle(he);
+    }
+    // Links are written to the row of their element, and journaled by row since the element
+    // may have another id by the time they are undone
+    private void writeEdge(int op, int[] column, HalfEdge he, int value) {
+        mJournal.record(op, he, null, he.mId, column[he.mId], 0);
+        column[he.mId] = value;
+    }
+    private static int handle(HalfEdge he) {
+        return he == null ? HandleTable.NONE : he.mHandle;
+    }
+    // The last element took the id of a removed one, its row moves along
+    private void moveRow(HalfEdge he, int from) {
+        writeEdge(OP_EDGE_VERTEX, mEdgeVertex, he, mEdgeVertex[from]);
+        writeEdge(OP_NEXT, mEdgeNext, he, mEdgeNext[from]);
+        writeEdge(OP_OPPOSITE, mEdgeOpposite, he, mEdgeOpposite[from]);
+        writeEdge(OP_EDGE_FACE, mEdgeFace, he, mEdgeFace[from]);
+    }
+    private void moveRow(Vertex v, int from) {
+        setPoint(v, mVertexX[from], mVertexY[from]);
+        mJournal.record(OP_VERTEX_HE, v, null, v.mId, mVertexHe[v.mId], 0);
+        mVertexHe[v.mId] = mVertexHe[from];
+    }
+    private void moveRow(Face f, int from) {
+        mJournal.record(OP_FACE_HE, f, null, f.mId, mFaceHe[f.mId], 0);
+        mFaceHe[f.mId] = mFaceHe[from];
+    }
+    protected void setSize(Face f, int size) {
+        mJournal.record(OP_FACE_SIZE, f, f.mSize);
+        mSizeTotal += size - f.mSize;
+        f.mSize = size;
+    }
+    private void setId(Face f, int id) {
+        mJournal.record(OP_FACE_ID, f, f.mId);
+        f.mId = id;
+    }
+    // The metrics of a face change by many small steps, so they are journaled as a whole,
+    // once per transaction, before the first of them
+    private void saveMetrics(Face f) {
+        if (!mJournal.isRecording() || f.mSaved) return;
+        f.mSaved = true;
+        mSavedFaces.add(f);
+        mJournal.record(OP_FACE_METRICS, f, new double[] {f.mCross, f.mMomentX, f.mMomentY,
+                f.mCrossMagnitude, f.mMomentMagnitude, f.mMinX, f.mMinY, f.mMaxX, f.mMaxY});
+    }
+    protected <T> void listAdd(ArrayList<T> list, T element) {
+        listInsert(list, list.size(), element);
+    }
+    protected <T> void listInsert(ArrayList<T> list, int index, T element) {
+        mJournal.record(OP_LIST_ADD, list, index);
+        list.add(index, element);
+    }
+    protected <T> T listRemove(ArrayList<T> list, int index) {
+        T element = list.remove(index);
+        mJournal.record(OP_LIST_REMOVE, list, element, index, 0, 0);
+        return element;
+    }
+    protected <T> boolean listRemove(ArrayList<T> list, T element) {
+        int index = list.indexOf(element);
+        if (index < 0) return false;
+        listRemove(list, index);
+        return true;
+    }
+    protected <T> void listSet(ArrayList<T> list, int index, T element) {
+        T old = list.set(index, element);
+        mJournal.record(OP_LIST_SET, list, old, index, 0, 0);
+    }
+    protected void indexPut(PairIndex index, int a, int b, int value) {
+        if (mJournal.isRecording()) mJournal.record(OP_INDEX, index, null, a, b, index.get(a, b));
+        index.put(a, b, value);
+    }
+    protected int indexRemove(PairIndex index, int a, int b) {
+        int old = index.remove(a, b);
+        if (old != PairIndex.NONE) mJournal.record(OP_INDEX, index, null, a, b, old);
+        return old;
+    }
+    protected int handleAdd(HandleTable table) {
+        mJournal.record(OP_HANDLE_ADD, table, table.nextAddReusesSlot() ? 1 : 0);
+        return table.add();
+    }
+    protected void handleRemove(HandleTable table, int id) {
+        handleRemove(table, id, null);
+    }
+    // element, if given, goes back into its slot when the remove is undone
+    private void handleRemove(HandleTable table, int id, Object element) {
+        int handle = table.handleOf(id);
+        table.remove(id);
+        mJournal.record(OP_HANDLE_REMOVE, table, element, id, handle, 0);
+    }
+    protected void handleExchange(HandleTable table, int i, int j) {
+        table.exchange(i, j);
+        mJournal.record(OP_HANDLE_EXCHANGE, table, null, i, j, 0);
+    }
+    // A halfedge is in the grid under the segment from its start vertex to vertex(), so it
+    // has to be taken out before either end changes and put back after. Its cached segment
+    // is refreshed along with it.
+    private void addToGrid(HalfEdge he, Vertex from) {
+        Vertex to = he.vertex();
+        mEdgeGrid.add(he.mHandle, from.x(), from.y(), to.x(), to.y());
+        he.mSegment.set(from.x(), from.y(), to.x(), to.y());
+        mJournal.record(OP_EDGE_GRID_ADD, he, from);
+    }
+    private void removeFromGrid(HalfEdge he, Vertex from) {
+        Vertex to = he.vertex();
+        mEdgeGrid.remove(he.mHandle, from.x(), from.y(), to.x(), to.y());
+        mJournal.record(OP_EDGE_GRID_REMOVE, he, from);
+    }
+
     public HalfEdge splitFace(Face f1, Vertex v1, Vertex v2) {
         /*** Assertions ***/
         validateMesh(); // valid mesh
-        if (!f1.touchesVertex(v1))
-            throw new AssertionError(v1.toString() + " does not touch " + f1.toString());
-        if (!f1.touchesVertex(v2))
-            throw new AssertionError(v2.toString() + " does not touch " + f1.toString());
         // edge(v1, v2) does not intersect any existing edges
         if (edgeBetweenVertices(v1, v2) != null)
             throw new AssertionError(v1.toString() + " and " + v2.toString() + " are already " +
                     "connected by an edge: " + edgeBetweenVertices(v1, v2).toString());
         /*** ***/
 
-        Face f2 = addFace();
-        HalfEdge he1 = addHalfEdge(v1, v2, f1);
-        HalfEdge he2 = addHalfEdge(v2, v1, f2);
-        he1.mOpposite = he2;
-        he2.mOpposite = he1;
-        // Find previous edges and set all next fields appropriately
-        HalfEdge he1_prev = findPreviousEdgeOnFace(v1, v2.mP, f1);
-        HalfEdge he2_prev = findPreviousEdgeOnFace(v2, v1.mP, f1);
+        // Find previous edges while the loop of f1 is still whole, i.e before the new edges
+        // exist, then set all next fields appropriately
+        HalfEdge he1_prev = findPreviousEdgeOnFace(v1, v2.x(), v2.y(), f1);
+        HalfEdge he2_prev = findPreviousEdgeOnFace(v2, v1.x(), v1.y(), f1);
         if (he1_prev == null)
             throw new AssertionError("he1_prev is null. Nothing was caught in the assumptions so " +
                     "there is probably a bug in the splitFace function.");
         if (he2_prev == null)
             throw new AssertionError("he2_prev is null. Nothing was caught in the assumptions so " +
                     "there is probably a bug in the splitFace function.");
+        if (he1_prev.face() != f1)
+            throw new AssertionError(v1.toString() + " does not touch " + f1.toString());
+        if (he2_prev.face() != f1)
+            throw new AssertionError(v2.toString() + " does not touch " + f1.toString());
+        // While the mesh is in pieces the two ends may be on different loops of f1, and the
+        // edge joins them instead of splitting the face
+        int loop1 = detachedIndex(he1_prev);
+        int loop2 = detachedIndex(he2_prev);
+        boolean join = loop1 != loop2;
 
-        he2.mNext = he1_prev.mNext;
-        he1.mNext = he2_prev.mNext;
-        he1_prev.mNext = he1;
-        he2_prev.mNext = he2;
-        f1.mHe = he1;
-        f2.mHe = he2;
-        // Fix which edge the faces point to if necessary.
-        // As far as I can see, we only care for drawing purposes...
-        if (f1.isOuterFace() && !f1.containsFace(f2)) {
-            f1.mHe = he2;
-            f2.mHe = he1;
-        }
-        // set faces for all edges
-        for (HalfEdge he : f1.getEdges()) {
-            he.mFace = f1;
-        }
-        for (HalfEdge he : f2.getEdges()) {
-            he.mFace = f2;
+        Face f2 = join ? f1 : addFace();
+        HalfEdge he1 = addHalfEdge(v1, v2, f1);
+        HalfEdge he2 = addHalfEdge(v2, v1, f2);
+        setOpposite(he1, he2);
+        setOpposite(he2, he1);
+        setDegree(v1, v1.mDegree + 1);
+        setDegree(v2, v2.mDegree + 1);
+        setNext(he2, he1_prev.next());
+        setNext(he1, he2_prev.next());
+        setNext(he1_prev, he1);
+        setNext(he2_prev, he2);
+        markDirty(he1_prev);
+        markDirty(he2_prev);
+        markDirty(v2);
+        if (join) {
+            // The two halves of the new edge cancel and both ends were in the box already
+            setSize(f1, f1.mSize + 2);
+            listRemove(mDetached, loop2 >= 0 ? loop2 : loop1);
+            validateMesh();
+            return he1;
+        }
+        if (mDetached.isEmpty()) {
+            setHe(f1, he1);
+            setHe(f2, he2);
+            // f2 gets the metrics of the loop through he2 and f1 keeps the rest. The two halves
+            // of the new edge cancel, so nothing else has to be walked.
+            measure(f2, he2);
+            saveMetrics(f1);
+            f1.mCross -= f2.mCross;
+            f1.mMomentX -= f2.mMomentX;
+            f1.mMomentY -= f2.mMomentY;
+            f1.mCrossMagnitude += f2.mCrossMagnitude;
+            f1.mMomentMagnitude += f2.mMomentMagnitude;
+            // The outer face has to keep the loop that winds the outer way.
+            // As far as I can see, we only care for drawing purposes...
+            if (f1.isOuterFace() && !f2.windsLikeInnerFace()) {
+                setHe(f1, he2);
+                setHe(f2, he1);
+                exchangeMetrics(f1, f2);
+                mFaceIndex.update(f1);
+            }
+        } else {
+            // The metrics of f1 hold its other loops too, so they can't be swapped with those
+            // of f2. Pick the loop f2 gets first. Like the outer face, a detached loop keeps
+            // the part that winds the outer way.
+            HalfEdge inner = he2;
+            if ((f1.isOuterFace() || loop1 >= 0) && loopCross(he2) >= 0) inner = he1;
+            HalfEdge rest = inner == he1 ? he2 : he1;
+            if (loop1 < 0) setHe(f1, rest);
+            else listSet(mDetached, loop1, rest);
+            setHe(f2, inner);
+            measure(f2, inner);
+            saveMetrics(f1);
+            f1.mCross -= f2.mCross;
+            f1.mMomentX -= f2.mMomentX;
+            f1.mMomentY -= f2.mMomentY;
+            f1.mCrossMagnitude += f2.mCrossMagnitude;
+            f1.mMomentMagnitude += f2.mMomentMagnitude;
+        }
+        mFaceIndex.update(f2);
+        // set faces and sizes for all edges. f1 only gained one of the new halfedges.
+        int size = 0;
+        for (HalfEdge he : mLoopCursor.loop(f2)) {
+            if (he.face() != f2) setFace(he, f2);
+            size++;
+        }
+        setSize(f2, size);
+        HalfEdge rest = f2.he() == he2 ? he1 : he2;
+        if (rest.face() != f1) setFace(rest, f1);
+        setSize(f1, f1.mSize + 2 - size);
+        // Loops of f1 that the new face closed around go with it
+        for (int i = 0; i < mDetached.size(); i++) {
+            HalfEdge d = mDetached.get(i);
+            if (i == loop1 || d.face() != f1) continue;
+            if (loopContainsPoint(f2.he(), d.vertex().x(), d.vertex().y())) moveLoop(d, f2);
         }
         validateMesh();
         return he1;
@@ -250,105 +1011,247 @@ public class Mesh {
         if (edgeBetweenVertices(v1, v2) == null) { return null; }
         Vertex v3 = addVertex(p);
         HalfEdge he1 = edgeBetweenVertices(v1, v2);
-        HalfEdge he2 = he1.mOpposite;
-        HalfEdge he3 = addHalfEdge(v3, v2, he1.mFace);
-        HalfEdge he4 = addHalfEdge(v3, v1, he2.mFace);
+        HalfEdge he2 = he1.opposite();
+        indexRemove(mEdgeIndex, v1.mHandle, v2.mHandle);
+        indexRemove(mEdgeIndex, v2.mHandle, v1.mHandle);
+        // p splits each side of the edge in two
+        addTerms(he1.face(), v1, v2, -1);
+        addTerms(he1.face(), v1, v3, 1);
+        addTerms(he1.face(), v3, v2, 1);
+        addTerms(he2.face(), v2, v1, -1);
+        addTerms(he2.face(), v2, v3, 1);
+        addTerms(he2.face(), v3, v1, 1);
+        HalfEdge he3 = addHalfEdge(v3, v2, he1.face());
+        HalfEdge he4 = addHalfEdge(v3, v1, he2.face());
         // Set Vertex for split edges
-        he1.mVertex = v3;
-        he2.mVertex = v3;
+        removeFromGrid(he1, v1);
+        removeFromGrid(he2, v2);
+        setVertex(he1, v3);
+        setVertex(he2, v3);
+        addToGrid(he1, v1);
+        addToGrid(he2, v2);
+        indexPut(mEdgeIndex, v1.mHandle, v3.mHandle, he1.mHandle);
+        indexPut(mEdgeIndex, v2.mHandle, v3.mHandle, he2.mHandle);
         // Set Next for edges
-        he3.mNext = he1.mNext;
-        he1.mNext = he3;
-        he4.mNext = he2.mNext;
-        he2.mNext = he4;
+        setNext(he3, he1.next());
+        setNext(he1, he3);
+        setNext(he4, he2.next());
+        setNext(he2, he4);
         // Set opposite for edges
-        he1.mOpposite = he4;
-        he4.mOpposite = he1;
-        he3.mOpposite = he2;
-        he2.mOpposite = he3;
+        setOpposite(he1, he4);
+        setOpposite(he4, he1);
+        setOpposite(he3, he2);
+        setOpposite(he2, he3);
+        // v3 sits on the old edge, so each side of it gained one halfedge
+        setDegree(v3, 2);
+        setSize(he1.face(), he1.face().mSize + 1);
+        setSize(he2.face(), he2.face().mSize + 1);
+        growBounds(he1.face(), p.x, p.y, p.x, p.y);
+        growBounds(he2.face(), p.x, p.y, p.x, p.y);
+        markDirty(he1);
+        markDirty(he2);
+        markDirty(v1);
+        markDirty(v2);
         validateMesh();
         return v3;
     }
 
-    public void deleteEdge(HalfEdge he1) {
+    /**
+     * Delete the edge of he1 and its opposite. Returns false with nothing changed if the edge
+     * is all that holds two parts of the mesh together, unless a transaction is open. Then
+     * the mesh is left in pieces, see isInPieces, for a later edge to join up again.
+     */
+    public boolean deleteEdge(HalfEdge he1) {
         if (he1 == null) {
-            return;
+            return false;
         }
         validateMesh();
-        if (he1.mFace.mId > he1.mOpposite.mFace.mId) {
-            he1 = he1.mOpposite; // switch so that f1 < f2 (i.e f2 not outer face)
+        if (he1.face().mId > he1.opposite().face().mId) {
+            he1 = he1.opposite(); // switch so that f1 < f2 (i.e f2 not outer face)
+        }
+        HalfEdge he2 = he1.opposite();
+        Face f1 = he1.face();
+        Face f2 = he2.face();
+        Vertex v1 = he1.vertex();
+        Vertex v2 = he2.vertex();
+        boolean bridge = f1 == f2 && v1.mDegree > 1 && v2.mDegree > 1;
+        if (bridge && !mJournal.isRecording()) {
+            Log.i(TAG, "Not creating two connected components. Skip delete Edge");
+            return false;
         }
-        HalfEdge he2 = he1.mOpposite;
-        Face f1 = he1.mFace;
-        Face f2 = he2.mFace;
-        Vertex v1 = he1.mVertex;
-        Vertex v2 = he2.mVertex;
 
         HalfEdge he1_prev = findPreviousEdgeOnFace(he1, f1);
         HalfEdge he2_prev = findPreviousEdgeOnFace(he2, f2);
+        int loop1 = detachedIndex(he1);
+        int loop2 = f1 == f2 ? loop1 : detachedIndex(he2);
+        HalfEdge f2He = f2.he();
 
         // Nothing has been changed at this point
 
         if (f1.mId != f2.mId) { // Edge used to split two faces
             // Reset all edge faces and remove f2
-            for (HalfEdge he : f2.getEdges()) {
-                he.mFace = f1;
+            for (HalfEdge he : mLoopCursor.loop(f2)) {
+                setFace(he, f1);
             }
+            for (int i = 0; i < mDetached.size(); i++) {
+                HalfEdge d = mDetached.get(i);
+                if (d.face() != f2) continue;
+                for (HalfEdge he : mLoopCursor.loop(d)) setFace(he, f1);
+            }
+            setSize(f1, f1.mSize + f2.mSize);
+            growBounds(f1, f2.mMinX, f2.mMinY, f2.mMaxX, f2.mMaxY);
+            // he1 and he2 cancel, so f1 just takes on the sums of f2
+            saveMetrics(f1);
+            f1.mCross += f2.mCross;
+            f1.mMomentX += f2.mMomentX;
+            f1.mMomentY += f2.mMomentY;
+            f1.mCrossMagnitude += f2.mCrossMagnitude;
+            f1.mMomentMagnitude += f2.mMomentMagnitude;
             removeFace(f2);
-        } else if (v1.getOutEdges().size() > 1 && v2.getOutEdges().size() > 1) {
-            Log.i(TAG, "Not creating two connected components. Skip delete Edge");
-            return;
         }
+        setSize(f1, f1.mSize - 2);
+        setDegree(v1, v1.mDegree - 1);
+        setDegree(v2, v2.mDegree - 1);
+        ringRemove(v2, he1);
+        ringRemove(v1, he2);
+        markDirty(v1);
+        markDirty(v2);
+        markDirty(f1);
 
         // remove potential pointers from vertex
-        v1.mHe = he1.mNext.mId == he2.mId ? null : he1.mNext;
-        v2.mHe = he2.mNext.mId == he1.mId ? null : he2.mNext;
+        setHe(v1, he1.next().mId == he2.mId ? null : he1.next());
+        setHe(v2, he2.next().mId == he1.mId ? null : he2.next());
 
-        for (HalfEdge he : f1.getEdges()) {
+        HalfEdge fHe = null;
+        for (HalfEdge he : mLoopCursor.loop(f1)) {
             if (he.mId != he1.mId && he.mId != he2.mId) {
-                f1.mHe = he;
+                fHe = he;
                 break;
+            }
+        }
+        setHe(f1, fHe);
+        if (fHe == null) {
+            int i = detachedIndexOf(f1);
+            if (i >= 0) {
+                // The loop that is left bounds the face now
+                setHe(f1, listRemove(mDetached, i));
             } else {
-                f1.mHe = null;
+                // An empty loop sums to exactly zero, whatever rounding the old terms left
+                measure(f1, null);
+                mFaceIndex.update(f1);
             }
         }
 
         // reset next edges and potential pointers to edges, then remove edges
-        he1_prev.mNext = he2.mNext;
-        he2_prev.mNext = he1.mNext;
+        setNext(he1_prev, he2.next());
+        setNext(he2_prev, he1.next());
+        markDirty(he1_prev);
+        markDirty(he2_prev);
 
-        removeEdge(he1);
-        removeEdge(he2);
+        // Whichever of the prevs is left is on the loop he1 was on
+        HalfEdge left = he1_prev != he2 ? he1_prev : he2_prev != he1 ? he2_prev : null;
+        if (bridge) {
+            // The loop falls in two, one through each prev. Only one of them can bound an
+            // inner face, the one the other is inside of.
+            if (loop1 >= 0) {
+                listSet(mDetached, loop1, he1_prev);
+                listAdd(mDetached, he2_prev);
+            } else if (f1.isOuterFace() || loopContainsPoint(he1_prev, v1.x(), v1.y())) {
+                setHe(f1, he1_prev);
+                listAdd(mDetached, he2_prev);
+            } else {
+                setHe(f1, he2_prev);
+                listAdd(mDetached, he1_prev);
+            }
+        } else if (loop2 >= 0 && f1 != f2) {
+            // The loop of f1 was a hole in f2, so the joined loop is a hole of the joined face
+            setHe(f1, f2He);
+            listSet(mDetached, loop2, left);
+        } else if (loop1 >= 0) {
+            if (left == null) listRemove(mDetached, loop1);
+            else listSet(mDetached, loop1, left);
+        }
+
+        removeEdge(he1, v2);
+        removeEdge(he2, v1);
         validateMesh();
+        return true;
     }
     public void deleteVertex(Vertex v) {
-        if (v.getOutEdges().size() == 0) {
+        if (v.mDegree == 0) {
             removeVertex(v);
             return;
         }
     }
+    // Only an isolated vertex can move, the edges of any other would have to be rebuilt
+    public void moveVertex(Vertex v, Point p) {
+        if (!v.isIsolated())
+            throw new AssertionError(v.toString() + " can't move while it has edges");
+        setPoint(v, p.x, p.y);
+        markDirty(v);
+    }
     public HalfEdge contractVertex(Vertex v) {
-        ArrayList<HalfEdge> hes = v.getOutEdges();
-        if (hes.size() != 2) return null;
+        if (v.mDegree != 2) return null;
         validateMesh();
-        HalfEdge he1 = hes.get(0);
-        HalfEdge he2 = hes.get(1);
+        HalfEdge he1 = v.he();
+        HalfEdge he2 = he1.opposite().next();
+        HalfEdge in1 = he1.opposite(); // the halfedges into v go
+        HalfEdge in2 = he2.opposite();
 
-        HalfEdge he1_opp_prev = findPreviousEdgeOnFace(he1.mOpposite, he1.mOpposite.mFace);
-        HalfEdge he2_opp_prev = findPreviousEdgeOnFace(he2.mOpposite, he2.mOpposite.mFace);
+        HalfEdge he1_opp_prev = findPreviousEdgeOnFace(he1.opposite(), he1.opposite().face());
+        HalfEdge he2_opp_prev = findPreviousEdgeOnFace(he2.opposite(), he2.opposite().face());
 
-        removeEdge(he1.mOpposite);
-        removeEdge(he2.mOpposite);
-        he1_opp_prev.mNext = he2;
-        he2_opp_prev.mNext = he1;
+        // Each side swaps the two halfedges through v for one that skips it
+        Vertex a = he1.vertex();
+        Vertex b = he2.vertex();
+        addTerms(he1.face(), b, v, -1);
+        addTerms(he1.face(), v, a, -1);
+        addTerms(he1.face(), b, a, 1);
+        addTerms(he2.face(), a, v, -1);
+        addTerms(he2.face(), v, b, -1);
+        addTerms(he2.face(), a, b, 1);
 
-        he1.mOpposite = he2;
-        he2.mOpposite = he1;
-        he1.mVertex.mHe = he2;
-        he2.mVertex.mHe = he1;
+        // he1 and he2 will start from the other side instead of v
+        indexRemove(mEdgeIndex, v.mHandle, he1.vertex().mHandle);
+        indexRemove(mEdgeIndex, v.mHandle, he2.vertex().mHandle);
+        removeFromGrid(he1, v);
+        removeFromGrid(he2, v);
+        ringRemove(he1.vertex(), he1.opposite());
+        ringRemove(he2.vertex(), he2.opposite());
+        while (!v.mRing.isEmpty()) listRemove(v.mRing, v.mRing.size() - 1);
+        removeEdge(in1, he1.vertex());
+        removeEdge(in2, he2.vertex());
+        setNext(he1_opp_prev, he2);
+        setNext(he2_opp_prev, he1);
 
-        he1.mFace.mHe = he1;
-        he2.mFace.mHe = he2;
+        setOpposite(he1, he2);
+        setOpposite(he2, he1);
+        setHe(he1.vertex(), he2);
+        setHe(he2.vertex(), he1);
+        indexPut(mEdgeIndex, he2.vertex().mHandle, he1.vertex().mHandle, he1.mHandle);
+        indexPut(mEdgeIndex, he1.vertex().mHandle, he2.vertex().mHandle, he2.mHandle);
+        addToGrid(he1, he2.vertex());
+        addToGrid(he2, he1.vertex());
+        ringInsert(he2.vertex(), he1);
+        ringInsert(he1.vertex(), he2);
+
+        if (mDetached.isEmpty()) {
+            setHe(he1.face(), he1);
+            setHe(he2.face(), he2);
+        } else {
+            // Either side may be a detached loop, only move what pointed at the removed ones
+            repointLoop(in2, he1);
+            repointLoop(in1, he2);
+        }
+        // Each side loses the halfedge that ended at v
+        setSize(he1.face(), he1.face().mSize - 1);
+        setSize(he2.face(), he2.face().mSize - 1);
+        markDirty(he1);
+        markDirty(he2);
+        markDirty(he1_opp_prev);
+        markDirty(he2_opp_prev);
+        markDirty(he1.vertex());
+        markDirty(he2.vertex());
 
         removeVertex(v);
         validateMesh();
@@ -357,91 +1260,441 @@ public class Mesh {
 
     // TODO: add check that the element is still in the mesh
     private void removeFace(Face f) {
-        Face last = mFaces.remove(mFaces.size() - 1);
+        saveMetrics(f);
+        setSize(f, 0); // its halfedges are counted by the face that took them
+        mFaceIndex.remove(f);
+        handleRemove(mFaceHandles, f.mId, f);
+        mFaceSlots[HandleTable.slotOf(f.mHandle)] = null;
+        Face last = listRemove(mFaces, mFaces.size() - 1);
         if (last.mId == f.mId) {
             return;
         }
-        last.mId = f.mId;
-        mFaces.set(last.mId, last);
+        setId(last, f.mId);
+        listSet(mFaces, last.mId, last);
+        moveRow(last, mFaces.size());
+        markDirty(last);
     }
-    private void removeEdge(HalfEdge he) {
-        HalfEdge last = mEdges.remove(mEdges.size() - 1);
+    // from is where he starts. Its opposite may be gone already.
+    private void removeEdge(HalfEdge he, Vertex from) {
+        // The key may already have been reused by the caller, only drop it if it's still ours
+        Vertex to = he.vertex();
+        if (mEdgeIndex.get(from.mHandle, to.mHandle) == he.mHandle) {
+            indexRemove(mEdgeIndex, from.mHandle, to.mHandle);
+        }
+        removeFromGrid(he, from);
+        handleRemove(mEdgeHandles, he.mId, he);
+        mEdgeSlots[HandleTable.slotOf(he.mHandle)] = null;
+        HalfEdge last = listRemove(mEdges, mEdges.size() - 1);
         if (last.mId == he.mId) {
             return;
         }
-        last.mId = he.mId;
-        mEdges.set(last.mId, last);
+        setId(last, he.mId);
+        listSet(mEdges, last.mId, last);
+        moveRow(last, mEdges.size());
+        markDirty(last);
     }
     private void removeVertex(Vertex v) {
-        Vertex last = mVertices.remove(mVertices.size() - 1);
+        setDegree(v, 0);
+        handleRemove(mVertexHandles, v.mId, v);
+        mVertexSlots[HandleTable.slotOf(v.mHandle)] = null;
+        Vertex last = listRemove(mVertices, mVertices.size() - 1);
         if (last.mId == v.mId) {
             return;
         }
-        last.mId = v.mId;
-        mVertices.set(last.mId, last);
+        setId(last, v.mId);
+        listSet(mVertices, last.mId, last);
+        moveRow(last, mVertices.size());
+        markDirty(last);
     }
 
+    private void addToSlots(Object element) {
+        if (element instanceof HalfEdge) {
+            HalfEdge he = (HalfEdge) element;
+            int slot = HandleTable.slotOf(he.mHandle);
+            if (slot >= mEdgeSlots.length) mEdgeSlots = Arrays.copyOf(mEdgeSlots, 2 * slot);
+            mEdgeSlots[slot] = he;
+        } else if (element instanceof Vertex) {
+            Vertex v = (Vertex) element;
+            int slot = HandleTable.slotOf(v.mHandle);
+            if (slot >= mVertexSlots.length) mVertexSlots = Arrays.copyOf(mVertexSlots, 2 * slot);
+            mVertexSlots[slot] = v;
+        } else {
+            Face f = (Face) element;
+            int slot = HandleTable.slotOf(f.mHandle);
+            if (slot >= mFaceSlots.length) mFaceSlots = Arrays.copyOf(mFaceSlots, 2 * slot);
+            mFaceSlots[slot] = f;
+        }
+    }
+    // Link targets. A handle whose slot has been handed out again since names nothing.
+    HalfEdge edgeAt(int handle) {
+        if (handle == HandleTable.NONE) return null;
+        HalfEdge he = mEdgeSlots[HandleTable.slotOf(handle)];
+        return he != null && he.mHandle == handle ? he : null;
+    }
+    Vertex vertexAt(int handle) {
+        if (handle == HandleTable.NONE) return null;
+        Vertex v = mVertexSlots[HandleTable.slotOf(handle)];
+        return v != null && v.mHandle == handle ? v : null;
+    }
+    Face faceAt(int handle) {
+        if (handle == HandleTable.NONE) return null;
+        Face f = mFaceSlots[HandleTable.slotOf(handle)];
+        return f != null && f.mHandle == handle ? f : null;
+    }
+
+    /**
+     * The element named by a handle, or null if it has been removed since.
+     */
+    public Vertex getVertex(int handle) {
+        int id = mVertexHandles.indexOf(handle);
+        return id == HandleTable.NONE ? null : mVertices.get(id);
+    }
+    public HalfEdge getHalfEdge(int handle) {
+        int id = mEdgeHandles.indexOf(handle);
+        return id == HandleTable.NONE ? null : mEdges.get(id);
+    }
+    public Face getFace(int handle) {
+        int id = mFaceHandles.indexOf(handle);
+        return id == HandleTable.NONE ? null : mFaces.get(id);
+    }
+    /**
+     * Pack the handle tables after many removals. Live handles stay valid.
+     */
+    public void compact() {
+        mVertexHandles.compact();
+        mEdgeHandles.compact();
+        mFaceHandles.compact();
+    }
 
     public HalfEdge edgeBetweenVertices(Vertex v1, Vertex v2) {
-        for (HalfEdge he : v1.getOutEdges()) {
-            if (he.mVertex.mId == v2.mId) return he;
+        int handle = mEdgeIndex.get(v1.mHandle, v2.mHandle);
+        return handle == PairIndex.NONE ? null : getHalfEdge(handle); // null if not connected
+    }
+
+    // Rotation system. Outgoing halfedges are kept sorted by pseudo-angle so the edge a new
+    // direction comes after is a binary search away.
+    private void ringInsert(Vertex v, HalfEdge he) {
+        Vertex to = he.vertex();
+        setAngle(he, Geometry.pseudoAngle(to.x() - v.x(), to.y() - v.y()));
+        listInsert(v.mRing, ringUpperBound(v, he.mAngle), he);
+    }
+    private void ringRemove(Vertex v, HalfEdge he) {
+        int i = ringIndexOf(v, he);
+        if (i < 0) throw new AssertionError(he.toString() + " is not in the ring of "
+                + v.toString());
+        listRemove(v.mRing, i);
+    }
+    private int ringIndexOf(Vertex v, HalfEdge he) {
+        // Several edges can share an angle, search from the first of them
+        ArrayList<HalfEdge> ring = v.mRing;
+        int lo = 0;
+        int hi = ring.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ring.get(mid).mAngle < he.mAngle) lo = mid + 1;
+            else hi = mid;
+        }
+        for (int i = lo; i < ring.size() && ring.get(i).mAngle == he.mAngle; i++) {
+            if (ring.get(i) == he) return i;
         }
-        return null; // No edge between v1 and v2
+        return -1;
+    }
+    // Index of the first edge in the ring with an angle greater than angle
+    private int ringUpperBound(Vertex v, float angle) {
+        ArrayList<HalfEdge> ring = v.mRing;
+        int lo = 0;
+        int hi = ring.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ring.get(mid).mAngle <= angle) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+    // Outgoing edge of v that the direction to (x, y) comes right after, going counterclockwise
+    private HalfEdge ringEdgeBefore(Vertex v, float x, float y) {
+        float angle = Geometry.pseudoAngle(x - v.x(), y - v.y());
+        int i = ringUpperBound(v, angle) - 1;
+        if (i < 0) i = v.mRing.size() - 1; // wrap around
+        return v.mRing.get(i);
     }
-    protected Face faceBetweenPoints(Point... ps) {
-        Point avg = Point.average(ps);
-        for(Face f : mFaces) {
+
+    protected Face faceBetweenPoints(Point p) {
+        return faceBetweenPoints(p.x, p.y);
+    }
+    protected Face faceBetweenPoints(float x, float y) {
+        // Edits are local, so walking over from where the last search ended usually only
+        // crosses a face or two. The walk can't see detached loops, so not while there are.
+        Face found = mDetached.isEmpty() ? walkToFace(x, y) : null;
+        if (found == null) found = searchFace(x, y);
+        mLastFace = found.mHandle;
+        mLastX = x;
+        mLastY = y;
+        return found;
+    }
+    private Face searchFace(float x, float y) {
+        // Only faces whose box holds (x, y) can contain it. Take the lowest id, like a scan
+        // over mFaces would, in case it is on the boundary of more than one.
+        Face found = null;
+        for (Face f : mFaceIndex.facesAt(x, y)) {
             if (f.mId == 0) continue; // skip outer face
-            if (f.containsPoint(avg)) {
-                return f;
+            if (found != null && found.mId < f.mId) continue;
+            if (containsPoint(f, x, y)) found = f;
+        }
+        return found != null ? found : mFaces.get(0);
+    }
+    // Face.containsPoint, with the loops of f that are detached as holes in it
+    private boolean containsPoint(Face f, float x, float y) {
+        boolean inside = f.containsPoint(x, y);
+        for (int i = 0; i < mDetached.size(); i++) {
+            HalfEdge d = mDetached.get(i);
+            if (d.face() == f && loopContainsPoint(d, x, y)) inside = !inside;
+        }
+        return inside;
+    }
+    /**
+     * Follow the segment from the point of the last search to (x, y) through the faces it
+     * crosses, one face loop at a time, so the cost only depends on the faces crossed. Returns
+     * null if there is nowhere to start from, if the segment touches a vertex or runs along an
+     * edge, where the answer would depend on rounding, or if it crosses more than MAX_WALK
+     * edges. Faces don't overlap, so the face the walk ends in is the only one that contains
+     * (x, y).
+     */
+    private Face walkToFace(float x, float y) {
+        Face f = getFace(mLastFace);
+        if (f == null || f.he() == null) return null;
+        float sx = mLastX;
+        float sy = mLastY;
+        // The face may have been split or grown since, check it still holds the start. The
+        // outer face holds everything outside its loop.
+        if (f.containsPoint(sx, sy) == f.isOuterFace()) return null;
+        float minX = Math.min(sx, x);
+        float minY = Math.min(sy, y);
+        float maxX = Math.max(sx, x);
+        float maxY = Math.max(sy, y);
+        HalfEdge entered = null;
+        double tEntered = 0;
+        // Far jumps are left to the face index
+        for (int crossings = 0; crossings <= MAX_WALK; crossings++) {
+            HalfEdge exit = null;
+            double tExit = Double.POSITIVE_INFINITY;
+            for (HalfEdge he : mLoopCursor.loop(f)) {
+                if (he == entered) continue;
+                Segment s = he.mSegment;
+                if (s.mMaxX < minX || maxX < s.mMinX || s.mMaxY < minY || maxY < s.mMinY)
+                    continue; // can't even touch
+                int o1 = Predicates.orientation(s.mX1, s.mY1, s.mX2, s.mY2, sx, sy);
+                int o2 = Predicates.orientation(s.mX1, s.mY1, s.mX2, s.mY2, x, y);
+                if (o1 * o2 > 0) continue;
+                int o3 = Predicates.orientation(sx, sy, x, y, s.mX1, s.mY1);
+                int o4 = Predicates.orientation(sx, sy, x, y, s.mX2, s.mY2);
+                if (o3 * o4 > 0) continue;
+                if (o1 == 0 || o2 == 0 || o3 == 0 || o4 == 0) return null;
+                // Where along the segment it crosses he
+                double ex = (double) s.mX2 - s.mX1;
+                double ey = (double) s.mY2 - s.mY1;
+                double t = (((double) s.mX1 - sx) * ey - ((double) s.mY1 - sy) * ex)
+                        / (((double) x - sx) * ey - ((double) y - sy) * ex);
+                if (t > tEntered && t < tExit) {
+                    exit = he;
+                    tExit = t;
+                }
             }
+            if (exit == null) return f; // (x, y) is before the next crossing
+            entered = exit.opposite();
+            tEntered = tExit;
+            f = entered.face();
+        }
+        return null;
+    }
+
+
+    // Detached loops, see mDetached. Their number stays small, a few at most while a
+    // transaction has the mesh in pieces, so they are found by scanning.
+    // Position in mDetached of the loop through start, or -1 if it is the loop of its face
+    private int detachedIndex(HalfEdge start) {
+        if (mDetached.isEmpty()) return -1;
+        for (HalfEdge he : mLoopCursor.loop(start)) {
+            if (he == he.face().he()) return -1;
+            int i = mDetached.indexOf(he);
+            if (i >= 0) return i;
+        }
+        throw new AssertionError(start.toString() + " is on no loop of its face");
+    }
+    // Position in mDetached of the first loop of f, or -1 if there is none
+    private int detachedIndexOf(Face f) {
+        for (int i = 0; i < mDetached.size(); i++) {
+            if (mDetached.get(i).face() == f) return i;
+        }
+        return -1;
+    }
+    // Whatever pointed at removed to keep track of its loop, its face or mDetached, points
+    // at replacement on the same loop instead
+    private void repointLoop(HalfEdge removed, HalfEdge replacement) {
+        // removed is gone already, so its handle no longer finds it
+        Face f = replacement.face();
+        if (mFaceHe[f.mId] == removed.mHandle) setHe(f, replacement);
+        int i = mDetached.indexOf(removed);
+        if (i >= 0) listSet(mDetached, i, replacement);
+    }
+    // Move the detached loop through start to face f, along with its size and metrics
+    private void moveLoop(HalfEdge start, Face f) {
+        Face from = start.face();
+        float minX = Float.POSITIVE_INFINITY;
+        float minY = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY;
+        float maxY = Float.NEGATIVE_INFINITY;
+        int size = 0;
+        for (HalfEdge he : mLoopCursor.loop(start)) {
+            Vertex v = he.vertex();
+            addTerms(from, he.opposite().vertex(), v, -1);
+            addTerms(f, he.opposite().vertex(), v, 1);
+            minX = Math.min(minX, v.x());
+            minY = Math.min(minY, v.y());
+            maxX = Math.max(maxX, v.x());
+            maxY = Math.max(maxY, v.y());
+            setFace(he, f);
+            size++;
+        }
+        setSize(from, from.mSize - size);
+        setSize(f, f.mSize + size);
+        growBounds(f, minX, minY, maxX, maxY);
+        markDirty(from);
+        markDirty(f);
+    }
+    // Twice the signed area of the loop through start, like Face.mCross
+    private double loopCross(HalfEdge start) {
+        double cross = 0;
+        for (HalfEdge he : mLoopCursor.loop(start)) {
+            Vertex from = he.opposite().vertex();
+            Vertex to = he.vertex();
+            cross += (double) from.x() * to.y() - (double) to.x() * from.y();
+        }
+        return cross;
+    }
+
+    // Face metrics. The sums are over terms that only depend on the endpoints of a halfedge,
+    // and the two halves of an edge have opposite terms, so each edit only has to add and
+    // remove the terms of the halfedges it changes. Shrinking a box is optional, so boxes
+    // are only ever grown, or measured from scratch for a new loop.
+    private void measure(Face f, HalfEdge start) {
+        saveMetrics(f);
+        f.mCross = f.mMomentX = f.mMomentY = 0;
+        f.mCrossMagnitude = f.mMomentMagnitude = 0;
+        f.mMinX = f.mMinY = Float.POSITIVE_INFINITY;
+        f.mMaxX = f.mMaxY = Float.NEGATIVE_INFINITY;
+        if (start == null) return;
+        for (HalfEdge he : mLoopCursor.loop(start)) {
+            Vertex v = he.vertex();
+            addTerms(f, he.opposite().vertex(), v, 1);
+            f.mMinX = Math.min(f.mMinX, v.x());
+            f.mMinY = Math.min(f.mMinY, v.y());
+            f.mMaxX = Math.max(f.mMaxX, v.x());
+            f.mMaxY = Math.max(f.mMaxY, v.y());
         }
-        return mFaces.get(0);
+    }
+    private void addTerms(Face f, Vertex from, Vertex to, int sign) {
+        saveMetrics(f);
+        float x1 = from.x();
+        float y1 = from.y();
+        float x2 = to.x();
+        float y2 = to.y();
+        double cross = sign * ((double) x1 * y2 - (double) x2 * y1);
+        double momentX = ((double) x1 + x2) * cross;
+        double momentY = ((double) y1 + y2) * cross;
+        f.mCross += cross;
+        f.mMomentX += momentX;
+        f.mMomentY += momentY;
+        f.mCrossMagnitude += Math.abs(cross);
+        f.mMomentMagnitude += Math.abs(momentX) + Math.abs(momentY);
+    }
+    private void exchangeMetrics(Face f1, Face f2) {
+        saveMetrics(f1);
+        saveMetrics(f2);
+        double cross = f1.mCross;
+        double momentX = f1.mMomentX;
+        double momentY = f1.mMomentY;
+        double crossMagnitude = f1.mCrossMagnitude;
+        double momentMagnitude = f1.mMomentMagnitude;
+        float minX = f1.mMinX;
+        float minY = f1.mMinY;
+        float maxX = f1.mMaxX;
+        float maxY = f1.mMaxY;
+        f1.mCross = f2.mCross;
+        f1.mMomentX = f2.mMomentX;
+        f1.mMomentY = f2.mMomentY;
+        f1.mCrossMagnitude = f2.mCrossMagnitude;
+        f1.mMomentMagnitude = f2.mMomentMagnitude;
+        f1.mMinX = f2.mMinX;
+        f1.mMinY = f2.mMinY;
+        f1.mMaxX = f2.mMaxX;
+        f1.mMaxY = f2.mMaxY;
+        f2.mCross = cross;
+        f2.mMomentX = momentX;
+        f2.mMomentY = momentY;
+        f2.mCrossMagnitude = crossMagnitude;
+        f2.mMomentMagnitude = momentMagnitude;
+        f2.mMinX = minX;
+        f2.mMinY = minY;
+        f2.mMaxX = maxX;
+        f2.mMaxY = maxY;
+    }
+    protected void growBounds(Face f, float minX, float minY, float maxX, float maxY) {
+        if (f.mMinX <= minX && f.mMinY <= minY && maxX <= f.mMaxX && maxY <= f.mMaxY) return;
+        saveMetrics(f);
+        f.mMinX = Math.min(f.mMinX, minX);
+        f.mMinY = Math.min(f.mMinY, minY);
+        f.mMaxX = Math.max(f.mMaxX, maxX);
+        f.mMaxY = Math.max(f.mMaxY, maxY);
+        mFaceIndex.update(f);
     }
 
     protected HalfEdge findPreviousEdgeOnFace(HalfEdge next, Face f) {
         /*** Assertions ***/
         validateMesh();
-        if (!f.touchesEdge(next))
+        if (next.face() != f)
             throw new AssertionError(next.toString() + " does not touch " + f.toString());
         /*** ***/
-        for (HalfEdge he : f.getEdges()) {
-            if (he.mNext.mId == next.mId) {
+        for (HalfEdge he : mLoopCursor.loop(next)) {
+            if (he.next().mId == next.mId) {
                 return he;
             }
         }
         return null;
     }
-    protected HalfEdge findPreviousEdgeOnFace(Vertex v, Point p, Face f) {
-        /*** Assertions ***/
+    // The edge into v on f that the direction to (x, y) comes after
+    protected HalfEdge findPreviousEdgeOnFace(Vertex v, float x, float y, Face f) {
         validateMesh(); // valid mesh
+        if (v.mRing.isEmpty())
+            throw new AssertionError(v.toString() + " has no edges to come after");
+        // The edge into v that (x, y) comes after counterclockwise. It borders the wedge the
+        // point is in, which is on f unless the caller picked a face that doesn't match the
+        // geometry.
+        HalfEdge prev = ringEdgeBefore(v, x, y).opposite();
+        if (prev.face() == f) return prev;
+
+        /*** Assertions ***/
         if (!f.touchesVertex(v))
             throw new AssertionError(v.toString() + " does not touch " + f.toString());
-//        if (!f.containsPoint(p))
-//            throw new AssertionError(f.toString() + " does not contain " + p.toString());
+//        if (!f.containsPoint(x, y))
+//            throw new AssertionError(f.toString() + " does not contain " + x + ", " + y);
         /*** ***/
-        ArrayList<HalfEdge> candidates = new ArrayList<>();
-        for (HalfEdge he : f.getEdges()) {
-            if (he.mVertex.mId == v.mId) {
-                candidates.add(he);
-            }
-        }
-        if (candidates.isEmpty())
-            throw new AssertionError("candidates list is empty. " +
-                    "There is a bug in FindPreviousEdgeOnFace");
-        return pickCandidateByNearestAngle(v, p, candidates);
-    }
-    private HalfEdge pickCandidateByNearestAngle(Vertex v, Point p, ArrayList<HalfEdge> candidates) {
-        Log.i(TAG, "Number of candidates: " + String.valueOf(candidates.size()));
+        // Pick the candidate edge into v on f with the nearest angle to (x, y)
+        float angle = Geometry.pseudoAngle(x - v.x(), y - v.y());
         HalfEdge best = null;
         float bestAngle = Float.MAX_VALUE;
-        for (HalfEdge he : candidates) {
-            float angle = v.mP.angleBetweenPoints(he.mOpposite.mVertex.mP, p);
-            if (angle < bestAngle) {
+        for (HalfEdge he : mLoopCursor.loop(f)) {
+            if (he.vertex().mId != v.mId) continue;
+            float delta = angle - he.opposite().mAngle; // counterclockwise from he to (x, y)
+            if (delta < 0) delta += 4;
+            if (delta < bestAngle) {
                 best = he;
-                bestAngle = angle;
+                bestAngle = delta;
             }
         }
+        if (best == null)
+            throw new AssertionError("No candidate edge found. " +
+                    "There is a bug in FindPreviousEdgeOnFace");
         return best;
     }
 
@@ -450,8 +1703,30 @@ public class Mesh {
      * a message describing the problem encountered. In the middle of some methods, this is
      * expected to not be true. However, at the beginning and end of any public facing function,
      * this should always be true.
+     *
+     * Only the elements marked dirty since the last validation and their neighbours are
+     * checked. Use validateMeshFull for a sweep over the whole mesh.
      */
     public void validateMesh() {
+        if (mJournal.isRecording()) return; // deferred to the end of the transaction
+        try {
+            validateDirtyMesh();
+        } catch (AssertionError e) {
+            Log.i(TAG, toString());
+            throw e;
+        }
+        if (mCrossCheckValidation) {
+            try {
+                validateMeshFull();
+            } catch (AssertionError e) {
+                throw new AssertionError("Incremental validation missed: " + e.getMessage());
+            }
+        }
+    }
+    /**
+     * Validate the whole Mesh regardless of what has been marked dirty.
+     */
+    public void validateMeshFull() {
         try {
             // Isolated validations
             validateMeshHalfEdges();
@@ -459,6 +1734,7 @@ public class Mesh {
             validateMeshFaces();
             // Edge validations
             validateHalfEdgesNextUnique();
+            validateHalfEdgesIndexed();
             validateHalfEdgeNextLoops();
             validateHalfEdgeOppositeNextLoops();
             validateNoEdgesCross();
@@ -466,6 +1742,7 @@ public class Mesh {
 //        validateNoVerticesTheSame();
             validateHalfEdgesAroundVertices();
             validateVerticesAllConnected();
+            validateRunningTotals();
             // Face validations
             validateHalfEdgesAroundFaces();
             validateFacesAllContainedByOuterFace();
@@ -473,83 +1750,294 @@ public class Mesh {
             Log.i(TAG, toString());
             throw e;
         }
+        clearDirtyMesh();
+    }
+    private void clearDirtyMesh() {
+        for (HalfEdge he : mDirtyEdges) he.mDirty = false;
+        for (Vertex v : mDirtyVertices) v.mDirty = false;
+        for (Face f : mDirtyFaces) f.mDirty = false;
+        mDirtyEdges.clear();
+        mDirtyVertices.clear();
+        mDirtyFaces.clear();
+    }
+    private boolean inMesh(HalfEdge he) {
+        return he.mId >= 0 && he.mId < mEdges.size() && mEdges.get(he.mId) == he;
+    }
+    private boolean inMesh(Vertex v) {
+        return v.mId >= 0 && v.mId < mVertices.size() && mVertices.get(v.mId) == v;
     }
+    private boolean inMesh(Face f) {
+        return f.mId >= 0 && f.mId < mFaces.size() && mFaces.get(f.mId) == f;
+    }
+
+    // Incremental validations
+    private void validateDirtyMesh() {
+        if (mDirtyEdges.isEmpty() && mDirtyVertices.isEmpty() && mDirtyFaces.isEmpty()) return;
+        // Edges first, they pull their vertices and faces into the dirty sets
+        for (int i = 0; i < mDirtyEdges.size(); i++) {
+            HalfEdge he = mDirtyEdges.get(i);
+            if (!inMesh(he)) continue; // removed since it was marked
+            validateDirtyHalfEdge(he);
+            markDirty(he.vertex());
+            markDirty(he.opposite().vertex());
+            markDirty(he.face());
+        }
+        for (int i = 0; i < mDirtyVertices.size(); i++) {
+            Vertex v = mDirtyVertices.get(i);
+            if (!inMesh(v)) continue;
+            validateDirtyVertex(v);
+        }
+        // Whether a face winds like an inner face only depends on its own loop, so faces
+        // next to a changed one don't need checking
+        for (int i = 0; i < mDirtyFaces.size(); i++) {
+            Face f = mDirtyFaces.get(i);
+            if (!inMesh(f)) continue;
+            validateDirtyFace(f);
+        }
+        validateLoopTotals();
+        validateOnePiece();
+        clearDirtyMesh();
+    }
+    private void validateDirtyHalfEdge(HalfEdge he) {
+        validateHalfEdge(he, null, null);
+        HalfEdge opposite = he.opposite();
+        HalfEdge next = he.next();
+        Vertex from = opposite.vertex();
+        Vertex to = he.vertex();
+        validateHalfEdge(opposite, he, " opposite: ");
+        validateHalfEdge(next, he, " next: ");
+        validateVertex(to, he, " vertex: ");
+        validateFace(he.face(), he, " face: ");
+        if (to.isIsolated())
+            throw new AssertionError(he.toString() + " vertex claims to be isolated: " +
+                    to.toString());
+        if (opposite.opposite() != he)
+            throw new AssertionError(he.toString() + " opposite doesn't point back to itself."
+                    + "\nopposite edge: " + opposite.toString());
+        if (next.opposite().vertex() != to)
+            throw new AssertionError(he.toString() + " next edge doesn't come from same vertex."
+                    + "\nopposite edge of next edge: " + next.opposite().toString());
+        if (next.face() != he.face())
+            throw new AssertionError(he.toString() + " next edge is on another face: "
+                    + next.toString());
+        validateEdgeIndex(he);
+        if (ringIndexOf(from, he) < 0) throw new AssertionError(he.toString()
+                + " is not in the ring of the vertex it starts from");
+        // Only halfedges sharing a grid cell with he can cross it
+        Segment s = he.mSegment;
+        if (s.mX1 != from.x() || s.mY1 != from.y() || s.mX2 != to.x() || s.mY2 != to.y())
+            throw new AssertionError(he.toString() + " has a stale segment");
+        boolean inGrid = false;
+        for (int i = 0, n = mEdgeGrid.collect(from.x(), from.y(), to.x(), to.y()); i < n; i++) {
+            int handle = mEdgeGrid.foundKey(i);
+            if (handle == he.mHandle) {
+                inGrid = true;
+                continue;
+            }
+            HalfEdge he2 = getHalfEdge(handle);
+            if (he2 == null) throw new AssertionError("The edge grid still holds removed "
+                    + "halfedge handle " + handle + " near " + he.toString());
+            if (he.mSegment.crosses(he2.mSegment))
+                throw new AssertionError(he.toString() + " intersects with " + he2.toString());
+        }
+        if (!inGrid) throw new AssertionError(he.toString() + " is not in the edge grid");
+    }
+    private void validateDirtyVertex(Vertex v) {
+        validateVertex(v, null, null);
+        if (v.x() < 0 || v.y() < 0)
+            throw new AssertionError(v.toString() + " has point outside of 1st quadrant: ");
+        if (v.isIsolated()) {
+            if (v.mDegree != 0) throw new AssertionError(v.toString()
+                    + " is isolated but has degree " + v.mDegree);
+            return;
+        }
+        validateHalfEdge(v.he(), v, " halfedge: ");
+        if (v.he().opposite().vertex() != v)
+            throw new AssertionError(v.toString() + " edge opposite doesn't point back to "
+                    + "itself.\nvertex edge: " + v.he().toString());
+        // Walk the ring. Bounding the walk catches loops with a starting tail.
+        int degree = 0;
+        HalfEdge he = v.he();
+        do {
+            if (he.opposite().vertex() != v) throw new AssertionError(he.toString()
+                    + " is in loop around " + v.toString() + " but does not start there");
+            if (++degree > mEdges.size()) throw new AssertionError("Found loop with starting "
+                    + "tail around " + v.toString());
+            he = he.opposite().next();
+        } while (he != v.he());
+        if (degree != v.mDegree) throw new AssertionError(v.toString() + " has degree "
+                + v.mDegree + " but " + degree + " outgoing edges");
+        validateRing(v);
+    }
+    private void validateRing(Vertex v) {
+        if (v.mRing.size() != v.mDegree) throw new AssertionError(v.toString() + " has degree "
+                + v.mDegree + " but " + v.mRing.size() + " edges in its ring");
+        for (int i = 0; i < v.mRing.size(); i++) {
+            HalfEdge he = v.mRing.get(i);
+            if (he.opposite().vertex() != v) throw new AssertionError(he.toString()
+                    + " is in the ring of " + v.toString() + " but does not start there");
+            if (i > 0 && v.mRing.get(i - 1).mAngle > he.mAngle) throw new AssertionError(
+                    "Ring of " + v.toString() + " is not sorted at " + he.toString());
+        }
+    }
+    private void validateDirtyFace(Face f) {
+        validateFace(f, null, null);
+        if (mEdges.isEmpty()) return;
+        validateHalfEdge(f.he(), f, " halfedge: ");
+        int size = 0;
+        HalfEdge he = f.he();
+        do {
+            if (he.face() != f) throw new AssertionError(he.toString()
+                    + " is in loop associated with " + f.toString()
+                    + " but points to " + he.face().toString());
+            if (++size > mEdges.size()) throw new AssertionError("Found loop with starting "
+                    + "tail around " + f.toString());
+            validateInBounds(f, he.vertex());
+            he = he.next();
+        } while (he != f.he());
+        if (size != f.mSize) throw new AssertionError(f.toString() + " has size "
+                + f.mSize + " but " + size + " edges in its loop");
+        validateMetrics(f);
+        if (!f.isOuterFace() && !f.windsLikeInnerFace())
+            throw new AssertionError(f.toString() + " not contained by outer face.");
+    }
+    // The dirty loops are checked against their counters, so if the counters add up to the
+    // number of halfedges every halfedge is on exactly one face loop and one vertex loop.
+    private void validateLoopTotals() {
+        if (mSizeTotal != mEdges.size()) throw new AssertionError("Face loops hold "
+                + mSizeTotal + " halfedges but the mesh has " + mEdges.size());
+        if (mDegreeTotal != mEdges.size()) throw new AssertionError("Vertex loops hold "
+                + mDegreeTotal + " halfedges but the mesh has " + mEdges.size());
+        if (mEdgeIndex.size() != mEdges.size()) throw new AssertionError("Edge index holds "
+                + mEdgeIndex.size() + " halfedges but the mesh has " + mEdges.size());
+        validateHandleTotals();
+    }
+    // With one loop per face, Euler's formula gives vertices - edges + faces = 2 for each
+    // connected part, counting only vertices that have edges
+    private void validateOnePiece() {
+        if (mEdges.isEmpty()) return;
+        int euler = mConnectedVertices - mEdges.size() / 2 + mFaces.size();
+        if (euler != 2) throw new AssertionError("Mesh with " + mConnectedVertices
+                + " connected vertices, " + mEdges.size() / 2 + " edges and " + mFaces.size()
+                + " faces is not in one piece");
+    }
+    private void validateRunningTotals() {
+        int sizeTotal = 0;
+        for (Face f : mFaces) sizeTotal += f.mSize;
+        int degreeTotal = 0;
+        int connected = 0;
+        for (Vertex v : mVertices) {
+            degreeTotal += v.mDegree;
+            if (v.mDegree > 0) connected++;
+        }
+        if (sizeTotal != mSizeTotal || degreeTotal != mDegreeTotal
+                || connected != mConnectedVertices) throw new AssertionError("Running totals "
+                + mSizeTotal + "/" + mDegreeTotal + "/" + mConnectedVertices + " should be "
+                + sizeTotal + "/" + degreeTotal + "/" + connected);
+    }
+    private void validateHandleTotals() {
+        if (mVertexHandles.size() != mVertices.size() || mEdgeHandles.size() != mEdges.size()
+                || mFaceHandles.size() != mFaces.size()) throw new AssertionError("Handle "
+                + "tables hold " + mVertexHandles.size() + "/" + mEdgeHandles.size() + "/"
+                + mFaceHandles.size() + " handles for " + mVertices.size() + " vertices, "
+                + mEdges.size() + " halfedges and " + mFaces.size() + " faces");
+    }
+    private void validateEdgeIndex(HalfEdge he) {
+        int handle = mEdgeIndex.get(he.opposite().vertex().mHandle, he.vertex().mHandle);
+        if (handle != he.mHandle) throw new AssertionError(he.toString() + " is indexed as "
+                + "halfedge handle " + handle + " between its vertices");
+    }
+
     // Isolated validations
-    void validateHalfEdge(HalfEdge he, String errorPrefix) {
-        if (he == null) throw new AssertionError(errorPrefix + "null halfedge");
+    void validateHalfEdge(HalfEdge he, Object context, String label) {
+        if (he == null) throw new AssertionError(Diagnostics.prefix(context, label)
+                + "null halfedge");
         if (he.mId < 0 || he.mId >= mEdges.size())
-            throw new AssertionError(errorPrefix + he.toString() +
+            throw new AssertionError(Diagnostics.prefix(context, label) + he.toString() +
                     " id is out of bounds of mEdges (size: " + mEdges.size() + ")");
         HalfEdge he1 = mEdges.get(he.mId);
-        if (he != he1) throw new AssertionError(errorPrefix + he.toString() +
+        if (he != he1) throw new AssertionError(Diagnostics.prefix(context, label) + he.toString() +
                 " is not the halfedge found at index " + he.mId + " in mEdges: " + he1.toString());
-        if (he.mVertex == null)
-            throw new AssertionError(errorPrefix + he.toString() + " has no vertex set");
-        if (he.mOpposite == null)
-            throw new AssertionError(errorPrefix + he.toString() + " has no opposite edge set");
-        if (he.mNext == null)
-            throw new AssertionError(errorPrefix + he.toString() + " has no next edge set");
-        if (he.mFace == null)
-            throw new AssertionError(errorPrefix + he.toString() + " has no face set");
-    }
-    void validateVertex(Vertex v, String errorPrefix) {
-        if (v == null) throw new AssertionError(errorPrefix + "null vertex");
+        if (mEdgeHandles.indexOf(he.mHandle) != he.mId)
+            throw new AssertionError(Diagnostics.prefix(context, label) + he.toString() +
+                    " has handle " + he.mHandle + " which names another halfedge");
+        if (he.vertex() == null)
+            throw new AssertionError(Diagnostics.prefix(context, label)
+                    + he.toString() + " has no vertex set");
+        if (he.opposite() == null)
+            throw new AssertionError(Diagnostics.prefix(context, label)
+                    + he.toString() + " has no opposite edge set");
+        if (he.next() == null)
+            throw new AssertionError(Diagnostics.prefix(context, label)
+                    + he.toString() + " has no next edge set");
+        if (he.face() == null)
+            throw new AssertionError(Diagnostics.prefix(context, label)
+                    + he.toString() + " has no face set");
+    }
+    void validateVertex(Vertex v, Object context, String label) {
+        if (v == null) throw new AssertionError(Diagnostics.prefix(context, label) + "null vertex");
         if (v.mId < 0 || v.mId >= mVertices.size())
-            throw new AssertionError(errorPrefix + v.toString() +
+            throw new AssertionError(Diagnostics.prefix(context, label) + v.toString() +
                     " id is out of bounds of mVertices (size: " + mVertices.size() + ")");
         Vertex v1 = mVertices.get(v.mId);
-        if (v != v1) throw new AssertionError(errorPrefix + v.toString() + " is not the vertex" +
+        if (v != v1) throw new AssertionError(Diagnostics.prefix(context, label)
+                + v.toString() + " is not the vertex" +
                 " found at index " + v.mId + " in mVertices: " + v1.toString());
-        if (v.mP == null)
-            throw new AssertionError(errorPrefix + v.toString() + " has no point set");
+        if (mVertexHandles.indexOf(v.mHandle) != v.mId)
+            throw new AssertionError(Diagnostics.prefix(context, label) + v.toString() +
+                    " has handle " + v.mHandle + " which names another vertex");
     }
-    void validateFace(Face f, String errorPrefix) {
-        if (f == null) throw new AssertionError(errorPrefix + "null face");
+    void validateFace(Face f, Object context, String label) {
+        if (f == null) throw new AssertionError(Diagnostics.prefix(context, label) + "null face");
         if (f.mId < 0 || f.mId >= mFaces.size())
-            throw new AssertionError(errorPrefix + f.toString() +
+            throw new AssertionError(Diagnostics.prefix(context, label) + f.toString() +
                     " id is out of bounds of mFaces (size: " + mFaces.size() + ")");
         Face f1 = mFaces.get(f.mId);
-        if (f != f1) throw new AssertionError(errorPrefix + f.toString() + " is not the face" +
+        if (f != f1) throw new AssertionError(Diagnostics.prefix(context, label)
+                + f.toString() + " is not the face" +
                 " found at index " + f.mId + " in mFaces: " + f1.toString());
+        if (mFaceHandles.indexOf(f.mHandle) != f.mId)
+            throw new AssertionError(Diagnostics.prefix(context, label) + f.toString() +
+                    " has handle " + f.mHandle + " which names another face");
     }
     private void validateMeshHalfEdges() {
         for (HalfEdge he : mEdges) {
-            validateHalfEdge(he, "");
-            validateHalfEdge(he.mOpposite, he.toString() + " opposite: ");
-            validateHalfEdge(he.mNext, he.toString() + " next: ");
-            validateVertex(he.mVertex, he.toString() + " vertex: ");
-            validateFace(he.mFace, he.toString() + " face: ");
-            if (he.mVertex.isIsolated())
+            validateHalfEdge(he, null, null);
+            validateHalfEdge(he.opposite(), he, " opposite: ");
+            validateHalfEdge(he.next(), he, " next: ");
+            validateVertex(he.vertex(), he, " vertex: ");
+            validateFace(he.face(), he, " face: ");
+            if (he.vertex().isIsolated())
                 throw new AssertionError(he.toString() + " vertex claims to be isolated: " +
-                        he.mVertex.toString());
-            if (he.mOpposite.mOpposite != he)
+                        he.vertex().toString());
+            if (he.opposite().opposite() != he)
                 throw new AssertionError(he.toString() + " opposite doesn't point back to itself."
-                        + "\nopposite edge: " + he.mOpposite.toString());
-            if (he.mNext.mOpposite.mVertex != he.mVertex)
+                        + "\nopposite edge: " + he.opposite().toString());
+            if (he.next().opposite().vertex() != he.vertex())
                 throw new AssertionError(he.toString() + " next edge doesn't come from same vertex."
-                        + "\nopposite edge of next edge: " + he.mNext.mOpposite.toString());
+                        + "\nopposite edge of next edge: " + he.next().opposite().toString());
         }
     }
     private void validateMeshVertices() {
         for (Vertex v : mVertices) {
-            validateVertex(v, "");
-            if (v.mP.x < 0 || v.mP.y < 0)
+            validateVertex(v, null, null);
+            if (v.x() < 0 || v.y() < 0)
                 throw new AssertionError(v.toString() + " has point outside of 1st quadrant: ");
             if (v.isIsolated()) continue; // No more checks needed if this vertex is isolated
-            validateHalfEdge(v.mHe, v.toString() + " halfedge: ");
-            if (v.mHe.mOpposite.mVertex != v)
+            validateHalfEdge(v.he(), v, " halfedge: ");
+            if (v.he().opposite().vertex() != v)
                 throw new AssertionError(v.toString() + " edge opposite doesn't point back to "
-                        + "itself.\nvertex edge: " + v.mHe.toString());
+                        + "itself.\nvertex edge: " + v.he().toString());
         }
     }
     private void validateMeshFaces() {
         for (Face f : mFaces) {
-            validateFace(f, "");
+            validateFace(f, null, null);
             if (mEdges.isEmpty()) continue;
-            validateHalfEdge(f.mHe, f.toString() + " halfedge: ");
-            if (f.mHe.mFace != f)
+            validateHalfEdge(f.he(), f, " halfedge: ");
+            if (f.he().face() != f)
                 throw new AssertionError(f.toString() + " has edge that doesn't point back to "
-                        + "it. Face edge: " + f.mHe.toString());
+                        + "it. Face edge: " + f.he().toString());
         }
     }
     // Edge validations
@@ -559,10 +2047,18 @@ public class Mesh {
         // Validate that next is an injective function
         // (actually bijective since input and output sets are the same)
         for (HalfEdge he : mEdges) {
-            if (hes[he.mNext.mId]) throw new AssertionError(he.mNext.toString() + " is next of "
+            if (hes[he.next().mId]) throw new AssertionError(he.next().toString() + " is next of "
                     + he.toString() + " and some other edge");
-            hes[he.mNext.mId] = true;
+            hes[he.next().mId] = true;
+        }
+    }
+    private void validateHalfEdgesIndexed() {
+        for (HalfEdge he : mEdges) {
+            validateEdgeIndex(he);
         }
+        if (mEdgeIndex.size() != mEdges.size()) throw new AssertionError("Edge index holds "
+                + mEdgeIndex.size() + " halfedges but the mesh has " + mEdges.size());
+        validateHandleTotals();
     }
     private void validateHalfEdgeNextLoops() {
         if (mEdges.isEmpty()) return;
@@ -570,19 +2066,20 @@ public class Mesh {
         boolean[] fs = new boolean[mFaces.size()];
         for (HalfEdge he : mEdges) {
             if (hes[he.mId]) { continue; }
-            if (fs[he.mFace.mId])
+            if (fs[he.face().mId])
                 throw new AssertionError("Two separate loops point to the same face: "
-                        + he.mFace.toString());
-            fs[he.mFace.mId] = true;
+                        + he.face().toString());
+            fs[he.face().mId] = true;
             HalfEdge he_iter = he;
-            String loopStr = "Loop:";
+            int steps = 0;
             do {
-                loopStr += "\n" + he_iter.toString();
+                steps++;
                 if (hes[he_iter.mId])
                     throw new AssertionError("Found loop with starting tail " +
-                            "(will result in infinite loop): " + loopStr);
+                            "(will result in infinite loop): "
+                            + Diagnostics.dump("Loop:", new Circulator().loop(he), steps));
                 hes[he_iter.mId] = true;
-                he_iter = he_iter.mNext;
+                he_iter = he_iter.next();
             } while (he_iter.mId != he.mId);
         }
         // Check there is one loop per face
@@ -597,19 +2094,20 @@ public class Mesh {
         boolean[] vs = new boolean[mVertices.size()];
         for (HalfEdge he : mEdges) {
             if (hes[he.mId]) { continue; }
-            if (vs[he.mOpposite.mVertex.mId])
+            if (vs[he.opposite().vertex().mId])
                 throw new AssertionError("Two separate loops point are around the same point: "
-                        + he.mOpposite.mVertex.toString());
-            vs[he.mOpposite.mVertex.mId] = true;
+                        + he.opposite().vertex().toString());
+            vs[he.opposite().vertex().mId] = true;
             HalfEdge he_iter = he;
-            String loopStr = "Loop:";
+            int steps = 0;
             do {
-                loopStr += "\n" + he_iter.toString();
+                steps++;
                 if (hes[he_iter.mId])
                     throw new AssertionError("Found loop with starting tail " +
-                            "(will result in infinite loop): " + loopStr);
+                            "(will result in infinite loop): "
+                            + Diagnostics.dump("Loop:", new Circulator().outEdges(he), steps));
                 hes[he_iter.mId] = true;
-                he_iter = he_iter.mOpposite.mNext;
+                he_iter = he_iter.opposite().next();
             } while (he_iter.mId != he.mId);
         }
         // Check there is one loop per vertex
@@ -619,12 +2117,38 @@ public class Mesh {
                     + " is not associated with any loop");
         }
     }
+    // Sweep over each edge once (not each halfedge) in O(E log E)
     private void validateNoEdgesCross() {
+        mSweep.clear();
+        for (HalfEdge he : mEdges) {
+            if (he.mId > he.opposite().mId) continue; // opposite already added
+            Vertex p1 = he.vertex();
+            Vertex p2 = he.opposite().vertex();
+            mSweep.add(he.mId, p1.x(), p1.y(), p2.x(), p2.y());
+        }
+        boolean crossing = mSweep.findCrossing();
+        if (mCrossCheckValidation) {
+            // The brute force check is the reference the sweep has to agree with
+            boolean reference = true;
+            try {
+                validateNoEdgesCrossBruteForce();
+                reference = false;
+            } catch (AssertionError e) {
+                if (!crossing) throw new AssertionError("Sweep missed: " + e.getMessage());
+            }
+            if (crossing && !reference) throw new AssertionError("Sweep reported "
+                    + mEdges.get(mSweep.firstKey()).toString() + " and "
+                    + mEdges.get(mSweep.secondKey()).toString() + " which don't intersect");
+        }
+        if (crossing) throw new AssertionError(mEdges.get(mSweep.firstKey()).toString()
+                + " intersects with " + mEdges.get(mSweep.secondKey()).toString());
+    }
+    // O(E^2) reference for validateNoEdgesCross
+    void validateNoEdgesCrossBruteForce() {
         for (HalfEdge he1 : mEdges) {
             for (HalfEdge he2 : mEdges) {
                 if (he1.mId == he2.mId) continue;
-                if (Point.segmentsIntersect(he1.mVertex.mP,he1.mOpposite.mVertex.mP,
-                        he2.mVertex.mP, he2.mOpposite.mVertex.mP))
+                if (he1.mSegment.crosses(he2.mSegment))
                     throw new AssertionError(he1.toString() + " intersects with " + he2.toString());
             }
         }
@@ -634,7 +2158,7 @@ public class Mesh {
         for (Vertex v1 : mVertices) {
             for (Vertex v2 : mVertices) {
                 if (v1.mId == v2.mId) continue;
-                if (v1.mP.equals(v2.mP))
+                if (Geometry.samePoint(v1.x(), v1.y(), v2.x(), v2.y()))
                     throw new AssertionError(v1.toString() + " is the same as " + v2.toString());
             }
         }
@@ -643,20 +2167,32 @@ public class Mesh {
         // This might be completely redundant with previous validations
         boolean hes[] = new boolean[mEdges.size()];
         for (Vertex v : mVertices) {
-            for(HalfEdge he : v.getInEdges()) {
-                if (hes[he.mId]) throw new AssertionError("Loop around " + v.toString()
-                        + " contains " + he.toString() + " which points to "
-                        + he.mVertex.toString());
-                hes[he.mId] = true;
-                if (he.mVertex != v) throw new AssertionError(he.toString()
-                        + " is in loop associated with " + v.toString()
-                        + " but points to " + he.mVertex.toString());
+            int degree = 0;
+            if (v.he() != null) {
+                for (HalfEdge out : mRingCursor.outEdges(v)) {
+                    HalfEdge he = out.opposite();
+                    if (hes[he.mId]) throw new AssertionError("Loop around " + v.toString()
+                            + " contains " + he.toString() + " which points to "
+                            + he.vertex().toString());
+                    hes[he.mId] = true;
+                    if (he.vertex() != v) throw new AssertionError(he.toString()
+                            + " is in loop associated with " + v.toString()
+                            + " but points to " + he.vertex().toString());
+                    degree++;
+                }
             }
+            if (degree != v.mDegree) throw new AssertionError(v.toString() + " has degree "
+                    + v.mDegree + " but " + degree + " outgoing edges");
+            validateRing(v);
+        }
+        for (HalfEdge he : mEdges) {
+            if (ringIndexOf(he.opposite().vertex(), he) < 0) throw new AssertionError(
+                    he.toString() + " is not in the ring of the vertex it starts from");
         }
     }
     private void validateVerticesAllConnected() {
         if (mVertices.isEmpty()) return;
-        // Use BFS to mark all vertices connected to first Vertex
+        // Use DFS to mark all vertices connected to first Vertex
         boolean vs[] = new boolean[mVertices.size()];
         ArrayList<Vertex> children = new ArrayList<>();
         for (Vertex v : mVertices) {
@@ -666,11 +2202,12 @@ public class Mesh {
             }
         }
         while (!children.isEmpty()) {
-            Vertex v = children.remove(0);
+            Vertex v = children.remove(children.size() - 1);
+            if (vs[v.mId]) continue;
             vs[v.mId] = true;
-            for (Vertex child : v.getNeighbors()) {
-                if (!vs[child.mId]) {
-                    children.add(child);
+            for (HalfEdge he : mRingCursor.outEdges(v)) {
+                if (!vs[he.vertex().mId]) {
+                    children.add(he.vertex());
                 }
             }
         }
@@ -686,47 +2223,91 @@ public class Mesh {
         // This might be completely redundant with previous validations
         boolean hes[] = new boolean[mEdges.size()];
         for (Face f : mFaces) {
-            for(HalfEdge he : f.getEdges()) {
-                if (hes[he.mId]) throw new AssertionError("Loop around " + f.toString()
-                        + " contains " + he.toString() + " which points to " + he.mFace.toString());
-                hes[he.mId] = true;
-                if (he.mFace != f) throw new AssertionError(he.toString()
-                        + " is in loop associated with " + f.toString()
-                        + " but points to " + he.mFace.toString());
+            int size = 0;
+            if (f.he() != null) {
+                for (HalfEdge he : mLoopCursor.loop(f)) {
+                    if (hes[he.mId]) throw new AssertionError("Loop around " + f.toString()
+                            + " contains " + he.toString() + " which points to "
+                            + he.face().toString());
+                    hes[he.mId] = true;
+                    if (he.face() != f) throw new AssertionError(he.toString()
+                            + " is in loop associated with " + f.toString()
+                            + " but points to " + he.face().toString());
+                    validateInBounds(f, he.vertex());
+                    size++;
+                }
             }
+            if (size != f.mSize) throw new AssertionError(f.toString() + " has size "
+                    + f.mSize + " but " + size + " edges in its loop");
+            validateMetrics(f);
         }
     }
+    private void validateInBounds(Face f, Vertex v) {
+        Vertex p = v;
+        if (p.x() < f.mMinX || p.y() < f.mMinY || p.x() > f.mMaxX || p.y() > f.mMaxY)
+            throw new AssertionError(v.toString() + " is on the loop of " + f.toString()
+                    + " but outside its bounding box");
+    }
+    // The edges don't cross, so a face is inside the outer face exactly if its loop winds
+    // the inner way
     private void validateFacesAllContainedByOuterFace() {
-        Face outerFace = mFaces.get(0);
         for (Face f : mFaces) {
             if (f.mId == 0) continue;
-            if (!outerFace.containsFace(f)) throw new AssertionError(f.toString()
+            if (!f.windsLikeInnerFace()) throw new AssertionError(f.toString()
                     + " not contained by outer face.");
         }
     }
+    // The incremental sums drift a little from a fresh measurement, allow for rounding in
+    // everything that went into them
+    private void validateMetrics(Face f) {
+        double cross = 0;
+        double momentX = 0;
+        double momentY = 0;
+        double scale = 0;
+        double momentScale = 0;
+        for (HalfEdge he : mLoopCursor.loop(f)) {
+            Vertex from = he.opposite().vertex();
+            Vertex to = he.vertex();
+            double c = (double) from.x() * to.y() - (double) to.x() * from.y();
+            cross += c;
+            momentX += ((double) from.x() + to.x()) * c;
+            momentY += ((double) from.y() + to.y()) * c;
+            scale += Math.abs(c);
+            momentScale += (Math.abs(from.x() + to.x()) + Math.abs(from.y() + to.y()))
+                    * Math.abs(c);
+        }
+        double tolerance = 1e-9 * (Math.max(scale, f.mCrossMagnitude) + 1);
+        double momentTolerance = 1e-9 * (Math.max(momentScale, f.mMomentMagnitude) + 1);
+        if (Math.abs(cross - f.mCross) > tolerance
+                || Math.abs(momentX - f.mMomentX) > momentTolerance
+                || Math.abs(momentY - f.mMomentY) > momentTolerance)
+            throw new AssertionError(f.toString() + " has area sums " + f.mCross + ", "
+                    + f.mMomentX + ", " + f.mMomentY + " but its loop measures " + cross + ", "
+                    + momentX + ", " + momentY);
+    }
 
     @Override
     public String toString() {
-        String str = "Mesh: [vertices: [";
+        StringBuilder sb = new StringBuilder("Mesh: [vertices: [");
         for (Vertex vertex : mVertices) {
-            str += "\n" + vertex;
+            sb.append('\n').append(vertex);
         }
-        str += "]\n";
+        sb.append("]\n");
         if (!mEdges.isEmpty()) {
-            str += "edges: [";
+            sb.append("edges: [");
             for (HalfEdge he: mEdges) {
-                str += "\n" + he;
+                sb.append('\n').append(he);
             }
-            str += "]\n";
+            sb.append("]\n");
         }
         if (!mFaces.isEmpty()) {
-            str += "faces: [";
+            sb.append("faces: [");
             for (Face face : mFaces) {
-                str += "\n" + face;
+                sb.append('\n').append(face);
             }
-            str += "]\n";
+            sb.append("]\n");
         }
-        str +=  "]";
-        return str;
+        sb.append(']');
+        return sb.toString();
     }
 }
\ No newline at end of file
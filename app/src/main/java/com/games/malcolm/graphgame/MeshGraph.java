@@ -11,8 +11,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.concurrent.Executor;
 
 /**
  * Created by Thomas on 3/17/17.
@@ -24,11 +23,17 @@ import java.util.Set;
 public class MeshGraph extends Mesh {
     private static final String TAG = "MeshGraph";
     private static final int VERTEX_RADIUS = 30;
+    private static final int GRID_CELL_SIZE = 4 * VERTEX_RADIUS;
+    private static final int VERTEX_GRID_CELL_SIZE = 2 * VERTEX_RADIUS; // see pointOnAnyVertex
+    private static final int MIN_EDGES_PER_TASK = 256; // for the parallel addGraphEdges
 
     private class GraphVertex {
         int mId;
+        int mHandle; // what callers of the public methods hold, stable unlike mId
         Vertex mV;
         ArrayList<GraphEdge> mEdges;
+        int mCrossings; // intersections on its edges, kept up to date with them
+        boolean mDirty; // queued for the next incremental validation
 
         GraphVertex(Vertex v, int id) {
             mId = id;
@@ -36,10 +41,7 @@ public class MeshGraph extends Mesh {
             mEdges = new ArrayList<>();
         }
         public boolean isNeighbor(GraphVertex v) {
-            for (GraphEdge ge : mEdges) {
-                if (ge.mV1 == v || ge.mV2 == v) return true;
-            }
-            return false;
+            return mGraphEdgeIndex.get(mHandle, v.mHandle) != PairIndex.NONE;
         }
         public ArrayList<GraphVertex> getNeighbors() {
             ArrayList<GraphVertex> neighbors = new ArrayList<>();
@@ -49,10 +51,9 @@ public class MeshGraph extends Mesh {
             return neighbors;
         }
         public GraphEdge getEdgeBetween(GraphVertex v) {
-            for (GraphEdge ge : mEdges) {
-                if (ge.mV1 == v || ge.mV2 == v) return ge;
-            }
-            return null;
+            int handle = mGraphEdgeIndex.get(mHandle, v.mHandle);
+            return handle == PairIndex.NONE ? null
+                    : mGraphEdges.get(mGraphEdgeHandles.indexOf(handle));
         }
         public void draw(Canvas canv, boolean isSelected) {
             Paint paint = new Paint();
@@ -63,10 +64,10 @@ public class MeshGraph extends Mesh {
             } else {
                 paint.setColor(Color.RED);
             }
-            canv.drawCircle(mV.mP.x, mV.mP.y, VERTEX_RADIUS, paint);
+            canv.drawCircle(mV.x(), mV.y(), VERTEX_RADIUS, paint);
             paint.setStyle(Paint.Style.STROKE);
             paint.setColor(Color.BLACK);
-            canv.drawCircle(mV.mP.x, mV.mP.y, VERTEX_RADIUS, paint);
+            canv.drawCircle(mV.x(), mV.y(), VERTEX_RADIUS, paint);
         }
 
         @Override
@@ -78,10 +79,15 @@ public class MeshGraph extends Mesh {
     }
     private class GraphEdge {
         int mId;
+        int mHandle;
         GraphVertex mV1;
         GraphVertex mV2;
+        // The chain along the segment from mV1 to mV2. Crossings are ordered by their
+        // parameter on it, and piece i of mHes runs from crossing i - 1 to crossing i.
         ArrayList<HalfEdge> mHes;
         ArrayList<Intersection> mIntersections;
+        boolean mDirty; // queued for the next incremental validation
+        final Segment mSegment = new Segment(); // mV1 to mV2, set when it goes in the grid
         GraphEdge(GraphVertex v1, GraphVertex v2, int id) {
             mId = id;
             mV1 = v1;
@@ -89,27 +95,57 @@ public class MeshGraph extends Mesh {
             mHes = new ArrayList<>();
             mIntersections = new ArrayList<>();
         }
-        public HalfEdge getIntersectingHalfEdge(GraphVertex v1, GraphVertex v2) {
-            for (HalfEdge he : mHes) {
-                if (Point.segmentsIntersect(
-                        v1.mV.mP, v2.mV.mP,
-                        he.mVertex.mP, he.mOpposite.mVertex.mP)) {
-                    return he;
-                }
+        public float parameterOf(Intersection in) {
+            return in.mGe1 == this ? in.mT1 : in.mT2;
+        }
+        // Number of crossings before t, which is also the piece t falls on
+        public int pieceAt(float t) {
+            int lo = 0;
+            int hi = mIntersections.size();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (parameterOf(mIntersections.get(mid)) < t) lo = mid + 1;
+                else hi = mid;
             }
-            return null;
+            return lo;
         }
-        public void updateSplitHalfEdge(HalfEdge heOriginal, Vertex vSlpit) {
-            mHes.remove(heOriginal);
-            for (HalfEdge he : vSlpit.getOutEdges()) {
-                mHes.add(he);
+        public int indexOf(Intersection in) {
+            float t = parameterOf(in);
+            for (int i = pieceAt(t); i < mIntersections.size(); i++) {
+                Intersection in1 = mIntersections.get(i);
+                if (in1 == in) return i;
+                if (parameterOf(in1) != t) break;
             }
+            return -1;
+        }
+        public Vertex pieceStart(int i) {
+            return i == 0 ? mV1.mV : mIntersections.get(i - 1).mV;
+        }
+        public Vertex pieceEnd(int i) {
+            return i == mIntersections.size() ? mV2.mV : mIntersections.get(i).mV;
+        }
+        // Piece i was just split at the vertex of in
+        public void splitPiece(int i, Intersection in) {
+            markDirty(this);
+            HalfEdge he1 = edgeBetweenVertices(in.mV, pieceStart(i));
+            HalfEdge he2 = edgeBetweenVertices(in.mV, pieceEnd(i));
+            listSet(mHes, i, he1);
+            listInsert(mHes, i + 1, he2);
+            listInsert(mIntersections, i, in);
+        }
+        // The other way around, the crossing between pieces i and i + 1 goes away
+        public void mergePieces(int i) {
+            markDirty(this);
+            HalfEdge he = contractVertex(mIntersections.get(i).mV);
+            listRemove(mHes, i + 1);
+            listSet(mHes, i, he);
+            listRemove(mIntersections, i);
         }
         // TODO: misnommer. Only the first half of the condition checks this.
         public boolean isPartOfMinimumSpanningTree() {
             boolean inMinSpanningTree = false;
             for (HalfEdge he : mHes) {
-                inMinSpanningTree |= he.mFace.mId == he.mOpposite.mFace.mId;
+                inMinSpanningTree |= he.face().mId == he.opposite().face().mId;
             }
             return inMinSpanningTree && (mV1.mEdges.size() > 1 && mV2.mEdges.size() > 1);
         }
@@ -122,7 +158,7 @@ public class MeshGraph extends Mesh {
             } else {
                 paint.setStrokeWidth(10);
             }
-            canv.drawLine(mV1.mV.mP.x, mV1.mV.mP.y, mV2.mV.mP.x,mV2.mV.mP.y, paint);
+            canv.drawLine(mV1.mV.x(), mV1.mV.y(), mV2.mV.x(),mV2.mV.y(), paint);
         }
 
         @Override
@@ -136,22 +172,29 @@ public class MeshGraph extends Mesh {
     }
     private class Intersection {
         int mId;
+        int mHandle;
         Vertex mV;
         GraphEdge mGe1;
         GraphEdge mGe2;
         Point mP; // intersection point. Only used in transition, should be null when in graph
-        HalfEdge mHe; // only used in transition should be null when in graph
-        Intersection(Point intersection, HalfEdge he, GraphEdge ge) {
+        // Parameters along mGe1 and mGe2. In transition mT1 is along the edge being added.
+        float mT1;
+        float mT2;
+        boolean mDirty; // queued for the next incremental validation
+        Intersection(Point intersection, GraphEdge ge, float t1, float t2) {
             mId = -1;
             mP = intersection;
             mGe1 = ge;
             mGe2 = ge;
-            mHe = he;
+            mT1 = t1;
+            mT2 = t2;
         }
-        Intersection(Vertex v, GraphEdge ge1, GraphEdge ge2, int id) {
+        Intersection(Vertex v, GraphEdge ge1, GraphEdge ge2, float t1, float t2, int id) {
             mId = id;
             mGe1 = ge1;
             mGe2 = ge2;
+            mT1 = t1;
+            mT2 = t2;
             mV = v;
         }
         public void draw(Canvas canv) {
@@ -159,9 +202,9 @@ public class MeshGraph extends Mesh {
             paint.setStrokeWidth(8);
             paint.setStyle(Paint.Style.STROKE);
             paint.setColor(Color.WHITE);
-            canv.drawCircle(mV.mP.x, mV.mP.y, VERTEX_RADIUS - 3, paint);
+            canv.drawCircle(mV.x(), mV.y(), VERTEX_RADIUS - 3, paint);
             paint.setColor(Color.BLACK);
-            canv.drawCircle(mV.mP.x, mV.mP.y, VERTEX_RADIUS, paint);
+            canv.drawCircle(mV.x(), mV.y(), VERTEX_RADIUS, paint);
         }
 
         @Override
@@ -173,33 +216,221 @@ public class MeshGraph extends Mesh {
                     ", ge1: " + ge1Str + ", ge2: " + ge2Str + "]";
         }
     }
-    private static class OrderByDistance implements Comparator<Intersection> {
-        Point mOrigin;
-        OrderByDistance(Point p) {
-            mOrigin = p;
+    private static final OrderById ORDER_BY_ID = new OrderById();
+    private static final OrderByParameter ORDER_BY_PARAMETER = new OrderByParameter();
+    private static class OrderById implements Comparator<GraphEdge> {
+        @Override
+        public int compare(GraphEdge ge1, GraphEdge ge2) {
+            return ge1.mId - ge2.mId;
         }
+    }
+    private static class OrderByParameter implements Comparator<Intersection> {
         @Override
-        public int compare(Intersection p1, Intersection p2) {
-            Point v1 = p1.mP.copyMinus(mOrigin);
-            Point v2 = p2.mP.copyMinus(mOrigin);
-            return Float.compare(v1.dot(v1), v2.dot(v2));
+        public int compare(Intersection in1, Intersection in2) {
+            return Float.compare(in1.mT1, in2.mT1);
         }
     }
 
     private ArrayList<GraphEdge> mGraphEdges;
     private ArrayList<GraphVertex> mGraphVertices;
     private ArrayList<Intersection> mGraphIntersections;
+    // Handles for the graph elements. The public methods take graph vertex handles.
+    private HandleTable mGraphVertexHandles;
+    private HandleTable mGraphEdgeHandles;
+    private HandleTable mIntersectionHandles;
+    // {graph vertex handle, graph vertex handle} -> graph edge handle
+    private PairIndex mGraphEdgeIndex;
+    // Graph edge handles by the cells their segment passes through, see getIntersections
+    private SegmentGrid mGraphEdgeGrid;
+    // The candidates from mGraphEdgeGrid, tested against a new edge all at once
+    private final SegmentBatch mBatch = new SegmentBatch();
+    // Reused by getIntersections for every edge it is asked about
+    private final ArrayList<GraphEdge> mCandidates = new ArrayList<>();
+    private final ArrayList<Intersection> mFound = new ArrayList<>();
+    private final Segment mNewSegment = new Segment();
+    // Graph vertex handles by where their mesh vertex is
+    private PointGrid mGraphVertexGrid;
 
+    // Graph elements touched since the last validation, see validateGraph
+    private ArrayList<GraphEdge> mDirtyGraphEdges;
+    private ArrayList<GraphVertex> mDirtyGraphVertices;
+    private ArrayList<Intersection> mDirtyIntersections;
+    // Per vertex scratch counters for the validators, all zero between uses
+    private int[] mVertexMarks = new int[0];
+    // Where validateGraphIntersection works out the crossing point
+    private final float[] mValidatePoint = new float[2];
 
     MeshGraph() {
         clear();
     }
+    /**
+     * A graph with vertices at (xs[i], ys[i]) and edges between vertices from[k] and to[k],
+     * which index xs and ys. Vertices addGraphVertex turns down are left out with their edges.
+     */
+    MeshGraph(int[] xs, int[] ys, int[] from, int[] to) {
+        this(xs, ys, from, to, null, 1);
+    }
+    /**
+     * The same graph, with the crossings found by the given number of tasks on executor.
+     */
+    MeshGraph(int[] xs, int[] ys, int[] from, int[] to, Executor executor, int tasks) {
+        this();
+        int[] handles = new int[xs.length];
+        for (int i = 0; i < xs.length; i++) handles[i] = addGraphVertex(xs[i], ys[i]);
+        int[] handleFrom = new int[from.length];
+        int[] handleTo = new int[to.length];
+        for (int k = 0; k < from.length; k++) {
+            handleFrom[k] = handles[from[k]];
+            handleTo[k] = handles[to[k]];
+        }
+        addGraphEdges(handleFrom, handleTo, executor, tasks);
+    }
     @Override
     public void clear() {
         super.clear();
         mGraphEdges = new ArrayList<>();
         mGraphVertices = new ArrayList<>();
         mGraphIntersections = new ArrayList<>();
+        // Cleared rather than replaced, so handles from before stay stale
+        if (mGraphVertexHandles == null) {
+            mGraphVertexHandles = new HandleTable();
+            mGraphEdgeHandles = new HandleTable();
+            mIntersectionHandles = new HandleTable();
+        } else {
+            mGraphVertexHandles.clear();
+            mGraphEdgeHandles.clear();
+            mIntersectionHandles.clear();
+        }
+        mGraphEdgeIndex = new PairIndex(false);
+        mGraphEdgeGrid = new SegmentGrid(GRID_CELL_SIZE);
+        mGraphVertexGrid = new PointGrid(VERTEX_GRID_CELL_SIZE);
+        mDirtyGraphEdges = new ArrayList<>();
+        mDirtyGraphVertices = new ArrayList<>();
+        mDirtyIntersections = new ArrayList<>();
+    }
+    private void markDirty(GraphEdge ge) {
+        if (ge.mDirty) return;
+        ge.mDirty = true;
+        mDirtyGraphEdges.add(ge);
+    }
+    private void markDirty(GraphVertex gv) {
+        if (gv.mDirty) return;
+        gv.mDirty = true;
+        mDirtyGraphVertices.add(gv);
+    }
+    private void markDirty(Intersection in) {
+        if (in.mDirty) return;
+        in.mDirty = true;
+        mDirtyIntersections.add(in);
+    }
+
+    // Journal op codes for the graph elements, see Mesh.undo
+    private static final int OP_GRAPH_EDGE_ID = OP_SUBCLASS;
+    private static final int OP_GRAPH_VERTEX_ID = OP_SUBCLASS + 1;
+    private static final int OP_INTERSECTION_ID = OP_SUBCLASS + 2;
+    private static final int OP_GRID_ADD = OP_SUBCLASS + 3;
+    private static final int OP_GRID_REMOVE = OP_SUBCLASS + 4;
+    private static final int OP_VERTEX_GRID_ADD = OP_SUBCLASS + 5;
+    private static final int OP_VERTEX_GRID_REMOVE = OP_SUBCLASS + 6;
+    private static final int OP_GRAPH_VERTEX_CROSSINGS = OP_SUBCLASS + 7;
+
+    @Override
+    protected void undo(Journal j, int i) {
+        Object target = j.target(i);
+        switch (j.op(i)) {
+            case OP_GRAPH_EDGE_ID:
+                ((GraphEdge) target).mId = j.a(i);
+                markDirty((GraphEdge) target);
+                break;
+            case OP_GRAPH_VERTEX_ID:
+                ((GraphVertex) target).mId = j.a(i);
+                markDirty((GraphVertex) target);
+                break;
+            case OP_INTERSECTION_ID:
+                ((Intersection) target).mId = j.a(i);
+                markDirty((Intersection) target);
+                break;
+            case OP_GRID_ADD:
+                unindexSegment((GraphEdge) target);
+                break;
+            case OP_GRID_REMOVE:
+                indexSegment((GraphEdge) target);
+                break;
+            case OP_VERTEX_GRID_ADD:
+                unindexPoint((GraphVertex) target);
+                break;
+            case OP_VERTEX_GRID_REMOVE:
+                indexPoint((GraphVertex) target);
+                break;
+            case OP_GRAPH_VERTEX_CROSSINGS:
+                ((GraphVertex) target).mCrossings = j.a(i);
+                markDirty((GraphVertex) target);
+                break;
+            default:
+                super.undo(j, i);
+        }
+    }
+    @Override
+    protected void markElementDirty(Object o) {
+        if (o instanceof GraphEdge) markDirty((GraphEdge) o);
+        else if (o instanceof GraphVertex) markDirty((GraphVertex) o);
+        else if (o instanceof Intersection) markDirty((Intersection) o);
+        else super.markElementDirty(o);
+    }
+    @Override
+    protected void validateTransaction() {
+        validateGraph();
+    }
+    private void setId(GraphEdge ge, int id) {
+        mJournal.record(OP_GRAPH_EDGE_ID, ge, ge.mId);
+        ge.mId = id;
+    }
+    private void setId(GraphVertex gv, int id) {
+        mJournal.record(OP_GRAPH_VERTEX_ID, gv, gv.mId);
+        gv.mId = id;
+    }
+    private void setCrossings(GraphVertex gv, int crossings) {
+        mJournal.record(OP_GRAPH_VERTEX_CROSSINGS, gv, gv.mCrossings);
+        gv.mCrossings = crossings;
+        markDirty(gv);
+    }
+    // Two edges that cross never share a vertex, so each of the four ends counts it once
+    private void countCrossing(GraphEdge ge1, GraphEdge ge2, int delta) {
+        setCrossings(ge1.mV1, ge1.mV1.mCrossings + delta);
+        setCrossings(ge1.mV2, ge1.mV2.mCrossings + delta);
+        setCrossings(ge2.mV1, ge2.mV1.mCrossings + delta);
+        setCrossings(ge2.mV2, ge2.mV2.mCrossings + delta);
+    }
+    private void setId(Intersection in, int id) {
+        mJournal.record(OP_INTERSECTION_ID, in, in.mId);
+        in.mId = id;
+    }
+    // A graph edge is one straight segment however often it is split, so it goes in the
+    // grid once and only moves with its vertices. Its cached segment is set along with it.
+    private void indexSegment(GraphEdge ge) {
+        Segment s = ge.mSegment;
+        s.set(ge.mV1.mV.x(), ge.mV1.mV.y(), ge.mV2.mV.x(), ge.mV2.mV.y());
+        mGraphEdgeGrid.add(ge.mHandle, s.mX1, s.mY1, s.mX2, s.mY2);
+    }
+    private void unindexSegment(GraphEdge ge) {
+        Segment s = ge.mSegment;
+        mGraphEdgeGrid.remove(ge.mHandle, s.mX1, s.mY1, s.mX2, s.mY2);
+    }
+    // A graph vertex is in the grid under its handle at its position, so it comes out before
+    // either changes and goes back in after
+    private void indexGraphVertex(GraphVertex gv) {
+        indexPoint(gv);
+        mJournal.record(OP_VERTEX_GRID_ADD, gv, null);
+    }
+    private void unindexGraphVertex(GraphVertex gv) {
+        unindexPoint(gv);
+        mJournal.record(OP_VERTEX_GRID_REMOVE, gv, null);
+    }
+    private void indexPoint(GraphVertex gv) {
+        mGraphVertexGrid.add(gv.mHandle, gv.mV.x(), gv.mV.y());
+    }
+    private void unindexPoint(GraphVertex gv) {
+        mGraphVertexGrid.remove(gv.mHandle, gv.mV.x(), gv.mV.y());
     }
 
     /*
@@ -209,17 +440,19 @@ public class MeshGraph extends Mesh {
     /**********   Vertices   ***********/
     private GraphVertex addGraphVertex(Vertex v) {
         GraphVertex vertex = new GraphVertex(v, mGraphVertices.size());
-        mGraphVertices.add(vertex);
+        vertex.mHandle = handleAdd(mGraphVertexHandles);
+        listAdd(mGraphVertices, vertex);
+        indexGraphVertex(vertex);
+        markDirty(vertex);
         return vertex;
     }
     private GraphVertex addGraphVertex(final int x, final int y, int skip) {
         validateGraph();
-        Point p = new Point(x, y);
-        if (pointOnAnyVertex(p, skip) >= 0) {
+        if (pointOnAnyVertex(x, y, skip) >= 0) {
             Log.i(TAG, "Point already contained in Vertex. Not adding Vertex");
             return null;
         }
-        Vertex v = addVertex(p);
+        Vertex v = addVertex(new Point(x, y));
         GraphVertex gv = addGraphVertex(v);
         validateGraph();
         return gv;
@@ -227,43 +460,229 @@ public class MeshGraph extends Mesh {
     public int addGraphVertex(final int x, final int y) {
         validateGraph();
         GraphVertex v = addGraphVertex(x, y, -1);
-        return v == null ? -1 : v.mId;
+        return v == null ? -1 : v.mHandle;
     }
 
     /**********   Edges   ***********/
     private GraphEdge addGraphEdge(GraphVertex v1, GraphVertex v2) {
         GraphEdge ge = new GraphEdge(v1, v2, mGraphEdges.size());
-        mGraphEdges.add(ge);
-        v1.mEdges.add(ge);
-        v2.mEdges.add(ge);
+        ge.mHandle = handleAdd(mGraphEdgeHandles);
+        listAdd(mGraphEdges, ge);
+        listAdd(v1.mEdges, ge);
+        listAdd(v2.mEdges, ge);
+        indexPut(mGraphEdgeIndex, v1.mHandle, v2.mHandle, ge.mHandle);
+        indexSegment(ge);
+        mJournal.record(OP_GRID_ADD, ge, null);
+        markDirty(ge);
+        markDirty(v1);
+        markDirty(v2);
         return ge;
     }
     private void addGraphEdge2(GraphVertex v1, GraphVertex v2) {
         validateGraph();
-        if (v1.isNeighbor(v2)) return;
+        if (v1 == v2 || v1.isNeighbor(v2)) return; // no loops, no parallel edges
         ArrayList<Intersection> intersections = getIntersections(v1, v2);
+        if (splitsMesh(v1, v2, intersections)) {
+            Log.i(TAG, "Not creating two connected components. Skip add Edge");
+            return;
+        }
         GraphEdge ge = addGraphEdge(v1, v2); // needs to be after getting intersections
-        Collections.sort(intersections, new OrderByDistance(v1.mV.mP));
-        Vertex v_prev = v1.mV;
-        for (Intersection in: intersections) {
-            Vertex v = splitEdge(in.mHe.mVertex, in.mHe.mOpposite.mVertex, in.mP);
-            in.mGe1.updateSplitHalfEdge(in.mHe, v);
+        addChain(ge, intersections);
+        validateGraph();
+    }
+    // The mesh only has one outer loop, so a new edge has to touch what is already there,
+    // through one of its ends or a crossing
+    private boolean splitsMesh(GraphVertex v1, GraphVertex v2,
+                               ArrayList<Intersection> intersections) {
+        return intersections.isEmpty() && v1.mV.isIsolated() && v2.mV.isIsolated()
+                && !mEdges.isEmpty();
+    }
+    // Split the graph edges that ge crosses and join its pieces up through the new
+    // intersections, from v1 to v2
+    private void addChain(GraphEdge ge, ArrayList<Intersection> intersections) {
+        Collections.sort(intersections, ORDER_BY_PARAMETER);
+        Vertex v_prev = ge.mV1.mV;
+        for (int i = 0; i < intersections.size(); i++) {
+            Intersection in = intersections.get(i);
+            GraphEdge geCross = in.mGe1;
+            int piece = geCross.pieceAt(in.mT2);
+            HalfEdge heCross = geCross.mHes.get(piece);
+            Vertex v = splitEdge(heCross.vertex(), heCross.opposite().vertex(), in.mP);
+            Intersection gI = addIntersection(v, ge, geCross, in.mT1, in.mT2);
+            geCross.splitPiece(piece, gI);
             HalfEdge he = addEdge(v_prev, v);
-            ge.mHes.add(he);
-            addIntersection(v, ge, in.mGe1);
+            listAdd(ge.mHes, he);
+            listAdd(ge.mIntersections, gI);
             v_prev = v;
         }
-        HalfEdge he = addEdge(v_prev, v2.mV);
-        ge.mHes.add(he);
-        validateGraph();
+        HalfEdge he = addEdge(v_prev, ge.mV2.mV);
+        listAdd(ge.mHes, he);
     }
-    public void addGraphEdge(final int startVertexInd, final int endVertexInd) {
-        GraphVertex v1 = mGraphVertices.get(startVertexInd);
-        GraphVertex v2 = mGraphVertices.get(endVertexInd);
+    public void addGraphEdge(final int startVertex, final int endVertex) {
+        GraphVertex v1 = getGraphVertex(startVertex);
+        GraphVertex v2 = getGraphVertex(endVertex);
+        if (v1 == null || v2 == null || v1 == v2) return;
         validateGraph();
         addGraphEdge2(v1, v2);
         validateGraph();
     }
+    /**
+     * Add the graph edges from[k] to[k], skipping the same pairs addGraphEdge would. Graph
+     * edges and intersections come out exactly as if they had been added one by one in this
+     * order, but all crossings are found by one sweep and the mesh is rebuilt in one pass.
+     */
+    public void addGraphEdges(int[] from, int[] to) {
+        addGraphEdges(from, to, null, 1);
+    }
+    /**
+     * addGraphEdges with the crossings found and measured by the given number of tasks on
+     * executor. Linking the mesh stays on the calling thread, and the result is the same as
+     * with one task.
+     */
+    public void addGraphEdges(int[] from, int[] to, Executor executor, int tasks) {
+        if (inTransaction()) throw new AssertionError("addGraphEdges in a transaction");
+        validateGraph();
+        int count = mGraphEdges.size();
+        GraphVertex[] v1s = new GraphVertex[from.length];
+        GraphVertex[] v2s = new GraphVertex[from.length];
+        PairIndex pending = new PairIndex(false);
+        int n = 0;
+        for (int k = 0; k < from.length; k++) {
+            GraphVertex v1 = getGraphVertex(from[k]);
+            GraphVertex v2 = getGraphVertex(to[k]);
+            if (v1 == null || v2 == null || v1 == v2 || v1.isNeighbor(v2)) continue;
+            if (pending.get(v1.mHandle, v2.mHandle) != PairIndex.NONE) continue;
+            pending.put(v1.mHandle, v2.mHandle, n);
+            v1s[n] = v1;
+            v2s[n++] = v2;
+        }
+        if (n == 0) return;
+
+        // Every crossing of a new edge, with the existing edges and among the new ones.
+        // Segment keys are graph edge ids, the new edges get the ids addGraphEdge will give.
+        SegmentSweep sweep = new SegmentSweep();
+        for (GraphEdge ge : mGraphEdges) {
+            Vertex a = ge.mV1.mV;
+            Vertex b = ge.mV2.mV;
+            sweep.add(ge.mId, a.x(), a.y(), b.x(), b.y());
+        }
+        for (int k = 0; k < n; k++) {
+            Vertex a = v1s[k].mV;
+            Vertex b = v2s[k].mV;
+            sweep.add(count + k, a.x(), a.y(), b.x(), b.y());
+        }
+        int crossings = sweep.findAllCrossings(executor, tasks);
+
+        // The mesh can only be built in one pass if the edges end up in one piece
+        int[] parent = new int[mGraphVertices.size()];
+        boolean[] touched = new boolean[parent.length];
+        for (int i = 0; i < parent.length; i++) parent[i] = i;
+        for (GraphEdge ge : mGraphEdges) join(parent, touched, ge.mV1, ge.mV2);
+        for (int k = 0; k < n; k++) join(parent, touched, v1s[k], v2s[k]);
+        for (int i = 0; i < crossings; i++) {
+            join(parent, touched, startOf(sweep.firstKey(i), v1s),
+                    startOf(sweep.secondKey(i), v1s));
+        }
+        int root = -1;
+        for (int i = 0; i < parent.length; i++) {
+            if (!touched[i]) continue;
+            if (root < 0) root = find(parent, i);
+            if (find(parent, i) == root) continue;
+            for (int k = 0; k < n; k++) addGraphEdge2(v1s[k], v2s[k]);
+            validateGraph();
+            return;
+        }
+
+        // Graph edges and intersections in the order adding them one by one makes them.
+        // Each new edge is split by the edges before it, along it like addChain does.
+        final GraphEdge[] added = new GraphEdge[n];
+        for (int k = 0; k < n; k++) added[k] = addGraphEdge(v1s[k], v2s[k]);
+        final ArrayList<ArrayList<GraphEdge>> crossed = new ArrayList<>(n);
+        for (int k = 0; k < n; k++) crossed.add(new ArrayList<GraphEdge>());
+        for (int i = 0; i < crossings; i++) {
+            int first = Math.max(sweep.firstKey(i), sweep.secondKey(i));
+            int second = Math.min(sweep.firstKey(i), sweep.secondKey(i));
+            if (first < count) continue; // already an intersection
+            crossed.get(first - count).add(mGraphEdges.get(second));
+        }
+        // Crossing points only depend on the segments, so they are worked out in parallel
+        final ArrayList<ArrayList<Intersection>> along = new ArrayList<>(n);
+        for (int k = 0; k < n; k++) along.add(new ArrayList<Intersection>());
+        int parts = Math.max(1, Math.min(tasks, n / MIN_EDGES_PER_TASK));
+        Runnable[] measure = new Runnable[parts];
+        for (int t = 0; t < parts; t++) {
+            final int lo = t * n / parts;
+            final int hi = (t + 1) * n / parts;
+            measure[t] = new Runnable() {
+                @Override
+                public void run() {
+                    for (int k = lo; k < hi; k++) {
+                        measureCrossings(added[k], crossed.get(k), along.get(k));
+                    }
+                }
+            };
+        }
+        Parallel.run(executor, measure);
+        for (int k = 0; k < n; k++) {
+            GraphEdge ge = added[k];
+            for (Intersection in : along.get(k)) {
+                GraphEdge geCross = in.mGe1;
+                Intersection gI = addIntersection(addVertex(in.mP), ge, geCross, in.mT1, in.mT2);
+                listInsert(geCross.mIntersections, geCross.pieceAt(in.mT2), gI);
+                listAdd(ge.mIntersections, gI);
+            }
+        }
+
+        // Every piece of every chain is a mesh edge, link them all up at once
+        int pieces = 0;
+        for (GraphEdge ge : mGraphEdges) pieces += ge.mIntersections.size() + 1;
+        Vertex[] starts = new Vertex[pieces];
+        Vertex[] ends = new Vertex[pieces];
+        int j = 0;
+        for (GraphEdge ge : mGraphEdges) {
+            for (int i = 0; i <= ge.mIntersections.size(); i++) {
+                starts[j] = ge.pieceStart(i);
+                ends[j++] = ge.pieceEnd(i);
+            }
+        }
+        clearEdges();
+        HalfEdge[] hes = buildEdges(starts, ends, pieces);
+        j = 0;
+        for (GraphEdge ge : mGraphEdges) {
+            ge.mHes.clear();
+            for (int i = 0; i <= ge.mIntersections.size(); i++) ge.mHes.add(hes[j++]);
+            markDirty(ge);
+        }
+        validateGraph();
+    }
+    // The crossings of ge with the edges before it, in order along ge like getIntersections
+    // and addChain make them
+    private void measureCrossings(GraphEdge ge, ArrayList<GraphEdge> crossed,
+                                  ArrayList<Intersection> intersections) {
+        Collections.sort(crossed, ORDER_BY_ID);
+        for (GraphEdge geCross : crossed) {
+            Point p = ge.mSegment.intersection(geCross.mSegment);
+            intersections.add(new Intersection(p, geCross, ge.mSegment.parameter(p),
+                    geCross.mSegment.parameter(p)));
+        }
+        Collections.sort(intersections, ORDER_BY_PARAMETER);
+    }
+    private GraphVertex startOf(int key, GraphVertex[] pending) {
+        int count = mGraphEdges.size();
+        return key < count ? mGraphEdges.get(key).mV1 : pending[key - count];
+    }
+    // Union-find over graph vertex ids, for addGraphEdges
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+    private static void join(int[] parent, boolean[] touched, GraphVertex gv1, GraphVertex gv2) {
+        touched[gv1.mId] = touched[gv2.mId] = true;
+        parent[find(parent, gv1.mId)] = find(parent, gv2.mId);
+    }
 
 
      /*
@@ -272,149 +691,327 @@ public class MeshGraph extends Mesh {
 
 
 
-    private Intersection addIntersection(Vertex v, GraphEdge ge1, GraphEdge ge2) {
-        Intersection gI = new Intersection(v, ge1, ge2, mGraphIntersections.size());
-        mGraphIntersections.add(gI);
-        ge1.mIntersections.add(gI);
-        ge2.mIntersections.add(gI);
+    // The caller puts it in the chains of its edges
+    private Intersection addIntersection(Vertex v, GraphEdge ge1, GraphEdge ge2,
+                                         float t1, float t2) {
+        Intersection gI = new Intersection(v, ge1, ge2, t1, t2, mGraphIntersections.size());
+        gI.mHandle = handleAdd(mIntersectionHandles);
+        listAdd(mGraphIntersections, gI);
+        countCrossing(ge1, ge2, 1);
+        markDirty(gI);
+        markDirty(ge1);
+        markDirty(ge2);
         return gI;
     }
 
+    // The list is reused by the next call, so callers have to be done with it by then
     private ArrayList<Intersection> getIntersections(GraphVertex v1, GraphVertex v2) {
-        ArrayList<Intersection> intersections = new ArrayList<>();
-        for (GraphEdge ge : mGraphEdges) {
-            HalfEdge he = ge.getIntersectingHalfEdge(v1, v2);
-            if (he != null) {
-                Point p = Point.lineIntersection(
-                        v1.mV.mP, v2.mV.mP,
-                        he.mVertex.mP, he.mOpposite.mVertex.mP);
-                intersections.add(new Intersection(p, he, ge));
-            }
+        ArrayList<Intersection> intersections = mFound;
+        intersections.clear();
+        // Only graph edges that share a grid cell with the new one can cross it. Go through
+        // them in mGraphEdges order, like a scan over all of them would.
+        Segment s = mNewSegment;
+        s.set(v1.mV.x(), v1.mV.y(), v2.mV.x(), v2.mV.y());
+        int n = mGraphEdgeGrid.collect(s.mX1, s.mY1, s.mX2, s.mY2);
+        ArrayList<GraphEdge> candidates = mCandidates;
+        candidates.clear();
+        for (int i = 0; i < n; i++) {
+            candidates.add(mGraphEdges.get(mGraphEdgeHandles.indexOf(mGraphEdgeGrid.foundKey(i))));
+        }
+        Collections.sort(candidates, ORDER_BY_ID);
+        mBatch.clear();
+        for (int i = 0; i < n; i++) {
+            Segment t = candidates.get(i).mSegment;
+            mBatch.add(t.mX1, t.mY1, t.mX2, t.mY2);
         }
+        int crossed = mBatch.crossing(s.mX1, s.mY1, s.mX2, s.mY2);
+        for (int i = 0; i < crossed; i++) {
+            GraphEdge ge = candidates.get(mBatch.hit(i));
+            Point p = s.intersection(ge.mSegment);
+            intersections.add(new Intersection(p, ge, s.parameter(p), ge.mSegment.parameter(p)));
+        }
+        candidates.clear(); // don't hold on to deleted edges
         return intersections;
     }
 
+    /**
+     * Handle of a graph vertex whose circle contains p, or -1 if there is none.
+     */
     public int pointOnAnyVertex(Point p) {
-        return pointOnAnyVertex(p, -1);
+        return pointOnAnyVertex(p.x, p.y);
     }
-    private int pointOnAnyVertex(Point p, int skip) {
-        for (int i = 0; i < mGraphVertices.size(); i++) {
-            if (i == skip) continue;
-            if (p.isInCircle(mGraphVertices.get(i).mV.mP, VERTEX_RADIUS)) {
-                return i;
-            }
+    public int pointOnAnyVertex(float x, float y) {
+        int i = pointOnAnyVertex(x, y, -1);
+        return i < 0 ? -1 : mGraphVertices.get(i).mHandle;
+    }
+    // The lowest id, like a scan over mGraphVertices would find, but only among the vertices
+    // in the grid cells around (x, y)
+    private int pointOnAnyVertex(float x, float y, int skip) {
+        int best = -1;
+        for (int i = 0, n = mGraphVertexGrid.within(x, y, VERTEX_RADIUS); i < n; i++) {
+            int id = mGraphVertexHandles.indexOf(mGraphVertexGrid.foundKey(i));
+            if (id == skip) continue;
+            if (best < 0 || id < best) best = id;
         }
-        return -1;
+        return best;
+    }
+    /**
+     * Handles of the k graph vertices nearest to (x, y), nearest first. Fewer if there
+     * aren't k.
+     */
+    public int[] nearestGraphVertices(float x, float y, int k) {
+        int[] handles = new int[mGraphVertexGrid.nearest(x, y, k)];
+        for (int i = 0; i < handles.length; i++) handles[i] = mGraphVertexGrid.foundKey(i);
+        return handles;
+    }
+    /**
+     * Handles of the graph vertices in the rectangle, edges included.
+     */
+    public int[] graphVerticesIn(float minX, float minY, float maxX, float maxY) {
+        int[] handles = new int[mGraphVertexGrid.inRect(minX, minY, maxX, maxY)];
+        for (int i = 0; i < handles.length; i++) handles[i] = mGraphVertexGrid.foundKey(i);
+        return handles;
     }
 
-    public void moveGraphVertex(final int vertexInd, int x, int y) {
+    public void moveGraphVertex(final int vertex, int x, int y) {
         if (x < 0 || y < 0) return;
-        GraphVertex v = mGraphVertices.get(vertexInd);
-        GraphVertex vNew = addGraphVertex(x, y, vertexInd);
-        if (vNew == null) return;
-        for (GraphVertex vNeighbor : v.getNeighbors()) {
-            addGraphEdge2(vNeighbor, vNew);
+        GraphVertex v = getGraphVertex(vertex);
+        if (v == null) return;
+        validateGraph();
+        if (pointOnAnyVertex(x, y, v.mId) >= 0) {
+            Log.i(TAG, "Point already contained in Vertex. Not moving Vertex");
+            return;
+        }
+        if (!moveGraphVertex(v, new Point(x, y))) {
+            Log.i(TAG, "Moving would split the mesh in two. Not moving Vertex");
         }
-
-//        ArrayList<GraphVertex> neighbors = v.getNeighbors();
-        deleteGraphVertex(v);
-//        if (!success) Log.i(TAG, "WHAT?"); // TODO: handle nicely even if it should never happen
-//        int indNew = addGraphVertex(x, y);
-//        if (indNew < 0) indNew = addGraphVertex((int)v.mV.mP.x, (int)v.mV.mP.y);
-//        GraphVertex vNew = mGraphVertices.get(indNew);
-//        for (GraphVertex vNeighbor : neighbors) {
-//            addGraphEdge2(vNeighbor, vNew);
-//        }
-        // preserve index
-        GraphVertex swapV = mGraphVertices.get(v.mId);
-        swapV.mId = vNew.mId;
-        mGraphVertices.set(vNew.mId, swapV);
-        vNew.mId = v.mId;
-        mGraphVertices.set(v.mId, vNew);
         validateGraph();
     }
-
-    public void deleteGraphEdge(final int startVertexInd, final int endVertexInd) {
+    // Only the edges of v are rebuilt. Their pieces and crossings come out, the mesh vertex
+    // moves while it is isolated, and they are threaded through the graph again from the new
+    // position. Everything else, v and its edges included, keeps its id and handle. Taking
+    // out a piece that held two parts of the mesh together leaves it in pieces until a chain
+    // joins them up again. Returns false with nothing changed if it is still in pieces at
+    // the end.
+    private boolean moveGraphVertex(GraphVertex v, Point p) {
+        beginTransaction();
+        try {
+            for (int i = 0; i < v.mEdges.size(); i++) {
+                GraphEdge ge = v.mEdges.get(i);
+                unindexSegment(ge);
+                mJournal.record(OP_GRID_REMOVE, ge, null);
+                removeChain(ge, v);
+            }
+            unindexGraphVertex(v);
+            moveVertex(v.mV, p);
+            indexGraphVertex(v);
+            markDirty(v);
+            // Neighbours that were leaves are isolated now. Joining one of them to the moved
+            // vertex first would start another piece, so the others go first.
+            for (int i = 0; i < v.mEdges.size(); i++) {
+                GraphEdge ge = v.mEdges.get(i);
+                if (!otherEnd(ge, v).mV.isIsolated()) readdChain(ge);
+            }
+            for (int i = 0; i < v.mEdges.size(); i++) {
+                GraphEdge ge = v.mEdges.get(i);
+                if (ge.mHes.isEmpty()) readdChain(ge);
+            }
+            if (isInPieces()) {
+                rollbackTransaction();
+                return false;
+            }
+        } catch (AssertionError e) {
+            if (inTransaction()) rollbackTransaction();
+            throw e;
+        }
+        commitTransaction();
+        return true;
+    }
+    private GraphVertex otherEnd(GraphEdge ge, GraphVertex gv) {
+        return ge.mV1 == gv ? ge.mV2 : ge.mV1;
+    }
+    private void readdChain(GraphEdge ge) {
+        addChain(ge, getIntersections(ge.mV1, ge.mV2));
+        indexSegment(ge);
+        mJournal.record(OP_GRID_ADD, ge, null);
+        markDirty(ge);
+    }
+    // Delete the pieces of ge starting from the end at gv, and contract the crossings they
+    // leave behind. Only called in a transaction, where deleteEdge doesn't refuse.
+    private void removeChain(GraphEdge ge, GraphVertex gv) {
+        int n = ge.mHes.size();
+        for (int i = 0; i < n; i++) {
+            deleteEdge(ge.mHes.get(ge.mV1 == gv ? i : n - 1 - i));
+        }
+        removeCrossings(ge);
+        while (!ge.mHes.isEmpty()) listRemove(ge.mHes, ge.mHes.size() - 1);
+        while (!ge.mIntersections.isEmpty()) {
+            listRemove(ge.mIntersections, ge.mIntersections.size() - 1);
+        }
+    }
+    public void deleteGraphEdge(final int startVertex, final int endVertex) {
         validateGraph();
-        GraphVertex v1 = mGraphVertices.get(startVertexInd);
-        GraphVertex v2 = mGraphVertices.get(endVertexInd);
+        GraphVertex v1 = getGraphVertex(startVertex);
+        GraphVertex v2 = getGraphVertex(endVertex);
+        if (v1 == null || v2 == null) return;
         GraphEdge ge = v1.getEdgeBetween(v2);
         deleteGraphEdge(ge);
         validateGraph();
     }
+    // Returns false with nothing changed if ge is needed to keep the graph connected, or one
+    // of its pieces is all that holds two parts of the mesh together. Inside a transaction
+    // the caller rolls back, otherwise ge gets one of its own.
     private boolean deleteGraphEdge(GraphEdge ge) {
         validateGraph();
         if (ge == null || ge.isPartOfMinimumSpanningTree()) return false;
-        ge.mV1.mEdges.remove(ge);
-        ge.mV2.mEdges.remove(ge);
-        for (HalfEdge he : ge.mHes) {
-            deleteEdge(he);
-        }
-        for (Intersection in : ge.mIntersections) {
-            GraphEdge geCross = in.mGe1 == ge ? in.mGe2 : in.mGe1;
-            for (HalfEdge he : in.mV.getOutEdges()) {
-                geCross.mHes.remove(he);
-                geCross.mHes.remove(he.mOpposite);
+        boolean own = !inTransaction();
+        if (own) beginTransaction();
+        try {
+            listRemove(ge.mV1.mEdges, ge);
+            listRemove(ge.mV2.mEdges, ge);
+            markDirty(ge.mV1);
+            markDirty(ge.mV2);
+            for (int i = 0; i < ge.mHes.size(); i++) {
+                deleteEdge(ge.mHes.get(i));
             }
-            HalfEdge he = contractVertex(in.mV);
-            geCross.mHes.add(he);
-            geCross.mIntersections.remove(in);
-            removeIntersection(in);
+            if (isInPieces()) {
+                if (own) rollbackTransaction();
+                return false;
+            }
+            removeCrossings(ge);
+            removeGraphEdge(ge);
+        } catch (AssertionError e) {
+            if (own && inTransaction()) rollbackTransaction();
+            throw e;
         }
-        removeGraphEdge(ge);
+        if (own) commitTransaction();
         validateGraph();
         return true;
     }
-    public void deleteGraphVertex(final int vertexInd) {
+    // Once the pieces of ge are gone, each of its crossings only joins two pieces of the
+    // other edge
+    private void removeCrossings(GraphEdge ge) {
+        for (int i = 0; i < ge.mIntersections.size(); i++) {
+            Intersection in = ge.mIntersections.get(i);
+            GraphEdge geCross = in.mGe1 == ge ? in.mGe2 : in.mGe1;
+            geCross.mergePieces(geCross.indexOf(in));
+            removeIntersection(in);
+        }
+    }
+    public void deleteGraphVertex(final int vertex) {
         validateGraph();
-        GraphVertex v = mGraphVertices.get(vertexInd);
+        GraphVertex v = getGraphVertex(vertex);
+        if (v == null) return;
         deleteGraphVertex(v);
     }
     private boolean deleteGraphVertex(GraphVertex v) {
         validateGraph();
-        ArrayList<GraphEdge> toRemove = new ArrayList<>();
-        for (GraphEdge ge : v.mEdges) {
-            toRemove.add(ge);
-        }
-        boolean deleteAll = true;
-        for (GraphEdge ge : toRemove) {
-            deleteAll &= deleteGraphEdge(ge);
-        }
-        if (!deleteAll) {
+        ArrayList<GraphEdge> toRemove = new ArrayList<>(v.mEdges);
+        // Either all of the edges go or none of them do
+        beginTransaction();
+        try {
             for (GraphEdge ge : toRemove) {
-                addGraphEdge2(ge.mV1, ge.mV2);
+                if (!deleteGraphEdge(ge)) {
+                    rollbackTransaction();
+                    return false;
+                }
             }
-            return false;
+            // The grid finds v by the point of its mesh vertex, so it goes first
+            removeGraphVertex(v);
+            deleteVertex(v.mV);
+        } catch (AssertionError e) {
+            if (inTransaction()) rollbackTransaction();
+            throw e;
         }
-        deleteVertex(v.mV);
-        removeGraphVertex(v);
-        validateGraph();
+        commitTransaction();
         return true;
     }
     // TODO: add check that the element is still in the mesh
     private void removeGraphEdge(GraphEdge ge) {
-        GraphEdge last = mGraphEdges.remove(mGraphEdges.size() - 1);
+        indexRemove(mGraphEdgeIndex, ge.mV1.mHandle, ge.mV2.mHandle);
+        unindexSegment(ge);
+        mJournal.record(OP_GRID_REMOVE, ge, null);
+        handleRemove(mGraphEdgeHandles, ge.mId);
+        GraphEdge last = listRemove(mGraphEdges, mGraphEdges.size() - 1);
         if (last.mId == ge.mId) {
             return;
         }
-        last.mId = ge.mId;
-        mGraphEdges.set(last.mId, last);
+        setId(last, ge.mId);
+        listSet(mGraphEdges, last.mId, last);
+        markDirty(last);
     }
     private void removeIntersection(Intersection in) {
-        Intersection last = mGraphIntersections.remove(mGraphIntersections.size() - 1);
+        countCrossing(in.mGe1, in.mGe2, -1);
+        handleRemove(mIntersectionHandles, in.mId);
+        Intersection last = listRemove(mGraphIntersections, mGraphIntersections.size() - 1);
         if (last.mId == in.mId) {
             return;
         }
-        last.mId = in.mId;
-        mGraphIntersections.set(last.mId, last);
+        setId(last, in.mId);
+        listSet(mGraphIntersections, last.mId, last);
+        markDirty(last);
     }
     private void removeGraphVertex(GraphVertex v) {
-        GraphVertex last = mGraphVertices.remove(mGraphVertices.size() - 1);
+        unindexGraphVertex(v);
+        handleRemove(mGraphVertexHandles, v.mId);
+        GraphVertex last = listRemove(mGraphVertices, mGraphVertices.size() - 1);
         if (last.mId == v.mId) {
             return;
         }
-        last.mId = v.mId;
-        mGraphVertices.set(last.mId, last);
+        setId(last, v.mId);
+        listSet(mGraphVertices, last.mId, last);
+        markDirty(last);
+    }
+    private GraphVertex getGraphVertex(int handle) {
+        int id = mGraphVertexHandles.indexOf(handle);
+        return id == HandleTable.NONE ? null : mGraphVertices.get(id);
+    }
+    @Override
+    public void compact() {
+        super.compact();
+        mGraphVertexHandles.compact();
+        mGraphEdgeHandles.compact();
+        mIntersectionHandles.compact();
+    }
+
+    /**********   Crossings   ***********/
+    // Every graph edge keeps its crossings in mIntersections and every graph vertex the total
+    // over its edges, which the journal already keeps in step through edits and rollbacks, so
+    // the counts come straight from there.
+    /**
+     * Number of pairs of graph edges that cross.
+     */
+    public int crossingCount() {
+        return mGraphIntersections.size();
+    }
+    /**
+     * True when no two graph edges cross, which is what solves a level.
+     */
+    public boolean isSolved() {
+        return mGraphIntersections.isEmpty();
+    }
+    /**
+     * Number of crossings on the edges of a graph vertex, or -1 if there is no such vertex.
+     */
+    public int vertexCrossings(final int vertex) {
+        GraphVertex gv = getGraphVertex(vertex);
+        return gv == null ? -1 : gv.mCrossings;
+    }
+    /**
+     * Handle of the graph vertex whose edges have the most crossings, or -1 if nothing
+     * crosses.
+     */
+    public int mostCrossedVertex() {
+        if (isSolved()) return -1;
+        GraphVertex best = null;
+        int bestCount = 0;
+        for (GraphVertex gv : mGraphVertices) {
+            if (gv.mCrossings > bestCount) {
+                best = gv;
+                bestCount = gv.mCrossings;
+            }
+        }
+        return best.mHandle;
     }
 
 
@@ -430,31 +1027,46 @@ public class MeshGraph extends Mesh {
         boolean v1Isolated = v1.isIsolated(); // Mark before adding edges
         boolean v2Isolated = v2.isIsolated(); // Mark before adding edges
         if (!v1Isolated && !v2Isolated) { // two connected vertices
-            Face f = faceBetweenPoints(v1.mP, v2.mP);
+            Face f = faceBetweenPoints((v1.x() + v2.x()) / 2, (v1.y() + v2.y()) / 2);
             return splitFace(f, v1, v2); // validate is called before return inside function
         }
         // At least one vertex is isolated
 
-        Face f = v1Isolated ? faceBetweenPoints(v1.mP) : faceBetweenPoints(v2.mP);
+        Face f = v1Isolated ? faceBetweenPoints(v1.x(), v1.y())
+                : faceBetweenPoints(v2.x(), v2.y());
         Log.i(TAG, "Isolated edge is on face: " + f.toString());
 
+        // Find previous edges before adding the new ones, so the loop of f is still whole
+        HalfEdge prev1 = v1Isolated ? null : findPreviousEdgeOnFace(v1, v2.x(), v2.y(), f);
+        HalfEdge prev2 = v2Isolated ? null : findPreviousEdgeOnFace(v2, v1.x(), v1.y(), f);
         HalfEdge he1 = addHalfEdge(v1, v2, f);
         HalfEdge he2 = addHalfEdge(v2, v1, f);
-        he1.mOpposite = he2;
-        he2.mOpposite = he1;
+        setOpposite(he1, he2);
+        setOpposite(he2, he1);
+        setDegree(v1, v1.mDegree + 1);
+        setDegree(v2, v2.mDegree + 1);
+        setSize(f, f.mSize + 2);
+        growBounds(f, Math.min(v1.x(), v2.x()), Math.min(v1.y(), v2.y()),
+                Math.max(v1.x(), v2.x()), Math.max(v1.y(), v2.y()));
         // Set next edges appropriately
-        HalfEdge prev1 = v1Isolated ? he2 : findPreviousEdgeOnFace(v1, v2.mP, f);
-        HalfEdge prev2 = v2Isolated ? he1 : findPreviousEdgeOnFace(v2, v1.mP, f);
-        he2.mNext = prev1.mNext;
-        prev1.mNext = he1;
-        he1.mNext = prev2.mNext;
-        prev2.mNext = he2;
-        f.mHe = he1; // This step needs to be last be last
+        if (prev1 == null) prev1 = he2;
+        if (prev2 == null) prev2 = he1;
+        setNext(he2, prev1.next());
+        setNext(prev1, he1);
+        setNext(he1, prev2.next());
+        setNext(prev2, he2);
+        markDirty(prev1);
+        markDirty(prev2);
+        if (v1Isolated && v2Isolated && f.he() != null) {
+            detachLoop(he1); // a piece of its own until an edge joins it up
+        } else if (f.he() == null || !isInPieces()) {
+            setHe(f, he1); // This step needs to be last be last
+        }
         validateMesh();
         return he1;
     }
 
-    public void draw(final Canvas canv, int selectedVertexInd) {
+    public void draw(final Canvas canv, int selectedVertex) {
         validateGraph();
         ArrayList<Integer> colors = new ArrayList<>(Arrays.asList(Color.YELLOW,
                 Color.MAGENTA, Color.GREEN, Color.CYAN, Color.BLUE, Color.DKGRAY));
@@ -467,7 +1079,7 @@ public class MeshGraph extends Mesh {
             ge.draw(canv, false);
         }
         for (GraphVertex gv : mGraphVertices) {
-            gv.draw(canv, gv.mId == selectedVertexInd);
+            gv.draw(canv, gv.mHandle == selectedVertex);
         }
         for (Intersection in : mGraphIntersections) {
             in.draw(canv);
@@ -478,9 +1090,10 @@ public class MeshGraph extends Mesh {
         paint.setStyle(Paint.Style.FILL);
         paint.setColor(color);
         Path path = new Path();
-        for (Vertex v : f.getVertices()) {
-            if (path.isEmpty()) path.moveTo(v.mP.x, v.mP.y);
-            else path.lineTo(v.mP.x, v.mP.y);
+        for (HalfEdge he : mLoopCursor.loop(f)) {
+            Vertex v = he.vertex();
+            if (path.isEmpty()) path.moveTo(v.x(), v.y());
+            else path.lineTo(v.x(), v.y());
         }
         path.close();
         if (f.mId == 0) { // outer face
@@ -500,10 +1113,33 @@ public class MeshGraph extends Mesh {
      * a message describing the problem encountered. In the middle of some methods, this is
      * expected to not be true. However, at the beginning and end of any public facing function,
      * this should always be true.
+     *
+     * Like validateMesh, this only checks the graph elements marked dirty since the last
+     * validation and their neighbours. Use validateGraphFull for a sweep over everything.
      */
     public void validateGraph() {
+        if (inTransaction()) return; // deferred to the end of the transaction
         try {
             validateMesh();
+            validateDirtyGraph();
+        } catch (AssertionError e) {
+            Log.i(TAG, toString());
+            throw e;
+        }
+        if (mCrossCheckValidation) {
+            try {
+                validateGraphFull();
+            } catch (AssertionError e) {
+                throw new AssertionError("Incremental validation missed: " + e.getMessage());
+            }
+        }
+    }
+    /**
+     * Validate the whole MeshGraph regardless of what has been marked dirty.
+     */
+    public void validateGraphFull() {
+        try {
+            validateMeshFull();
             // Isolated validations
             validateGraphEdges();
             validateGraphVertices();
@@ -519,87 +1155,298 @@ public class MeshGraph extends Mesh {
             Log.i(TAG, toString());
             throw e;
         }
+        clearDirtyGraph();
+    }
+    private void clearDirtyGraph() {
+        for (GraphEdge ge : mDirtyGraphEdges) ge.mDirty = false;
+        for (GraphVertex gv : mDirtyGraphVertices) gv.mDirty = false;
+        for (Intersection in : mDirtyIntersections) in.mDirty = false;
+        mDirtyGraphEdges.clear();
+        mDirtyGraphVertices.clear();
+        mDirtyIntersections.clear();
+    }
+    private boolean inGraph(GraphEdge ge) {
+        return ge.mId >= 0 && ge.mId < mGraphEdges.size() && mGraphEdges.get(ge.mId) == ge;
+    }
+    private boolean inGraph(GraphVertex gv) {
+        return gv.mId >= 0 && gv.mId < mGraphVertices.size() && mGraphVertices.get(gv.mId) == gv;
+    }
+    private boolean inGraph(Intersection in) {
+        return in.mId >= 0 && in.mId < mGraphIntersections.size()
+                && mGraphIntersections.get(in.mId) == in;
+    }
+
+    // Incremental validations
+    private void validateDirtyGraph() {
+        if (mDirtyGraphEdges.isEmpty() && mDirtyGraphVertices.isEmpty()
+                && mDirtyIntersections.isEmpty()) return;
+        // Edges first, they pull their vertices and intersections into the dirty sets
+        for (int i = 0; i < mDirtyGraphEdges.size(); i++) {
+            GraphEdge ge = mDirtyGraphEdges.get(i);
+            if (!inGraph(ge)) continue; // removed since it was marked
+            validateDirtyGraphEdge(ge);
+            markDirty(ge.mV1);
+            markDirty(ge.mV2);
+            for (Intersection in : ge.mIntersections) markDirty(in);
+        }
+        for (int i = 0; i < mDirtyGraphVertices.size(); i++) {
+            GraphVertex gv = mDirtyGraphVertices.get(i);
+            if (!inGraph(gv)) continue;
+            validateDirtyGraphVertex(gv);
+        }
+        for (int i = 0; i < mDirtyIntersections.size(); i++) {
+            Intersection in = mDirtyIntersections.get(i);
+            if (!inGraph(in)) continue;
+            validateDirtyIntersection(in);
+        }
+        validateGraphTotals();
+        clearDirtyGraph();
+    }
+    private void validateDirtyGraphEdge(GraphEdge ge) {
+        validateGraphEdge(ge, null, null);
+        validateGraphVertex(ge.mV1, ge, " v1: ");
+        validateGraphVertex(ge.mV2, ge, " v2: ");
+        Segment s = ge.mSegment;
+        Vertex a = ge.mV1.mV;
+        Vertex b = ge.mV2.mV;
+        if (s.mX1 != a.x() || s.mY1 != a.y() || s.mX2 != b.x() || s.mY2 != b.y())
+            throw new AssertionError(ge.toString() + " has a stale segment");
+        for (Intersection in : ge.mIntersections) {
+            validateIntersection(in, ge, " intersection: ");
+            if (in.mGe1 != ge && in.mGe2 != ge)
+                throw new AssertionError(ge.toString() + " contains intersection " + in.mId +
+                        " but is not part of that intersection: " + in.toString());
+        }
+        if (Collections.frequency(ge.mV1.mEdges, ge) != 1) throw new AssertionError(
+                ge.toString() + " should be contained once by v1: " + ge.mV1.toString());
+        if (Collections.frequency(ge.mV2.mEdges, ge) != 1) throw new AssertionError(
+                ge.toString() + " should be contained once by v2: " + ge.mV2.toString());
+        validateGraphEdgeIndex(ge);
+        validateHalfEdgesConnectIntersections(ge);
+    }
+    private void validateDirtyGraphVertex(GraphVertex gv) {
+        validateGraphVertex(gv, null, null);
+        validateGraphVertexGrid(gv);
+        for (GraphEdge ge : gv.mEdges) {
+            if (!inGraph(ge)) throw new AssertionError(gv.toString() + " contains edge "
+                    + ge.toString() + " which is not in the graph");
+            if (ge.mV1 != gv && ge.mV2 != gv)
+                throw new AssertionError(gv.toString() + " contains edge " + ge.mId +
+                        " but is not part of that edge: " + ge.toString());
+        }
+        validateGraphVertexCrossings(gv);
+    }
+    private void validateGraphVertexCrossings(GraphVertex gv) {
+        int n = 0;
+        for (GraphEdge ge : gv.mEdges) n += ge.mIntersections.size();
+        if (n != gv.mCrossings) throw new AssertionError(gv.toString() + " counts "
+                + gv.mCrossings + " crossings but its edges have " + n);
+    }
+    private void validateDirtyIntersection(Intersection in) {
+        validateGraphIntersection(in);
+        if (in.mGe1 == in.mGe2) throw new AssertionError(in.toString()
+                + " has the same first and second edge");
+        if (Collections.frequency(in.mGe1.mIntersections, in) != 1
+                || Collections.frequency(in.mGe2.mIntersections, in) != 1)
+            throw new AssertionError(in.toString() + " should be contained once by each of "
+                    + "its edges");
+        if (in.mGe1.indexOf(in) < 0 || in.mGe2.indexOf(in) < 0)
+            throw new AssertionError(in.toString() + " is not where its parameters put it "
+                    + "along its edges");
+    }
+    // The dirty elements are checked one by one, the totals make sure nothing that wasn't
+    // touched ended up double counted or orphaned.
+    private void validateGraphTotals() {
+        if (mGraphVertices.size() + mGraphIntersections.size() != mVertices.size())
+            throw new AssertionError(mGraphVertices.size() + " graph vertices and "
+                    + mGraphIntersections.size() + " intersections for "
+                    + mVertices.size() + " vertices");
+        int hes = 0;
+        int ins = 0;
+        for (GraphEdge ge : mGraphEdges) {
+            hes += 2 * ge.mHes.size();
+            ins += ge.mIntersections.size();
+        }
+        if (hes != mEdges.size()) throw new AssertionError("Graph edges hold " + hes
+                + " halfedges but the mesh has " + mEdges.size());
+        if (ins != 2 * mGraphIntersections.size()) throw new AssertionError("Graph edges hold "
+                + ins + " intersections but there are " + mGraphIntersections.size());
+        int ges = 0;
+        for (GraphVertex gv : mGraphVertices) ges += gv.mEdges.size();
+        if (ges != 2 * mGraphEdges.size()) throw new AssertionError("Graph vertices hold "
+                + ges + " edges but there are " + mGraphEdges.size());
+        if (mGraphEdgeIndex.size() != mGraphEdges.size()) throw new AssertionError("Graph edge "
+                + "index holds " + mGraphEdgeIndex.size() + " edges but there are "
+                + mGraphEdges.size());
+        if (mGraphVertexGrid.size() != mGraphVertices.size()) throw new AssertionError("Graph "
+                + "vertex grid holds " + mGraphVertexGrid.size() + " vertices but there are "
+                + mGraphVertices.size());
+        if (mGraphVertexHandles.size() != mGraphVertices.size()
+                || mGraphEdgeHandles.size() != mGraphEdges.size()
+                || mIntersectionHandles.size() != mGraphIntersections.size())
+            throw new AssertionError("Graph handle tables hold " + mGraphVertexHandles.size()
+                    + "/" + mGraphEdgeHandles.size() + "/" + mIntersectionHandles.size()
+                    + " handles for " + mGraphVertices.size() + " graph vertices, "
+                    + mGraphEdges.size() + " graph edges and " + mGraphIntersections.size()
+                    + " intersections");
+    }
+    private void validateGraphVertexGrid(GraphVertex gv) {
+        float x = gv.mV.x();
+        float y = gv.mV.y();
+        int found = 0;
+        for (int i = 0, n = mGraphVertexGrid.inRect(x, y, x, y); i < n; i++) {
+            if (mGraphVertexGrid.foundKey(i) == gv.mHandle) found++;
+        }
+        if (found != 1) throw new AssertionError(gv.toString() + " is in the vertex grid "
+                + found + " times at its position");
     }
+    private void validateGraphEdgeIndex(GraphEdge ge) {
+        int handle = mGraphEdgeIndex.get(ge.mV1.mHandle, ge.mV2.mHandle);
+        if (handle != ge.mHandle) throw new AssertionError(ge.toString() + " is indexed as "
+                + "graph edge handle " + handle + " between its vertices");
+        Vertex a = ge.mV1.mV;
+        Vertex b = ge.mV2.mV;
+        int n = mGraphEdgeGrid.collect(a.x(), a.y(), b.x(), b.y());
+        int found = 0;
+        for (int i = 0; i < n; i++) {
+            if (mGraphEdgeGrid.foundKey(i) == ge.mHandle) found++;
+        }
+        if (found != 1) throw new AssertionError(ge.toString() + " is in the grid " + found
+                + " times along its own segment");
+    }
+
     // Isolated validations
-    private void validateGraphEdge(GraphEdge ge, String errorPrefix) {
-        if (ge == null) throw new AssertionError(errorPrefix + "null graph edge");
+    private void validateGraphEdge(GraphEdge ge, Object context, String label) {
+        if (ge == null) throw new AssertionError(Diagnostics.prefix(context, label)
+                + "null graph edge");
         if (ge.mId < 0 || ge.mId >= mGraphEdges.size())
-            throw new AssertionError(errorPrefix + ge.toString() +
+            throw new AssertionError(Diagnostics.prefix(context, label) + ge.toString() +
                     " id is out of bounds of mGraphEdges (size: " + mGraphEdges.size() + ")");
         GraphEdge ge1 = mGraphEdges.get(ge.mId);
-        if (ge != ge1) throw new AssertionError(errorPrefix + ge.toString() +
+        if (ge != ge1) throw new AssertionError(Diagnostics.prefix(context, label) + ge.toString() +
                 " is not the halfedge found at index " + ge.mId + " in mEdges: " + ge1.toString());
+        if (mGraphEdgeHandles.indexOf(ge.mHandle) != ge.mId)
+            throw new AssertionError(Diagnostics.prefix(context, label) + ge.toString()
+                    + " has handle " + ge.mHandle + " which names another graph edge");
         if (ge.mV1 == null)
-            throw new AssertionError(errorPrefix + ge.toString() + " has no vertex 1 set");
+            throw new AssertionError(Diagnostics.prefix(context, label)
+                    + ge.toString() + " has no vertex 1 set");
         if (ge.mV2 == null)
-            throw new AssertionError(errorPrefix + ge.toString() + " has no vertex 2 set");
-        if (ge.mV1 == ge.mV2) throw new AssertionError(errorPrefix + ge.toString() + " has same " +
+            throw new AssertionError(Diagnostics.prefix(context, label)
+                    + ge.toString() + " has no vertex 2 set");
+        if (ge.mV1 == ge.mV2) throw new AssertionError(Diagnostics.prefix(context, label)
+                + ge.toString() + " has same " +
                 "v1 and v2: " + ge.mV1.toString());
         if (ge.mHes.size() != ge.mIntersections.size() + 1)
-            throw new AssertionError(errorPrefix + ge.toString() + " has " + ge.mHes.size() +
+            throw new AssertionError(Diagnostics.prefix(context, label)
+                    + ge.toString() + " has " + ge.mHes.size() +
                     " halfedges and "+ ge.mIntersections.size() + " intersections. " +
                     "It should have exactly one less intersection than halfedge");
         for (HalfEdge he : ge.mHes) {
-            validateHalfEdge(he, ge.toString() + " halfedge: ");
-            validateHalfEdge(he.mOpposite, ge.toString() + " halfedge: ");
+            validateHalfEdge(he, ge, " halfedge: ");
+            validateHalfEdge(he.opposite(), ge, " halfedge: ");
         }
-        int vs[] = new int[mVertices.size()];
-        String pathStr = "Edges:";
+        validateChain(ge, context, label);
+        int[] vs = vertexMarks();
         for (HalfEdge he : ge.mHes) {
-            pathStr += "\n" + he.toString();
-            vs[he.mVertex.mId]++;
-            vs[he.mOpposite.mVertex.mId]++;
-        }
-        if (vs[ge.mV1.mV.mId] != 1) throw new AssertionError(errorPrefix + ge.toString() +
-                " has edges that loop back through v1" + ": " + pathStr);
-        vs[ge.mV1.mV.mId]--; // don't validate on this for next step
-        if (vs[ge.mV2.mV.mId] != 1) throw new AssertionError(errorPrefix + ge.toString() +
-                " has edges that loop back through v2" + ": " + pathStr);
-        vs[ge.mV2.mV.mId]--; // don't validate on this for next step
-        for (int i = 0; i < mVertices.size(); i++) {
-            if (vs[i] != 0 && vs[i] != 2)
-                throw new AssertionError(errorPrefix + ge.toString() + " has \"line\" that " +
-                        "passes " + vs[i] + " times through vertex " + i + ": " + pathStr);
+            vs[he.vertex().mId]++;
+            vs[he.opposite().vertex().mId]++;
+        }
+        String problem = null;
+        if (vs[ge.mV1.mV.mId] != 1) {
+            problem = " has edges that loop back through v1";
+        } else if (vs[ge.mV2.mV.mId] != 1) {
+            problem = " has edges that loop back through v2";
+        } else {
+            // Every other vertex on the path is passed through exactly once
+            for (HalfEdge he : ge.mHes) {
+                int i = passesThrough(vs, he.vertex(), ge);
+                if (i < 0) i = passesThrough(vs, he.opposite().vertex(), ge);
+                if (i >= 0) {
+                    problem = " has \"line\" that passes " + vs[i] + " times through vertex " + i;
+                    break;
+                }
+            }
+        }
+        clearVertexMarks(ge);
+        if (problem != null) throw new AssertionError(Diagnostics.prefix(context, label)
+                + ge.toString() + problem + ": " + Diagnostics.dump("Edges:", ge.mHes));
+    }
+    // Pieces join up in order from v1 to v2 and the crossings between them go along ge
+    private void validateChain(GraphEdge ge, Object context, String label) {
+        for (int i = 0; i < ge.mHes.size(); i++) {
+            HalfEdge he = ge.mHes.get(i);
+            Vertex start = ge.pieceStart(i);
+            Vertex end = ge.pieceEnd(i);
+            if (!(he.opposite().vertex() == start && he.vertex() == end)
+                    && !(he.vertex() == start && he.opposite().vertex() == end))
+                throw new AssertionError(Diagnostics.prefix(context, label) + ge.toString()
+                        + " has piece " + i + " " + he.toString() + " which doesn't join "
+                        + start.toString() + " and " + end.toString());
+        }
+        for (int i = 1; i < ge.mIntersections.size(); i++) {
+            if (ge.parameterOf(ge.mIntersections.get(i - 1))
+                    > ge.parameterOf(ge.mIntersections.get(i)))
+                throw new AssertionError(Diagnostics.prefix(context, label) + ge.toString()
+                        + " has intersections out of order at " + i + ": "
+                        + Diagnostics.dump("Intersections:", ge.mIntersections));
         }
     }
-    private void validateGraphVertex(GraphVertex v, String errorPrefix) {
-        if (v == null) throw new AssertionError(errorPrefix + "null graph vertex");
+    // Id of v if it is in the middle of the path of ge but not passed through exactly twice
+    private int passesThrough(int[] vs, Vertex v, GraphEdge ge) {
+        if (v == ge.mV1.mV || v == ge.mV2.mV || vs[v.mId] == 2) return -1;
+        return v.mId;
+    }
+    private void validateGraphVertex(GraphVertex v, Object context, String label) {
+        if (v == null) throw new AssertionError(Diagnostics.prefix(context, label)
+                + "null graph vertex");
         if (v.mId < 0 || v.mId >= mGraphVertices.size())
-            throw new AssertionError(errorPrefix + v.toString() +
+            throw new AssertionError(Diagnostics.prefix(context, label) + v.toString() +
                     " id is out of bounds of mGraphVertices (size: " + mGraphVertices.size() + ")");
         GraphVertex v1 = mGraphVertices.get(v.mId);
-        if (v != v1) throw new AssertionError(errorPrefix + v.toString() + " is not the vertex" +
+        if (v != v1) throw new AssertionError(Diagnostics.prefix(context, label)
+                + v.toString() + " is not the vertex" +
                 " found at index " + v.mId + " in mGraphVertices: " + v1.toString());
-        validateVertex(v.mV, errorPrefix + v.toString() + " vertex: ");
+        if (mGraphVertexHandles.indexOf(v.mHandle) != v.mId)
+            throw new AssertionError(Diagnostics.prefix(context, label) + v.toString()
+                    + " has handle " + v.mHandle + " which names another graph vertex");
+        validateVertex(v.mV, v, " vertex: ");
     }
-    private void validateIntersection(Intersection in, String errorPrefix) {
-        if (in == null) throw new AssertionError(errorPrefix + "null intersection");
+    private void validateIntersection(Intersection in, Object context, String label) {
+        if (in == null) throw new AssertionError(Diagnostics.prefix(context, label)
+                + "null intersection");
         if (in.mId < 0 || in.mId >= mGraphIntersections.size())
-            throw new AssertionError(errorPrefix + in.toString() + " id is out of bounds of " +
+            throw new AssertionError(Diagnostics.prefix(context, label)
+                    + in.toString() + " id is out of bounds of " +
                     "mGraphIntersections (size: " + mGraphIntersections.size() + ")");
         Intersection in1 = mGraphIntersections.get(in.mId);
-        if (in != in1) throw new AssertionError(errorPrefix + in.toString() + " is not the " +
+        if (in != in1) throw new AssertionError(Diagnostics.prefix(context, label)
+                + in.toString() + " is not the " +
                 "intersection found at index " + in.mId + " in mIntersections: " + in1.toString());
+        if (mIntersectionHandles.indexOf(in.mHandle) != in.mId)
+            throw new AssertionError(Diagnostics.prefix(context, label) + in.toString()
+                    + " has handle " + in.mHandle + " which names another intersection");
         if (in.mV == null)
-            throw new AssertionError(errorPrefix + in.toString() + " has no vertex set");
-        validateVertex(in.mV, errorPrefix + in.toString() + " vertex: ");
+            throw new AssertionError(Diagnostics.prefix(context, label)
+                    + in.toString() + " has no vertex set");
+        validateVertex(in.mV, in, " vertex: ");
         if (in.mGe1 == null)
-            throw new AssertionError(errorPrefix + in.toString() + " has no first edge set");
+            throw new AssertionError(Diagnostics.prefix(context, label)
+                    + in.toString() + " has no first edge set");
         if (in.mGe2 == null)
-            throw new AssertionError(errorPrefix + in.toString() + " has no second edge set");
-        if (in.mHe != null) throw new AssertionError(errorPrefix + in.toString() +
-                " should not have a halfedge set but does: " + in.mHe.toString());
+            throw new AssertionError(Diagnostics.prefix(context, label)
+                    + in.toString() + " has no second edge set");
         if (in.mP != null)
-            throw new AssertionError(errorPrefix + in.toString() +
+            throw new AssertionError(Diagnostics.prefix(context, label) + in.toString() +
                     " should not have a point set but does: " + in.mP.toString());
     }
     private void validateGraphEdges() {
         for (GraphEdge ge : mGraphEdges) {
-            validateGraphEdge(ge, "");
-            validateGraphVertex(ge.mV1, ge.toString() + " v1: ");
-            validateGraphVertex(ge.mV2, ge.toString() + " v2: ");
+            validateGraphEdge(ge, null, null);
+            validateGraphVertex(ge.mV1, ge, " v1: ");
+            validateGraphVertex(ge.mV2, ge, " v2: ");
             for (Intersection in : ge.mIntersections) {
-                validateIntersection(in, ge.toString() + " intersection: ");
+                validateIntersection(in, ge, " intersection: ");
                 if (in.mGe1 != ge && in.mGe2 != ge)
                     throw new AssertionError(ge.toString() + " contains intersection " + in.mId +
                             " but is not part of that intersection: " + in.toString());
@@ -608,38 +1455,46 @@ public class MeshGraph extends Mesh {
                     " v1 does not contain edge: " + ge.mV1.toString());
             if (!ge.mV2.mEdges.contains(ge)) throw new AssertionError(ge.toString() +
                     " v2 does not contain edge" + ge.mV2.toString());
+            validateGraphEdgeIndex(ge);
         }
+        if (mGraphEdgeIndex.size() != mGraphEdges.size()) throw new AssertionError("Graph edge "
+                + "index holds " + mGraphEdgeIndex.size() + " edges but there are "
+                + mGraphEdges.size());
     }
     private void validateGraphVertices() {
         for (GraphVertex gv : mGraphVertices) {
-            validateGraphVertex(gv, "");
+            validateGraphVertex(gv, null, null);
+            validateGraphVertexGrid(gv);
             for (GraphEdge ge : gv.mEdges) {
-                validateGraphEdge(ge, gv.toString() + " edge: ");
+                validateGraphEdge(ge, gv, " edge: ");
                 if (ge.mV1 != gv && ge.mV2 != gv)
                     throw new AssertionError(gv.toString() + " contains edge " + ge.mId +
                             " but is not part of that edge: " + ge.toString());
             }
+            validateGraphVertexCrossings(gv);
         }
     }
     private void validateGraphIntersections() {
         for (Intersection in : mGraphIntersections) {
-            validateIntersection(in, "");
-            validateGraphEdge(in.mGe1, in.toString() + " first edge: ");
-            validateGraphEdge(in.mGe2, in.toString() + " second edge: ");
-            if (!in.mGe1.mIntersections.contains(in)) throw new AssertionError(in.toString() +
-                    " first edge does not contain intersection");
-            if (!in.mGe2.mIntersections.contains(in)) throw new AssertionError(in.toString() +
-                    " second edge does not contain intersection");
-            if (!Point.segmentsIntersect(
-                    in.mGe1.mV1.mV.mP, in.mGe1.mV2.mV.mP,
-                    in.mGe2.mV1.mV.mP, in.mGe2.mV2.mV.mP))
-                throw new AssertionError(in.toString() + " edges don't actually intersect");
-            Point p = Point.lineIntersection(in.mGe1.mV1.mV.mP, in.mGe1.mV2.mV.mP,
-                    in.mGe2.mV1.mV.mP, in.mGe2.mV2.mV.mP);
-            if (!in.mV.mP.equals(p)) throw new AssertionError(in.toString() + " has point that " +
-                    "is not actually the intersection of its two edges: " + p.toString());
+            validateGraphIntersection(in);
         }
     }
+    private void validateGraphIntersection(Intersection in) {
+        validateIntersection(in, null, null);
+        validateGraphEdge(in.mGe1, in, " first edge: ");
+        validateGraphEdge(in.mGe2, in, " second edge: ");
+        if (!in.mGe1.mIntersections.contains(in)) throw new AssertionError(in.toString() +
+                " first edge does not contain intersection");
+        if (!in.mGe2.mIntersections.contains(in)) throw new AssertionError(in.toString() +
+                " second edge does not contain intersection");
+        if (!in.mGe1.mSegment.crosses(in.mGe2.mSegment))
+            throw new AssertionError(in.toString() + " edges don't actually intersect");
+        float[] p = mValidatePoint;
+        in.mGe1.mSegment.intersection(in.mGe2.mSegment, p);
+        if (!Geometry.samePoint(in.mV.x(), in.mV.y(), p[0], p[1]))
+            throw new AssertionError(in.toString() + " has point that is not actually the " +
+                    "intersection of its two edges: (x: " + p[0] + ", y: " + p[1] + ")");
+    }
     // Edge validations
     private void validateTwoEdgesPerIntersection() {
         int[] ins = new int[mGraphIntersections.size()];
@@ -658,7 +1513,7 @@ public class MeshGraph extends Mesh {
         for (GraphEdge ge : mGraphEdges) {
             for (HalfEdge he : ge.mHes) {
                 hes[he.mId]++;
-                hes[he.mOpposite.mId]++;
+                hes[he.opposite().mId]++;
             }
         }
         for (int i = 0; i < mEdges.size(); i++) {
@@ -668,24 +1523,49 @@ public class MeshGraph extends Mesh {
     }
     private void validateHalfEdgesConnectIntersections() {
         for (GraphEdge ge : mGraphEdges) {
-            Set<Vertex> vs = new HashSet<>();
-            String edgesStr = "HalfEdges:";
-            for (HalfEdge he : ge.mHes) {
-                edgesStr += "\n" + he.toString();
-                vs.add(he.mVertex);
-                vs.add(he.mOpposite.mVertex);
-            }
-            vs.remove(ge.mV1.mV);
-            vs.remove(ge.mV2.mV);
-            if (vs.size() != ge.mIntersections.size())
-                throw new AssertionError(ge.toString() + " has " + ge.mIntersections.size() +
-                        " intersections but " + vs.size() + " intermediate vertices");
-            for (Intersection in : ge.mIntersections) {
-                if (!vs.contains(in.mV))
-                    throw new AssertionError(ge.toString() + " has an intersection which doesn't " +
-                            "correspond to an intermediate vertex: " + in.toString() + "\n" + edgesStr);
+            validateHalfEdgesConnectIntersections(ge);
+        }
+    }
+    private void validateHalfEdgesConnectIntersections(GraphEdge ge) {
+        // Mark the vertices on the path and count the ones in between its ends
+        int[] vs = vertexMarks();
+        int intermediate = 0;
+        for (HalfEdge he : ge.mHes) {
+            intermediate += markIntermediate(vs, he.vertex(), ge);
+            intermediate += markIntermediate(vs, he.opposite().vertex(), ge);
+        }
+        Intersection stray = null;
+        for (Intersection in : ge.mIntersections) {
+            if (vs[in.mV.mId] == 0 || in.mV == ge.mV1.mV || in.mV == ge.mV2.mV) {
+                stray = in;
+                break;
             }
         }
+        clearVertexMarks(ge);
+        if (intermediate != ge.mIntersections.size())
+            throw new AssertionError(ge.toString() + " has " + ge.mIntersections.size() +
+                    " intersections but " + intermediate + " intermediate vertices");
+        if (stray != null)
+            throw new AssertionError(ge.toString() + " has an intersection which doesn't " +
+                    "correspond to an intermediate vertex: " + stray.toString() + "\n"
+                    + Diagnostics.dump("HalfEdges:", ge.mHes));
+    }
+    private int markIntermediate(int[] vs, Vertex v, GraphEdge ge) {
+        if (vs[v.mId] != 0) return 0;
+        vs[v.mId] = 1;
+        return v == ge.mV1.mV || v == ge.mV2.mV ? 0 : 1;
+    }
+    private int[] vertexMarks() {
+        if (mVertexMarks.length < mVertices.size()) {
+            mVertexMarks = new int[Math.max(mVertices.size(), 2 * mVertexMarks.length)];
+        }
+        return mVertexMarks;
+    }
+    private void clearVertexMarks(GraphEdge ge) {
+        for (HalfEdge he : ge.mHes) {
+            mVertexMarks[he.vertex().mId] = 0;
+            mVertexMarks[he.opposite().vertex().mId] = 0;
+        }
     }
     // Vertex validations
     private void validateTwoVerticesPerEdge() {
@@ -0,0 +1,119 @@
+package com.games.malcolm.graphgame;
+
+import java.util.Arrays;
+
+/**
+ *
+ * Open addressing hash map from a pair of element handles to an element handle, e.g. from the
+ * (from, to) vertex handles of a halfedge to the halfedge handle. Keys are packed into a long and
+ * probed linearly, so lookups don't box anything and stay O(1) at any vertex degree.
+ *
+ * Handles don't change while their element lives, so the owner only has to put a pair when an
+ * element is created and remove it when the element is deleted.
+ */
+
+public class PairIndex {
+    public static final int NONE = -1;
+    private static final int MIN_CAPACITY = 16;
+
+    private final boolean mOrdered; // if false (a, b) and (b, a) are the same key
+    private long[] mKeys;
+    private int[] mValues; // NONE marks an empty slot
+    private int mSize;
+
+    PairIndex(boolean ordered) {
+        mOrdered = ordered;
+        mKeys = new long[MIN_CAPACITY];
+        mValues = new int[MIN_CAPACITY];
+        Arrays.fill(mValues, NONE);
+    }
+
+    public int size() {
+        return mSize;
+    }
+    public void clear() {
+        Arrays.fill(mValues, NONE);
+        mSize = 0;
+    }
+
+    public int get(int a, int b) {
+        long key = key(a, b);
+        int mask = mValues.length - 1;
+        for (int i = slot(key, mask); mValues[i] != NONE; i = (i + 1) & mask) {
+            if (mKeys[i] == key) return mValues[i];
+        }
+        return NONE;
+    }
+    public void put(int a, int b, int value) {
+        if (value == NONE) throw new AssertionError("Can't store NONE in a PairIndex");
+        if (2 * (mSize + 1) > mValues.length) resize(2 * mValues.length);
+        long key = key(a, b);
+        int mask = mValues.length - 1;
+        int i = slot(key, mask);
+        for (; mValues[i] != NONE; i = (i + 1) & mask) {
+            if (mKeys[i] == key) {
+                mValues[i] = value;
+                return;
+            }
+        }
+        mKeys[i] = key;
+        mValues[i] = value;
+        mSize++;
+    }
+    /**
+     * Remove (a, b) and return the value it pointed to, or NONE if it wasn't there.
+     */
+    public int remove(int a, int b) {
+        long key = key(a, b);
+        int mask = mValues.length - 1;
+        int i = slot(key, mask);
+        for (; mValues[i] != NONE; i = (i + 1) & mask) {
+            if (mKeys[i] == key) break;
+        }
+        int value = mValues[i];
+        if (value == NONE) return NONE;
+        mValues[i] = NONE;
+        mSize--;
+        // Shift later entries of the probe run back, so lookups never stop at the hole
+        for (int j = (i + 1) & mask; mValues[j] != NONE; j = (j + 1) & mask) {
+            int home = slot(mKeys[j], mask);
+            boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if (stays) continue;
+            mKeys[i] = mKeys[j];
+            mValues[i] = mValues[j];
+            mValues[j] = NONE;
+            i = j;
+        }
+        return value;
+    }
+
+    private long key(int a, int b) {
+        if (!mOrdered && a > b) {
+            int tmp = a;
+            a = b;
+            b = tmp;
+        }
+        return ((long) a << 32) | (b & 0xFFFFFFFFL);
+    }
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L; // Fibonacci hashing, the high bits are well mixed
+        return (int) (h >>> 32) & mask;
+    }
+    private void resize(int capacity) {
+        long[] keys = mKeys;
+        int[] values = mValues;
+        mKeys = new long[capacity];
+        mValues = new int[capacity];
+        Arrays.fill(mValues, NONE);
+        mSize = 0;
+        int mask = capacity - 1;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == NONE) continue;
+            int j = slot(keys[i], mask);
+            while (mValues[j] != NONE) j = (j + 1) & mask;
+            mKeys[j] = keys[i];
+            mValues[j] = values[i];
+            mSize++;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.games.malcolm.graphgame;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+ *
+ * Runs a batch of independent tasks on an Executor and waits for all of them. The first task
+ * runs on the calling thread, so a batch of one never leaves it and the caller isn't idle
+ * while it waits.
+ */
+
+final class Parallel {
+    private Parallel() {}
+
+    /**
+     * Run every task and return once they have all finished. If any of them threw, the first
+     * failure is thrown here. A null executor runs them all on the calling thread.
+     */
+    static void run(Executor executor, Runnable[] tasks) {
+        if (executor == null || tasks.length <= 1) {
+            for (Runnable task : tasks) task.run();
+            return;
+        }
+        final CountDownLatch done = new CountDownLatch(tasks.length - 1);
+        final Throwable[] failure = new Throwable[1];
+        for (int i = 1; i < tasks.length; i++) {
+            final Runnable task = tasks[i];
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } catch (Throwable t) {
+                        synchronized (failure) {
+                            if (failure[0] == null) failure[0] = t;
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        try {
+            tasks[0].run();
+        } finally {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true; // the tasks still use our data, keep waiting
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+        synchronized (failure) {
+            if (failure[0] instanceof RuntimeException) throw (RuntimeException) failure[0];
+            if (failure[0] instanceof Error) throw (Error) failure[0];
+            if (failure[0] != null) throw new RuntimeException(failure[0]);
+        }
+    }
+}
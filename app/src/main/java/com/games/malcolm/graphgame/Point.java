@@ -1,18 +1,20 @@
 package com.games.malcolm.graphgame;
 
-import android.graphics.PointF;
-import android.util.Log;
-
 /**
  * Created by Thomas on 5/24/17.
+ *
+ * Just the two coordinates. The math is in Geometry and Predicates, which work on raw floats,
+ * so the methods here only unpack them.
  */
 
-public class Point extends PointF {
+public class Point {
 
-    private String TAG = "Point";
+    public float x;
+    public float y;
 
     Point(float x, float y) {
-        super(x, y);
+        this.x = x;
+        this.y = y;
     }
 //    public void minus(Point p) {
 //        x -= p.x;
@@ -42,74 +44,54 @@ public class Point extends PointF {
     }
 
     public boolean isInCircle(Point center, float radius) {
-        Point p = copyMinus(center);
-        return p.dot(p) < radius * radius; // dot(this) = length^2
+        return Geometry.isInCircle(x, y, center.x, center.y, radius);
     }
 
     public float dot(Point p) {
-        return x * p.x + y * p.y;
+        return Geometry.dot(x, y, p.x, p.y);
     }
     public float cross(Point p) {
-        return x * p.y - y * p.x;
+        return Geometry.cross(x, y, p.x, p.y);
     }
 
     public static boolean segmentsIntersect(Point s1p1, Point s1p2, Point s2p1, Point s2p2) {
-        Point v12 = s1p2.copyMinus(s1p1); // s1 moved to origin
-        float cross1 = v12.cross(s2p1.copyMinus(s1p1));
-        float cross2 = v12.cross(s2p2.copyMinus(s1p1));
-        if (cross1 * cross2 >= 0) {
-            return false;
-        }
-        Point v22 = s2p2.copyMinus(s2p1); // s2 moved to origin
-        cross1 = v22.cross(s1p1.copyMinus(s2p1));
-        cross2 = v22.cross(s1p2.copyMinus(s2p1));
-        return cross1 * cross2 < 0;
+        return segmentsIntersect(s1p1.x, s1p1.y, s1p2.x, s1p2.y,
+                s2p1.x, s2p1.y, s2p2.x, s2p2.y);
+    }
+    // Same test on raw coordinates. Only proper crossings count, segments that share an
+    // endpoint or touch while collinear do not intersect. The answer is exact.
+    public static boolean segmentsIntersect(float ax, float ay, float bx, float by,
+                                            float cx, float cy, float dx, float dy) {
+        return Predicates.segmentsIntersect(ax, ay, bx, by, cx, cy, dx, dy);
     }
 
     public static Point lineIntersection(Point s1p1, Point s1p2, Point s2p1, Point s2p2) {
-//        if (!Point.segmentsIntersect(s1p1, s1p2, s2p1, s2p2)) {
-//            return null;
-//        }
-        float a1 = s1p2.y - s1p1.y;
-        float b1 = s1p1.x - s1p2.x;
-        float c1 = a1*s1p1.x + b1*s1p1.y;
-        float a2 = s2p2.y - s2p1.y;
-        float b2 = s2p1.x - s2p2.x;
-        float c2 = a2*s2p1.x + b2*s2p1.y;
-        float det = a1 * b2 - a2 * b1;
-        if (det == 0) {
+        float[] out = new float[2];
+        if (!Predicates.intersectionPoint(s1p1.x, s1p1.y, s1p2.x, s1p2.y,
+                s2p1.x, s2p1.y, s2p2.x, s2p2.y, out)) {
             return null; // parallel lines
         }
-        return new Point(
-                (b2 * c1 - b1 * c2) / det,
-                (a1 * c2 - a2 * c1) / det
-        );
+        return new Point(out[0], out[1]);
     }
 
     public float angleBetweenPoints(Point p1, Point p2) {
-        Point v1 = p1.copyMinus(this);
-        Point v2 = p2.copyMinus(this);
-        if (v1.length() == 0 || v2.length() == 0) return 0.0F;
-        float cos = v1.dot(v2) / (v1.length() * v2.length());
-        Log.i(TAG, "cos: " + String.valueOf(cos));
-        if (cos > 1.0F) cos = 1.0F;
-        else if (cos < -1.0F) cos = -1.0F;
-        Log.i(TAG, "cos: " + String.valueOf(cos));
-        float angle = (float) (Math.acos(cos) * 180 / Math.PI);
-        Log.i(TAG, "angle: " + String.valueOf(angle));
-        return v1.cross(v2) < 0 ? 360 - angle : angle;
+        return Geometry.angleBetween(x, y, p1.x, p1.y, p2.x, p2.y);
     }
 
     @Override
     public String toString() {
         return "(x: " + x + ", y: " + y + ")";
     }
+    // Exact, so that it agrees with hashCode. Two points within half a pixel of each other
+    // are Geometry.samePoint.
     @Override
     public boolean equals(Object o) {
-        if (o.getClass() != Point.class) return false;
+        if (o == null || o.getClass() != Point.class) return false;
         Point p = (Point)o;
-        float xDiff = Math.abs(x - p.x);
-        float yDiff = Math.abs(y - p.y);
-        return xDiff < 0.5 && yDiff < 0.5;
+        return Float.compare(x, p.x) == 0 && Float.compare(y, p.y) == 0;
+    }
+    @Override
+    public int hashCode() {
+        return 31 * Float.floatToIntBits(x) + Float.floatToIntBits(y);
     }
 }
@@ -0,0 +1,234 @@
+package com.games.malcolm.graphgame;
+
+import java.util.Arrays;
+
+/**
+ *
+ * Uniform grid of square cells over a set of points, so the points near a spot can be found
+ * by only looking at the cells around it instead of at all of them.
+ *
+ * Each point is stored under a caller's key in the one cell it is in, together with its
+ * coordinates so queries never have to look anything up. Cells are kept in a PairIndex by
+ * cell coordinates, like SegmentGrid, so the grid has no fixed extent. With cells at least
+ * twice the radius of a circle query, the query looks at no more than four cells.
+ */
+
+public class PointGrid {
+    private static final int MIN_CAPACITY = 16;
+
+    private final float mCellSize;
+    private final PairIndex mCells = new PairIndex(true); // (column, row) -> bucket
+    private int[][] mKeys = new int[MIN_CAPACITY][];
+    private float[][] mXs = new float[MIN_CAPACITY][];
+    private float[][] mYs = new float[MIN_CAPACITY][];
+    private int[] mBucketSizes = new int[MIN_CAPACITY];
+    private int mBucketCount;
+    private int mSize;
+    private int[] mFound = new int[MIN_CAPACITY];
+    private double[] mFoundDistance = new double[MIN_CAPACITY];
+    private int mFoundCount;
+    private int[] mVisit = new int[MIN_CAPACITY];
+
+    PointGrid(float cellSize) {
+        mCellSize = cellSize;
+    }
+
+    public void clear() {
+        mCells.clear();
+        Arrays.fill(mBucketSizes, 0, mBucketCount, 0);
+        mBucketCount = 0;
+        mSize = 0;
+    }
+    public int size() {
+        return mSize;
+    }
+    public void add(int key, float x, float y) {
+        int column = cell(x);
+        int row = cell(y);
+        int bucket = mCells.get(column, row);
+        if (bucket == PairIndex.NONE) {
+            bucket = newBucket();
+            mCells.put(column, row, bucket);
+        }
+        int size = mBucketSizes[bucket];
+        if (size == mKeys[bucket].length) {
+            mKeys[bucket] = Arrays.copyOf(mKeys[bucket], 2 * size);
+            mXs[bucket] = Arrays.copyOf(mXs[bucket], 2 * size);
+            mYs[bucket] = Arrays.copyOf(mYs[bucket], 2 * size);
+        }
+        mKeys[bucket][size] = key;
+        mXs[bucket][size] = x;
+        mYs[bucket][size] = y;
+        mBucketSizes[bucket] = size + 1;
+        mSize++;
+    }
+    /**
+     * Remove key, which has to have been added at the same point.
+     */
+    public void remove(int key, float x, float y) {
+        int bucket = mCells.get(cell(x), cell(y));
+        if (bucket == PairIndex.NONE) return;
+        int[] keys = mKeys[bucket];
+        int last = mBucketSizes[bucket] - 1;
+        for (int i = 0; i <= last; i++) {
+            if (keys[i] != key) continue;
+            keys[i] = keys[last];
+            mXs[bucket][i] = mXs[bucket][last];
+            mYs[bucket][i] = mYs[bucket][last];
+            mBucketSizes[bucket] = last;
+            mSize--;
+            return;
+        }
+    }
+
+    /**
+     * Find the keys of the points closer than radius to (x, y), like Geometry.isInCircle.
+     * Returns how many there are, in increasing order; see foundKey.
+     */
+    public int within(float x, float y, float radius) {
+        mFoundCount = 0;
+        int n = buckets((double) x - radius, (double) y - radius, (double) x + radius,
+                (double) y + radius);
+        for (int b = 0; b < n; b++) {
+            int bucket = mVisit[b];
+            for (int i = 0; i < mBucketSizes[bucket]; i++) {
+                if (!Geometry.isInCircle(mXs[bucket][i], mYs[bucket][i], x, y, radius)) continue;
+                addFound(mKeys[bucket][i], 0);
+            }
+        }
+        Arrays.sort(mFound, 0, mFoundCount);
+        return mFoundCount;
+    }
+    /**
+     * Find the keys of the points in the rectangle, edges included. Returns how many there
+     * are, in increasing order; see foundKey.
+     */
+    public int inRect(float minX, float minY, float maxX, float maxY) {
+        mFoundCount = 0;
+        int n = buckets(minX, minY, maxX, maxY);
+        for (int b = 0; b < n; b++) {
+            int bucket = mVisit[b];
+            for (int i = 0; i < mBucketSizes[bucket]; i++) {
+                float px = mXs[bucket][i];
+                float py = mYs[bucket][i];
+                if (px < minX || px > maxX || py < minY || py > maxY) continue;
+                addFound(mKeys[bucket][i], 0);
+            }
+        }
+        Arrays.sort(mFound, 0, mFoundCount);
+        return mFoundCount;
+    }
+    /**
+     * Find the keys of the k points nearest to (x, y). Returns how many there are, fewer
+     * than k only if there are fewer points, nearest first and in increasing order among
+     * equally near ones; see foundKey.
+     */
+    public int nearest(float x, float y, int k) {
+        mFoundCount = 0;
+        k = Math.min(k, mSize);
+        if (k <= 0) return 0;
+        int column = cell(x);
+        int row = cell(y);
+        // Rings of cells around the one (x, y) is in, until no point outside them can be
+        // nearer than the k-th nearest so far. Far from everything it is quicker to look at
+        // every bucket than at all the empty cells on the way.
+        for (int ring = 0; ; ring++) {
+            if ((long) (2 * ring + 1) * (2 * ring + 1) > 4L * mBucketCount) {
+                mFoundCount = 0;
+                for (int bucket = 0; bucket < mBucketCount; bucket++) addNearest(bucket, x, y, k);
+                return mFoundCount;
+            }
+            for (int c = column - ring; c <= column + ring; c++) {
+                boolean side = c == column - ring || c == column + ring;
+                for (int r = row - ring; r <= row + ring; r += side ? 1 : 2 * ring) {
+                    int bucket = mCells.get(c, r);
+                    if (bucket != PairIndex.NONE) addNearest(bucket, x, y, k);
+                    if (ring == 0) break;
+                }
+            }
+            if (mFoundCount < k) continue;
+            // Anything not looked at yet is at least this far away
+            double reach = Math.min(
+                    Math.min(x - (double) (column - ring) * mCellSize,
+                            (double) (column + ring + 1) * mCellSize - x),
+                    Math.min(y - (double) (row - ring) * mCellSize,
+                            (double) (row + ring + 1) * mCellSize - y));
+            if (mFoundDistance[k - 1] < reach * reach) return mFoundCount;
+        }
+    }
+    public int foundKey(int i) {
+        return mFound[i];
+    }
+
+    // Put the buckets of the cells the box covers in mVisit and return how many there are.
+    // A box over more cells than there are buckets gets every bucket instead, so a query
+    // over the whole plane costs no more than a scan.
+    private int buckets(double minX, double minY, double maxX, double maxY) {
+        int firstColumn = cell(minX);
+        int lastColumn = cell(maxX);
+        int firstRow = cell(minY);
+        int lastRow = cell(maxY);
+        if (mVisit.length < mBucketCount) mVisit = new int[mKeys.length];
+        int n = 0;
+        if ((lastColumn - (long) firstColumn + 1) * (lastRow - (long) firstRow + 1)
+                > mBucketCount) {
+            for (int bucket = 0; bucket < mBucketCount; bucket++) mVisit[n++] = bucket;
+            return n;
+        }
+        for (int column = firstColumn; column <= lastColumn; column++) {
+            for (int row = firstRow; row <= lastRow; row++) {
+                int bucket = mCells.get(column, row);
+                if (bucket != PairIndex.NONE) mVisit[n++] = bucket;
+            }
+        }
+        return n;
+    }
+    private int cell(double v) {
+        return (int) Math.floor(v / mCellSize);
+    }
+    private void addFound(int key, double distance) {
+        if (mFoundCount == mFound.length) {
+            mFound = Arrays.copyOf(mFound, 2 * mFoundCount);
+            mFoundDistance = Arrays.copyOf(mFoundDistance, 2 * mFoundCount);
+        }
+        mFound[mFoundCount] = key;
+        mFoundDistance[mFoundCount] = distance;
+        mFoundCount++;
+    }
+    // Keep the k nearest seen so far in mFound, sorted by distance and then key
+    private void addNearest(int bucket, float x, float y, int k) {
+        for (int i = 0; i < mBucketSizes[bucket]; i++) {
+            double dx = (double) mXs[bucket][i] - x;
+            double dy = (double) mYs[bucket][i] - y;
+            double distance = dx * dx + dy * dy;
+            int key = mKeys[bucket][i];
+            int at = mFoundCount;
+            while (at > 0 && (mFoundDistance[at - 1] > distance
+                    || (mFoundDistance[at - 1] == distance && mFound[at - 1] > key))) {
+                at--;
+            }
+            if (at >= k) continue;
+            if (mFoundCount < k) addFound(0, 0);
+            System.arraycopy(mFound, at, mFound, at + 1, mFoundCount - at - 1);
+            System.arraycopy(mFoundDistance, at, mFoundDistance, at + 1, mFoundCount - at - 1);
+            mFound[at] = key;
+            mFoundDistance[at] = distance;
+        }
+    }
+    // Buckets are never freed, an empty cell keeps its bucket for the next point
+    private int newBucket() {
+        if (mBucketCount == mKeys.length) {
+            int capacity = 2 * mKeys.length;
+            mKeys = Arrays.copyOf(mKeys, capacity);
+            mXs = Arrays.copyOf(mXs, capacity);
+            mYs = Arrays.copyOf(mYs, capacity);
+            mBucketSizes = Arrays.copyOf(mBucketSizes, capacity);
+        }
+        if (mKeys[mBucketCount] == null) {
+            mKeys[mBucketCount] = new int[4];
+            mXs[mBucketCount] = new float[4];
+            mYs[mBucketCount] = new float[4];
+        }
+        return mBucketCount++;
+    }
+}
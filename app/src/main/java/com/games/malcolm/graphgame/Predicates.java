@@ -0,0 +1,194 @@
+package com.games.malcolm.graphgame;
+
+/**
+ *
+ * Filtered exact geometric predicates on float coordinates, in the style of Shewchuk's
+ * adaptive predicates.
+ *
+ * The determinant is first evaluated in double together with a bound on its rounding error.
+ * Only when the result is smaller than that bound is it recomputed exactly: the product of
+ * two floats fits in a double, so the determinant expands into six exact products that are
+ * summed without rounding into a floating point expansion.
+ *
+ * This class only deals in raw floats so it can be used (and tested) without android.
+ */
+
+public final class Predicates {
+    // Shewchuk's ccwerrboundA, (3 + 16 * eps) * eps with eps = 2^-53
+    static final double ORIENT_ERROR_BOUND = (3.0 + 16.0 * 0x1p-53) * 0x1p-53;
+
+    // What orientationFilter returns when the double evaluation can't decide the sign
+    static final int UNCERTAIN = 2;
+
+    // Scratch for the exact fallback. Per thread, since the parallel crossing passes test
+    // orientations from several threads at once.
+    private static final ThreadLocal<double[]> sExpansion = new ThreadLocal<double[]>() {
+        @Override
+        protected double[] initialValue() {
+            return new double[6];
+        }
+    };
+
+    private Predicates() {}
+
+    /**
+     * Sign of the cross product (b - a) x (c - a): 1 if c is counterclockwise of the line
+     * from a to b (with the y axis up), -1 if clockwise and 0 if the three are collinear.
+     * The answer is always exact.
+     */
+    public static int orientation(float ax, float ay, float bx, float by, float cx, float cy) {
+        int sign = orientationFilter(ax, ay, bx, by, cx, cy);
+        return sign != UNCERTAIN ? sign : exactOrientationSign(ax, ay, bx, by, cx, cy);
+    }
+    /**
+     * The sign of orientation from the double evaluation alone, or UNCERTAIN if it is within
+     * the rounding error and orientation has to fall back to the exact sum.
+     */
+    static int orientationFilter(float ax, float ay, float bx, float by, float cx, float cy) {
+        double left = ((double) bx - ax) * ((double) cy - ay);
+        double right = ((double) by - ay) * ((double) cx - ax);
+        double det = left - right;
+        // One test for both signs, so a random sign costs a single hard to predict branch
+        if (Math.abs(det) > ORIENT_ERROR_BOUND * (Math.abs(left) + Math.abs(right))) {
+            return det > 0 ? 1 : -1;
+        }
+        if (left == 0 && right == 0) return 0; // nothing was rounded
+        return UNCERTAIN;
+    }
+    /**
+     * The value of the determinant in orientation, as a double. Its sign always agrees with
+     * orientation.
+     */
+    public static double orientationValue(float ax, float ay, float bx, float by,
+                                          float cx, float cy) {
+        double left = ((double) bx - ax) * ((double) cy - ay);
+        double right = ((double) by - ay) * ((double) cx - ax);
+        double det = left - right;
+        double bound = ORIENT_ERROR_BOUND * (Math.abs(left) + Math.abs(right));
+        if (Math.abs(det) > bound || (left == 0 && right == 0)) return det;
+        return exactOrientationValue(ax, ay, bx, by, cx, cy);
+    }
+
+    /**
+     * Whether segment ab and segment cd properly cross, i.e their interiors meet in a single
+     * point. Segments that only share an endpoint, or touch while collinear, don't.
+     */
+    public static boolean segmentsIntersect(float ax, float ay, float bx, float by,
+                                            float cx, float cy, float dx, float dy) {
+        // Segments whose boxes don't overlap can't cross, and most pairs tested are like that
+        if (Math.max(ax, bx) < Math.min(cx, dx) || Math.max(cx, dx) < Math.min(ax, bx)
+                || Math.max(ay, by) < Math.min(cy, dy) || Math.max(cy, dy) < Math.min(ay, by)) {
+            return false;
+        }
+        return segmentsCross(ax, ay, bx, by, cx, cy, dx, dy);
+    }
+    /**
+     * segmentsIntersect without the bounding box test, for callers that already did it.
+     */
+    static boolean segmentsCross(float ax, float ay, float bx, float by,
+                                 float cx, float cy, float dx, float dy) {
+        int abc = orientation(ax, ay, bx, by, cx, cy);
+        int abd = orientation(ax, ay, bx, by, dx, dy);
+        if (abc * abd >= 0) return false;
+        int cda = orientation(cx, cy, dx, dy, ax, ay);
+        int cdb = orientation(cx, cy, dx, dy, bx, by);
+        return cda * cdb < 0;
+    }
+
+    /**
+     * Intersection of the lines through ab and cd, written into out as {x, y}. Returns false
+     * if the lines are parallel. When the segments properly cross the point is guaranteed to
+     * lie on segment ab, between a and b.
+     */
+    public static boolean intersectionPoint(float ax, float ay, float bx, float by,
+                                            float cx, float cy, float dx, float dy,
+                                            float[] out) {
+        // The orientation is affine along ab, so it vanishes at a + t (b - a) with
+        // t = cda / (cda - cdb)
+        double cda = orientationValue(cx, cy, dx, dy, ax, ay);
+        double cdb = orientationValue(cx, cy, dx, dy, bx, by);
+        if (cda == cdb) return false; // parallel
+        double t = cda / (cda - cdb);
+        if ((cda > 0 && cdb < 0) || (cda < 0 && cdb > 0)) {
+            t = Math.max(0.0, Math.min(1.0, t));
+        }
+        out[0] = (float) (ax + t * ((double) bx - ax));
+        out[1] = (float) (ay + t * ((double) by - ay));
+        return true;
+    }
+
+    /**
+     * Whether the horizontal ray from p to the right crosses the edge from (x1, y1) to
+     * (x2, y2). Edges are treated as half open in y so a ray through a shared vertex is only
+     * counted once. Summing this over a closed loop gives the crossings method for point in
+     * polygon.
+     */
+    public static boolean crossesRayToRight(float px, float py,
+                                            float x1, float y1, float x2, float y2) {
+        if (y1 <= py && y2 > py) {
+            return orientation(x1, y1, x2, y2, px, py) > 0; // upward edge, p on its left
+        } else if (y2 <= py && y1 > py) {
+            return orientation(x2, y2, x1, y1, px, py) > 0; // downward edge
+        }
+        return false;
+    }
+    /**
+     * Crossings method point in polygon on the first n vertices of xs and ys. Undefined for
+     * points on the boundary.
+     */
+    public static boolean pointInPolygon(float px, float py, float[] xs, float[] ys, int n) {
+        boolean inside = false;
+        for (int i = 0, j = n - 1; i < n; j = i++) {
+            if (crossesRayToRight(px, py, xs[j], ys[j], xs[i], ys[i])) inside = !inside;
+        }
+        return inside;
+    }
+
+    // Exact fallback. Expanding (bx - ax)(cy - ay) - (by - ay)(cx - ax) leaves six products
+    // of two floats, each of which is exact in a double.
+    private static int exactOrientationSign(float ax, float ay, float bx, float by,
+                                            float cx, float cy) {
+        double[] e = sExpansion.get();
+        int n = exactOrientation(e, ax, ay, bx, by, cx, cy);
+        return n == 0 ? 0 : (e[n - 1] > 0 ? 1 : -1); // the largest component decides
+    }
+    private static double exactOrientationValue(float ax, float ay, float bx, float by,
+                                                float cx, float cy) {
+        double[] e = sExpansion.get();
+        int n = exactOrientation(e, ax, ay, bx, by, cx, cy);
+        double sum = 0;
+        for (int i = 0; i < n; i++) sum += e[i]; // smallest first
+        return sum;
+    }
+    // Writes the expansion into e and returns its length. No component is zero.
+    private static int exactOrientation(double[] e, float ax, float ay, float bx, float by,
+                                        float cx, float cy) {
+        int n = 0;
+        n = growExpansion(e, n, (double) bx * cy);
+        n = growExpansion(e, n, -((double) bx * ay));
+        n = growExpansion(e, n, -((double) ax * cy));
+        n = growExpansion(e, n, -((double) by * cx));
+        n = growExpansion(e, n, (double) by * ax);
+        n = growExpansion(e, n, (double) ay * cx);
+        return n;
+    }
+    /**
+     * Add b to the nonoverlapping expansion in the first n entries of e, smallest component
+     * first, dropping zero components. Returns the new length.
+     */
+    private static int growExpansion(double[] e, int n, double b) {
+        double q = b;
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            // Two-sum: sum + err == q + e[i] exactly
+            double sum = q + e[i];
+            double bVirtual = sum - q;
+            double aVirtual = sum - bVirtual;
+            double err = (q - aVirtual) + (e[i] - bVirtual);
+            q = sum;
+            if (err != 0) e[m++] = err;
+        }
+        if (q != 0) e[m++] = q;
+        return m;
+    }
+}
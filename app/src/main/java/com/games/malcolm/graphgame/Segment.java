@@ -0,0 +1,71 @@
+package com.games.malcolm.graphgame;
+
+/**
+ *
+ * The endpoints of an edge, with its direction, squared length and bounding box worked out
+ * once. Owners call set whenever an endpoint moves, so crossing tests against many other
+ * edges neither chase vertex pointers nor recompute the same differences every time.
+ */
+
+final class Segment {
+    float mX1;
+    float mY1;
+    float mX2;
+    float mY2;
+    float mDx; // mX2 - mX1
+    float mDy; // mY2 - mY1
+    float mLengthSquared;
+    float mMinX;
+    float mMinY;
+    float mMaxX;
+    float mMaxY;
+
+    void set(Point p1, Point p2) {
+        set(p1.x, p1.y, p2.x, p2.y);
+    }
+    void set(float x1, float y1, float x2, float y2) {
+        mX1 = x1;
+        mY1 = y1;
+        mX2 = x2;
+        mY2 = y2;
+        mDx = x2 - x1;
+        mDy = y2 - y1;
+        mLengthSquared = mDx * mDx + mDy * mDy;
+        mMinX = Math.min(x1, x2);
+        mMinY = Math.min(y1, y2);
+        mMaxX = Math.max(x1, x2);
+        mMaxY = Math.max(y1, y2);
+    }
+
+    /**
+     * Same answer as Point.segmentsIntersect, but disjoint boxes are turned down before any
+     * orientation test.
+     */
+    boolean crosses(Segment s) {
+        if (mMaxX < s.mMinX || s.mMaxX < mMinX || mMaxY < s.mMinY || s.mMaxY < mMinY) {
+            return false;
+        }
+        return Predicates.segmentsCross(mX1, mY1, mX2, mY2, s.mX1, s.mY1, s.mX2, s.mY2);
+    }
+    /**
+     * Where the lines through this and s meet, like Point.lineIntersection. Null if they are
+     * parallel.
+     */
+    Point intersection(Segment s) {
+        float[] out = new float[2];
+        if (!intersection(s, out)) return null;
+        return new Point(out[0], out[1]);
+    }
+    /**
+     * Same, written to out[0] and out[1] instead. Returns false if they are parallel.
+     */
+    boolean intersection(Segment s, float[] out) {
+        return Predicates.intersectionPoint(mX1, mY1, mX2, mY2, s.mX1, s.mY1, s.mX2, s.mY2, out);
+    }
+    /**
+     * Where p is along the segment, 0 at the first endpoint and 1 at the second.
+     */
+    float parameter(Point p) {
+        return ((p.x - mX1) * mDx + (p.y - mY1) * mDy) / mLengthSquared;
+    }
+}
@@ -0,0 +1,179 @@
+package com.games.malcolm.graphgame;
+
+import java.util.Arrays;
+
+/**
+ *
+ * Many segments in flat float columns, tested against one query segment at a time. Gives the
+ * same answers as Predicates.segmentsIntersect on every pair, but works in blocks. The
+ * bounding boxes of a whole block are compared first and the overlapping ones packed into a
+ * list, then the four orientation determinants and their error bounds are worked out for all
+ * of those, both in straight loops over the columns with no branches or calls. Only then is
+ * each candidate decided, and only the rare ones whose determinants are within rounding of zero
+ * go to the exact predicates.
+ *
+ * Segments live at dense indices, and add, set and remove let an owner mirror its own
+ * dense list of edges.
+ */
+
+public class SegmentBatch {
+    private static final int MIN_CAPACITY = 16;
+    private static final int BLOCK = 64;
+
+    private float[] mX1 = new float[MIN_CAPACITY];
+    private float[] mY1 = new float[MIN_CAPACITY];
+    private float[] mX2 = new float[MIN_CAPACITY];
+    private float[] mY2 = new float[MIN_CAPACITY];
+    private float[] mMinX = new float[MIN_CAPACITY];
+    private float[] mMinY = new float[MIN_CAPACITY];
+    private float[] mMaxX = new float[MIN_CAPACITY];
+    private float[] mMaxY = new float[MIN_CAPACITY];
+    private int mSize;
+    private int[] mHits = new int[MIN_CAPACITY];
+    private int mHitCount;
+
+    // Per block: the segments whose boxes overlap the query's, the orientation of their
+    // endpoints against the query (c, d) and of the query's endpoints against them (a, b),
+    // with the sums the error bounds scale with
+    private final int[] mCandidates = new int[BLOCK];
+    private final double[] mC = new double[BLOCK];
+    private final double[] mD = new double[BLOCK];
+    private final double[] mA = new double[BLOCK];
+    private final double[] mB = new double[BLOCK];
+    private final double[] mCSize = new double[BLOCK];
+    private final double[] mDSize = new double[BLOCK];
+    private final double[] mASize = new double[BLOCK];
+    private final double[] mBSize = new double[BLOCK];
+
+    public void clear() {
+        mSize = 0;
+    }
+    public int size() {
+        return mSize;
+    }
+    /**
+     * Append a segment and return its index.
+     */
+    public int add(float x1, float y1, float x2, float y2) {
+        if (mSize == mX1.length) {
+            int capacity = 2 * mSize;
+            mX1 = Arrays.copyOf(mX1, capacity);
+            mY1 = Arrays.copyOf(mY1, capacity);
+            mX2 = Arrays.copyOf(mX2, capacity);
+            mY2 = Arrays.copyOf(mY2, capacity);
+            mMinX = Arrays.copyOf(mMinX, capacity);
+            mMinY = Arrays.copyOf(mMinY, capacity);
+            mMaxX = Arrays.copyOf(mMaxX, capacity);
+            mMaxY = Arrays.copyOf(mMaxY, capacity);
+        }
+        set(mSize, x1, y1, x2, y2);
+        return mSize++;
+    }
+    public void set(int i, float x1, float y1, float x2, float y2) {
+        mX1[i] = x1;
+        mY1[i] = y1;
+        mX2[i] = x2;
+        mY2[i] = y2;
+        mMinX[i] = Math.min(x1, x2);
+        mMinY[i] = Math.min(y1, y2);
+        mMaxX[i] = Math.max(x1, x2);
+        mMaxY[i] = Math.max(y1, y2);
+    }
+    /**
+     * Drop the segment at index i. The last segment takes its index.
+     */
+    public void remove(int i) {
+        int last = --mSize;
+        set(i, mX1[last], mY1[last], mX2[last], mY2[last]);
+    }
+
+    /**
+     * Find the segments that segment ab properly crosses. Returns how many there are; see
+     * hit, which gives their indices in increasing order.
+     */
+    public int crossing(float ax, float ay, float bx, float by) {
+        mHitCount = 0;
+        for (int start = 0; start < mSize; start += BLOCK) {
+            int n = overlapping(ax, ay, bx, by, start, Math.min(BLOCK, mSize - start));
+            orientations(ax, ay, bx, by, n);
+            for (int k = 0; k < n; k++) {
+                int i = mCandidates[k];
+                // Same order as Predicates.segmentsCross: the query's sides first
+                int c = sign(mC[k], mCSize[k]);
+                if (c == 2) c = Predicates.orientation(ax, ay, bx, by, mX1[i], mY1[i]);
+                int d = sign(mD[k], mDSize[k]);
+                if (d == 2) d = Predicates.orientation(ax, ay, bx, by, mX2[i], mY2[i]);
+                if (c * d >= 0) continue;
+                int a = sign(mA[k], mASize[k]);
+                if (a == 2) a = Predicates.orientation(mX1[i], mY1[i], mX2[i], mY2[i], ax, ay);
+                int b = sign(mB[k], mBSize[k]);
+                if (b == 2) b = Predicates.orientation(mX1[i], mY1[i], mX2[i], mY2[i], bx, by);
+                if (a * b >= 0) continue;
+                if (mHitCount == mHits.length) mHits = Arrays.copyOf(mHits, 2 * mHitCount);
+                mHits[mHitCount++] = i;
+            }
+        }
+        return mHitCount;
+    }
+    public int hit(int i) {
+        return mHits[i];
+    }
+
+    // Pack the segments from start to start + n whose boxes overlap ab's into mCandidates,
+    // and return how many there are. Every index is written and only kept by moving on, so
+    // there is no branch to mispredict, though the store to wherever the count has got to
+    // keeps the loop scalar.
+    private int overlapping(float ax, float ay, float bx, float by, int start, int n) {
+        float minX = Math.min(ax, bx);
+        float minY = Math.min(ay, by);
+        float maxX = Math.max(ax, bx);
+        float maxY = Math.max(ay, by);
+        int m = 0;
+        for (int i = start; i < start + n; i++) {
+            mCandidates[m] = i;
+            boolean apart = (maxX < mMinX[i]) | (mMaxX[i] < minX)
+                    | (maxY < mMinY[i]) | (mMaxY[i] < minY);
+            m += apart ? 0 : 1;
+        }
+        return m;
+    }
+    // The determinants of Predicates.orientation for the first n candidates, as doubles,
+    // without deciding anything yet
+    private void orientations(float ax, float ay, float bx, float by, int n) {
+        double qx = (double) bx - ax;
+        double qy = (double) by - ay;
+        for (int k = 0; k < n; k++) {
+            int i = mCandidates[k];
+            double left = qx * ((double) mY1[i] - ay);
+            double right = qy * ((double) mX1[i] - ax);
+            mC[k] = left - right;
+            mCSize[k] = Math.abs(left) + Math.abs(right);
+            left = qx * ((double) mY2[i] - ay);
+            right = qy * ((double) mX2[i] - ax);
+            mD[k] = left - right;
+            mDSize[k] = Math.abs(left) + Math.abs(right);
+        }
+        for (int k = 0; k < n; k++) {
+            int i = mCandidates[k];
+            double sx = (double) mX2[i] - mX1[i];
+            double sy = (double) mY2[i] - mY1[i];
+            double left = sx * ((double) ay - mY1[i]);
+            double right = sy * ((double) ax - mX1[i]);
+            mA[k] = left - right;
+            mASize[k] = Math.abs(left) + Math.abs(right);
+            left = sx * ((double) by - mY1[i]);
+            right = sy * ((double) bx - mX1[i]);
+            mB[k] = left - right;
+            mBSize[k] = Math.abs(left) + Math.abs(right);
+        }
+    }
+    // Sign of a determinant like Predicates.orientation decides it, or 2 if it is too close
+    // to zero to tell without the exact computation
+    private static int sign(double det, double size) {
+        double bound = Predicates.ORIENT_ERROR_BOUND * size;
+        if (det > bound) return 1;
+        if (-det > bound) return -1;
+        if (size == 0) return 0; // nothing was rounded
+        return 2;
+    }
+}
@@ -0,0 +1,139 @@
+package com.games.malcolm.graphgame;
+
+import java.util.Arrays;
+
+/**
+ *
+ * Uniform grid of square cells over a set of segments, so the segments that may cross a new
+ * one can be found by only looking at the cells it passes through.
+ *
+ * Each segment is stored under a caller's key in every cell it touches. Cells are kept in a
+ * PairIndex by cell coordinates, so the grid has no fixed extent and empty space costs
+ * nothing. The cells of a segment are padded slightly, so two segments that cross always
+ * share a cell even when the crossing is right on a cell border.
+ */
+
+public class SegmentGrid {
+    private static final int MIN_CAPACITY = 16;
+    private static final int ADD = 0;
+    private static final int REMOVE = 1;
+    private static final int COLLECT = 2;
+
+    private final float mCellSize;
+    private final float mPad;
+    private final PairIndex mCells = new PairIndex(true); // (column, row) -> bucket
+    private int[][] mBuckets = new int[MIN_CAPACITY][];
+    private int[] mBucketSizes = new int[MIN_CAPACITY];
+    private int mBucketCount;
+    private int[] mFound = new int[MIN_CAPACITY];
+    private int mFoundCount;
+
+    SegmentGrid(float cellSize) {
+        mCellSize = cellSize;
+        mPad = cellSize * 1e-4f;
+    }
+
+    public void clear() {
+        mCells.clear();
+        Arrays.fill(mBucketSizes, 0, mBucketCount, 0);
+        mBucketCount = 0;
+    }
+    public void add(int key, float x1, float y1, float x2, float y2) {
+        visit(ADD, key, x1, y1, x2, y2);
+    }
+    /**
+     * Remove key, which has to have been added with the same endpoints.
+     */
+    public void remove(int key, float x1, float y1, float x2, float y2) {
+        visit(REMOVE, key, x1, y1, x2, y2);
+    }
+
+    /**
+     * Find the keys of the segments sharing a cell with the given one. Returns how many there
+     * are, each once, in increasing order; see foundKey.
+     */
+    public int collect(float x1, float y1, float x2, float y2) {
+        mFoundCount = 0;
+        visit(COLLECT, 0, x1, y1, x2, y2);
+        Arrays.sort(mFound, 0, mFoundCount);
+        int n = 0;
+        for (int i = 0; i < mFoundCount; i++) {
+            if (n == 0 || mFound[n - 1] != mFound[i]) mFound[n++] = mFound[i];
+        }
+        mFoundCount = n;
+        return n;
+    }
+    public int foundKey(int i) {
+        return mFound[i];
+    }
+
+    private int cell(double v) {
+        return (int) Math.floor(v / mCellSize);
+    }
+    // Every cell the segment passes through, column by column
+    private void visit(int mode, int key, float x1, float y1, float x2, float y2) {
+        if (x1 > x2) {
+            float x = x1;
+            float y = y1;
+            x1 = x2;
+            y1 = y2;
+            x2 = x;
+            y2 = y;
+        }
+        double dx = (double) x2 - x1;
+        double slope = dx == 0 ? 0 : ((double) y2 - y1) / dx;
+        int last = cell(x2 + mPad);
+        for (int column = cell(x1 - mPad); column <= last; column++) {
+            // The part of the segment inside this column
+            double xa = Math.max(x1, (double) column * mCellSize);
+            double xb = Math.min(x2, (double) (column + 1) * mCellSize);
+            double ya = dx == 0 ? y1 : y1 + (xa - x1) * slope;
+            double yb = dx == 0 ? y2 : y1 + (xb - x1) * slope;
+            int top = cell(Math.max(ya, yb) + mPad);
+            for (int row = cell(Math.min(ya, yb) - mPad); row <= top; row++) {
+                visitCell(mode, key, column, row);
+            }
+        }
+    }
+    private void visitCell(int mode, int key, int column, int row) {
+        int bucket = mCells.get(column, row);
+        if (mode == COLLECT) {
+            if (bucket == PairIndex.NONE) return;
+            int size = mBucketSizes[bucket];
+            if (mFoundCount + size > mFound.length) {
+                mFound = Arrays.copyOf(mFound, Math.max(2 * mFound.length, mFoundCount + size));
+            }
+            System.arraycopy(mBuckets[bucket], 0, mFound, mFoundCount, size);
+            mFoundCount += size;
+        } else if (mode == ADD) {
+            if (bucket == PairIndex.NONE) {
+                bucket = newBucket();
+                mCells.put(column, row, bucket);
+            }
+            int[] keys = mBuckets[bucket];
+            int size = mBucketSizes[bucket];
+            if (size == keys.length) keys = mBuckets[bucket] = Arrays.copyOf(keys, 2 * size);
+            keys[size] = key;
+            mBucketSizes[bucket] = size + 1;
+        } else {
+            if (bucket == PairIndex.NONE) return;
+            int[] keys = mBuckets[bucket];
+            int size = mBucketSizes[bucket];
+            for (int i = 0; i < size; i++) {
+                if (keys[i] != key) continue;
+                keys[i] = keys[size - 1];
+                mBucketSizes[bucket] = size - 1;
+                return;
+            }
+        }
+    }
+    // Buckets are never freed, an empty cell keeps its bucket for the next segment
+    private int newBucket() {
+        if (mBucketCount == mBuckets.length) {
+            mBuckets = Arrays.copyOf(mBuckets, 2 * mBuckets.length);
+            mBucketSizes = Arrays.copyOf(mBucketSizes, 2 * mBucketSizes.length);
+        }
+        if (mBuckets[mBucketCount] == null) mBuckets[mBucketCount] = new int[4];
+        return mBucketCount++;
+    }
+}
@@ -0,0 +1,489 @@
+package com.games.malcolm.graphgame;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+
+/**
+ *
+ * Shamos-Hoey sweep answering "does any pair of segments cross?" in O(n log n), and a
+ * Bentley-Ottmann sweep finding every crossing pair.
+ *
+ * Crossings are decided by {@link Predicates#segmentsIntersect}, so segments that only share an
+ * endpoint or touch while collinear are not reported, exactly like the brute force check.
+ * The segments are kept in primitive columns that are reused between runs.
+ *
+ * Bentley-Ottmann keeps the segments cut by the sweep line in an array ordered from below.
+ * A new segment is placed with exact orientation tests and two segments that cross swap
+ * places, so only the order of the crossing events depends on rounded crossing points. That
+ * order is exact enough as long as no two crossings on one segment are within rounding of
+ * each other, which holds for the integer vertex positions of a MeshGraph. Like the classic
+ * algorithm it needs general position: three segments through one crossing or collinear
+ * overlaps can make it miss crossings, and a MeshGraph can't hold those anyway. It can be split
+ * into vertical slabs swept on separate threads, see findAllCrossings(Executor, int).
+ */
+
+public class SegmentSweep {
+    private static final int MIN_CAPACITY = 16;
+    private static final int MIN_SLAB_SIZE = 256; // segments per slab worth a task
+
+    // Segment columns, each segment stored with its lexicographically smaller endpoint first
+    private float[] mLx;
+    private float[] mLy;
+    private float[] mRx;
+    private float[] mRy;
+    private int[] mKey; // caller's id for each segment
+    private int mCount;
+    // Events are segment * 2 for the left endpoint and segment * 2 + 1 for the right one
+    private int[] mEvents;
+    private int[] mScratch;
+
+    private final TreeSet<Integer> mStatus = new TreeSet<>(new OrderBelow());
+    private int mFirst;
+    private int mSecond;
+
+    // Bentley-Ottmann status, segments in order from below and where each of them is
+    private int[] mOrder = new int[MIN_CAPACITY];
+    private int[] mPosition = new int[MIN_CAPACITY];
+    private int mOrderSize;
+    // Where the sweep starts. Crossings left of it are taken to have been passed already.
+    private double mMinX = Double.NEGATIVE_INFINITY;
+    // Every crossing found so far, and a binary heap of the ones still ahead of the sweep
+    private double[] mCrossX = new double[MIN_CAPACITY];
+    private double[] mCrossY = new double[MIN_CAPACITY];
+    private int[] mCrossA = new int[MIN_CAPACITY];
+    private int[] mCrossB = new int[MIN_CAPACITY];
+    private int mCrossCount;
+    private int[] mHeap = new int[MIN_CAPACITY];
+    private int mHeapSize;
+    private final PairIndex mCrossIds = new PairIndex(false); // segment pair -> crossing
+    private SegmentSweep[] mSlabs; // for the parallel sweep, reused between runs
+
+    SegmentSweep() {
+        mLx = new float[MIN_CAPACITY];
+        mLy = new float[MIN_CAPACITY];
+        mRx = new float[MIN_CAPACITY];
+        mRy = new float[MIN_CAPACITY];
+        mKey = new int[MIN_CAPACITY];
+        mEvents = new int[2 * MIN_CAPACITY];
+        mScratch = new int[2 * MIN_CAPACITY];
+    }
+
+    public void clear() {
+        mCount = 0;
+    }
+
+    /**
+     * Add a segment. key is handed back by firstKey/secondKey when the segment is part of the
+     * crossing found. Zero length segments can't cross anything and are ignored.
+     */
+    public void add(int key, float x1, float y1, float x2, float y2) {
+        if (x1 == x2 && y1 == y2) return;
+        if (mCount == mKey.length) grow();
+        int i = mCount++;
+        boolean flip = x1 > x2 || (x1 == x2 && y1 > y2);
+        mLx[i] = flip ? x2 : x1;
+        mLy[i] = flip ? y2 : y1;
+        mRx[i] = flip ? x1 : x2;
+        mRy[i] = flip ? y1 : y2;
+        mKey[i] = key;
+    }
+
+    /**
+     * Sweep the segments added since the last clear. Returns true if two of them cross, in
+     * which case firstKey and secondKey identify the pair.
+     */
+    public boolean findCrossing() {
+        mFirst = -1;
+        mSecond = -1;
+        int n = 2 * mCount;
+        for (int i = 0; i < n; i++) mEvents[i] = i;
+        sortEvents(n);
+        mStatus.clear();
+        try {
+            for (int i = 0; i < n; i++) {
+                int e = mEvents[i];
+                Integer s = e >> 1;
+                if ((e & 1) == 0) {
+                    mStatus.add(s);
+                    if (crosses(mStatus.lower(s), s) || crosses(s, mStatus.higher(s)))
+                        return true;
+                } else {
+                    Integer below = mStatus.lower(s);
+                    Integer above = mStatus.higher(s);
+                    mStatus.remove(s);
+                    if (crosses(below, above)) return true;
+                }
+            }
+            return false;
+        } finally {
+            mStatus.clear();
+        }
+    }
+    public int firstKey() {
+        return mFirst < 0 ? -1 : mKey[mFirst];
+    }
+    public int secondKey() {
+        return mSecond < 0 ? -1 : mKey[mSecond];
+    }
+
+    /**
+     * Sweep the segments added since the last clear and find every pair that crosses, in
+     * O((n + k) log n) comparisons for k crossings. Returns k, see firstKey(i) and
+     * secondKey(i) for the pairs. They come in the order the sweep passed them.
+     */
+    public int findAllCrossings() {
+        sweep(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+        return mCrossCount;
+    }
+    /**
+     * findAllCrossings split into the given number of vertical slabs, swept at the same time
+     * on executor. Each slab starts from the segments that cut its left border, in their order
+     * there, and only sweeps its own events, so no crossing work is done twice. The pairs
+     * found are the same, in a different order.
+     */
+    public int findAllCrossings(Executor executor, int slabs) {
+        slabs = Math.min(slabs, mCount / MIN_SLAB_SIZE);
+        if (slabs <= 1) return findAllCrossings();
+        // Slab borders at the quantiles of the left endpoints
+        float[] starts = Arrays.copyOf(mLx, mCount);
+        Arrays.sort(starts);
+        final double[] borders = new double[slabs + 1];
+        borders[0] = Double.NEGATIVE_INFINITY;
+        borders[slabs] = Double.POSITIVE_INFINITY;
+        for (int s = 1; s < slabs; s++) borders[s] = starts[s * mCount / slabs];
+        if (mSlabs == null || mSlabs.length < slabs) mSlabs = new SegmentSweep[slabs];
+        Runnable[] tasks = new Runnable[slabs];
+        for (int s = 0; s < slabs; s++) {
+            if (mSlabs[s] == null) mSlabs[s] = new SegmentSweep();
+            final SegmentSweep slab = mSlabs[s];
+            final double lo = borders[s];
+            final double hi = borders[s + 1];
+            slab.clear();
+            // In the same order as here, so crossing points come out the same in every slab
+            for (int i = 0; i < mCount; i++) {
+                if (mRx[i] >= lo && mLx[i] <= hi) slab.add(i, mLx[i], mLy[i], mRx[i], mRy[i]);
+            }
+            tasks[s] = new Runnable() {
+                @Override
+                public void run() {
+                    slab.sweep(lo, hi);
+                }
+            };
+        }
+        Parallel.run(executor, tasks);
+        // Keys of the slabs are indices here
+        mCrossCount = 0;
+        for (int s = 0; s < slabs; s++) {
+            SegmentSweep slab = mSlabs[s];
+            for (int c = 0; c < slab.mCrossCount; c++) {
+                if (slab.mCrossX[c] < borders[s] || slab.mCrossX[c] >= borders[s + 1]) continue;
+                if (mCrossCount == mCrossA.length) growCrossings();
+                mCrossX[mCrossCount] = slab.mCrossX[c];
+                mCrossY[mCrossCount] = slab.mCrossY[c];
+                mCrossA[mCrossCount] = slab.mKey[slab.mCrossA[c]];
+                mCrossB[mCrossCount++] = slab.mKey[slab.mCrossB[c]];
+            }
+        }
+        return mCrossCount;
+    }
+    public int firstKey(int i) {
+        return mKey[mCrossA[i]];
+    }
+    public int secondKey(int i) {
+        return mKey[mCrossB[i]];
+    }
+
+    // Bentley-Ottmann from x = minX up to and including x = maxX. Every crossing in between
+    // has been found by then, along with some beyond it. The segments that start left of
+    // minX make up the status the sweep starts with.
+    private void sweep(double minX, double maxX) {
+        int n = 2 * mCount;
+        for (int i = 0; i < n; i++) mEvents[i] = i;
+        sortEvents(n);
+        if (mPosition.length < mCount) {
+            mOrder = new int[mKey.length];
+            mPosition = new int[mKey.length];
+        }
+        mMinX = minX;
+        mOrderSize = 0;
+        mCrossCount = 0;
+        mHeapSize = 0;
+        mCrossIds.clear();
+        for (int s = 0; s < mCount; s++) {
+            if (mLx[s] < minX) mOrder[mOrderSize++] = s;
+        }
+        if (mOrderSize > 0) startAt();
+        int next = 0;
+        while (next < n || mHeapSize > 0) {
+            if (mHeapSize > 0 && (next == n || crossingFirst(mHeap[0], mEvents[next]))) {
+                if (mCrossX[mHeap[0]] > maxX) break;
+                exchange(popCrossing());
+                continue;
+            }
+            int e = mEvents[next++];
+            int s = e >> 1;
+            if ((e & 1) == 0) {
+                if (mLx[s] > maxX) break;
+                if (mLx[s] < minX) continue; // already in the status
+                insert(s);
+            } else {
+                if (mRx[s] > maxX) break;
+                remove(s);
+            }
+        }
+    }
+
+    // Order the segments put in the status by sweep from where they are just left of mMinX,
+    // and look for crossings between the neighbours that gives
+    private void startAt() {
+        int[] sorted = mergeSort(mOrder, mPosition, mOrderSize, false);
+        if (sorted != mOrder) {
+            mPosition = mOrder;
+            mOrder = sorted;
+        }
+        for (int i = 0; i < mOrderSize; i++) mPosition[mOrder[i]] = i;
+        for (int i = 1; i < mOrderSize; i++) checkNeighbours(i - 1, i);
+    }
+
+    private boolean crosses(Integer a, Integer b) {
+        if (a == null || b == null) return false;
+        int i = a;
+        int j = b;
+        if (!Predicates.segmentsIntersect(mLx[i], mLy[i], mRx[i], mRy[i],
+                mLx[j], mLy[j], mRx[j], mRy[j])) return false;
+        mFirst = Math.min(i, j);
+        mSecond = Math.max(i, j);
+        return true;
+    }
+
+    private void insert(int s) {
+        // Segments cut by the sweep line all started before s, so it goes above those whose
+        // line its start is above, like in OrderBelow
+        int lo = 0;
+        int hi = mOrderSize;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int t = mOrder[mid];
+            int side = side(t, mLx[s], mLy[s]);
+            if (side == 0) side = side(t, mRx[s], mRy[s]);
+            if (side == 0) side = s < t ? -1 : 1;
+            if (side > 0) lo = mid + 1;
+            else hi = mid;
+        }
+        for (int i = mOrderSize; i > lo; i--) {
+            mOrder[i] = mOrder[i - 1];
+            mPosition[mOrder[i]] = i;
+        }
+        mOrder[lo] = s;
+        mPosition[s] = lo;
+        mOrderSize++;
+        checkNeighbours(lo - 1, lo);
+        checkNeighbours(lo, lo + 1);
+    }
+    private void remove(int s) {
+        int i = mPosition[s];
+        mOrderSize--;
+        for (int j = i; j < mOrderSize; j++) {
+            mOrder[j] = mOrder[j + 1];
+            mPosition[mOrder[j]] = j;
+        }
+        mPosition[s] = -1;
+        checkNeighbours(i - 1, i);
+    }
+    // Two segments that cross swap places, and each meets a new neighbour
+    private void exchange(int c) {
+        int i = mPosition[mCrossA[c]];
+        int j = mPosition[mCrossB[c]];
+        if (i < 0 || j < 0) return; // one of them already ended, only rounding gets here
+        mOrder[i] = mCrossB[c];
+        mOrder[j] = mCrossA[c];
+        mPosition[mCrossA[c]] = j;
+        mPosition[mCrossB[c]] = i;
+        checkNeighbours(Math.min(i, j) - 1, Math.min(i, j));
+        checkNeighbours(Math.max(i, j), Math.max(i, j) + 1);
+    }
+    private void checkNeighbours(int i, int j) {
+        if (i < 0 || j >= mOrderSize) return;
+        int a = mOrder[i];
+        int b = mOrder[j];
+        if (mCrossIds.get(a, b) != PairIndex.NONE) return;
+        if (!Predicates.segmentsIntersect(mLx[a], mLy[a], mRx[a], mRy[a],
+                mLx[b], mLy[b], mRx[b], mRy[b])) return;
+        double t = crossingParameter(a, b);
+        int first = Math.min(a, b);
+        double x = mLx[first] + t * ((double) mRx[first] - mLx[first]);
+        if (x < mMinX) return; // passed before the sweep started, see orderAtStart
+        if (mCrossCount == mCrossA.length) growCrossings();
+        int c = mCrossCount++;
+        mCrossX[c] = x;
+        mCrossY[c] = mLy[first] + t * ((double) mRy[first] - mLy[first]);
+        mCrossA[c] = a;
+        mCrossB[c] = b;
+        mCrossIds.put(a, b, c);
+        pushCrossing(c);
+    }
+    // Where the line through the lower numbered of a and b meets the other line, as a parameter
+    // along the lower numbered one. Worked out the same way whichever order they come in, so
+    // a slab and the sweep next to it agree on which of them a crossing near their border is in.
+    private double crossingParameter(int a, int b) {
+        int first = Math.min(a, b);
+        int second = Math.max(a, b);
+        double ax = (double) mRx[first] - mLx[first];
+        double ay = (double) mRy[first] - mLy[first];
+        double bx = (double) mRx[second] - mLx[second];
+        double by = (double) mRy[second] - mLy[second];
+        return (((double) mLx[second] - mLx[first]) * by
+                - ((double) mLy[second] - mLy[first]) * bx) / (ax * by - ay * bx);
+    }
+    // Whether crossing c comes before endpoint event e. A crossing exactly at an endpoint
+    // goes after the segments ending there and before the ones starting there.
+    private boolean crossingFirst(int c, int e) {
+        int s = e >> 1;
+        boolean right = (e & 1) == 1;
+        double x = right ? mRx[s] : mLx[s];
+        double y = right ? mRy[s] : mLy[s];
+        if (mCrossX[c] != x) return mCrossX[c] < x;
+        if (mCrossY[c] != y) return mCrossY[c] < y;
+        return !right;
+    }
+    private boolean crossingBefore(int c1, int c2) {
+        if (mCrossX[c1] != mCrossX[c2]) return mCrossX[c1] < mCrossX[c2];
+        return mCrossY[c1] < mCrossY[c2];
+    }
+    private void pushCrossing(int c) {
+        int i = mHeapSize++;
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (!crossingBefore(c, mHeap[parent])) break;
+            mHeap[i] = mHeap[parent];
+            i = parent;
+        }
+        mHeap[i] = c;
+    }
+    private int popCrossing() {
+        int top = mHeap[0];
+        int c = mHeap[--mHeapSize];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= mHeapSize) break;
+            if (child + 1 < mHeapSize && crossingBefore(mHeap[child + 1], mHeap[child])) child++;
+            if (!crossingBefore(mHeap[child], c)) break;
+            mHeap[i] = mHeap[child];
+            i = child;
+        }
+        mHeap[i] = c;
+        return top;
+    }
+    private void growCrossings() {
+        int capacity = 2 * mCrossA.length;
+        mCrossX = Arrays.copyOf(mCrossX, capacity);
+        mCrossY = Arrays.copyOf(mCrossY, capacity);
+        mCrossA = Arrays.copyOf(mCrossA, capacity);
+        mCrossB = Arrays.copyOf(mCrossB, capacity);
+        mHeap = Arrays.copyOf(mHeap, capacity);
+    }
+
+    // Which side of segment t the point p lies on: 1 for above, -1 for below, 0 on its line
+    private int side(int t, float px, float py) {
+        return Predicates.orientation(mLx[t], mLy[t], mRx[t], mRy[t], px, py);
+    }
+
+    /**
+     * Vertical order of two segments that are both cut by the sweep line. The segment that
+     * starts later is located against the line of the other one, which doesn't depend on
+     * where the sweep line is as long as neither has crossed anything yet.
+     */
+    private class OrderBelow implements Comparator<Integer> {
+        @Override
+        public int compare(Integer ia, Integer ib) {
+            return orderBelow(ia, ib);
+        }
+    }
+    private int orderBelow(int a, int b) {
+        if (a == b) return 0;
+        boolean aLater = compareEndpoints(mLx[a], mLy[a], mLx[b], mLy[b]) >= 0;
+        int s = aLater ? a : b;
+        int t = aLater ? b : a;
+        int side = side(t, mLx[s], mLy[s]);
+        if (side == 0) side = side(t, mRx[s], mRy[s]);
+        if (side == 0) side = s < t ? -1 : 1; // collinear, any fixed order will do
+        return aLater ? side : -side;
+    }
+    /**
+     * Vertical order just left of mMinX of two segments that both cut it. It is their order
+     * where they start, unless they cross left of mMinX, which checkNeighbours would skip.
+     */
+    private int orderAtStart(int a, int b) {
+        int order = orderBelow(a, b);
+        if (a == b || !Predicates.segmentsIntersect(mLx[a], mLy[a], mRx[a], mRy[a],
+                mLx[b], mLy[b], mRx[b], mRy[b])) return order;
+        int first = Math.min(a, b);
+        double x = mLx[first] + crossingParameter(a, b) * ((double) mRx[first] - mLx[first]);
+        return x < mMinX ? -order : order;
+    }
+
+    private static int compareEndpoints(float x1, float y1, float x2, float y2) {
+        if (x1 != x2) return x1 < x2 ? -1 : 1;
+        if (y1 != y2) return y1 < y2 ? -1 : 1;
+        return 0;
+    }
+    // Events sorted by point, with right endpoints before left ones at the same point so two
+    // segments that cross where a third one ends become neighbours before anything new starts.
+    private int compareEvents(int e1, int e2) {
+        int s1 = e1 >> 1;
+        int s2 = e2 >> 1;
+        boolean right1 = (e1 & 1) == 1;
+        boolean right2 = (e2 & 1) == 1;
+        int c = compareEndpoints(right1 ? mRx[s1] : mLx[s1], right1 ? mRy[s1] : mLy[s1],
+                right2 ? mRx[s2] : mLx[s2], right2 ? mRy[s2] : mLy[s2]);
+        if (c != 0) return c;
+        if (right1 != right2) return right1 ? -1 : 1;
+        return e1 < e2 ? -1 : (e1 == e2 ? 0 : 1);
+    }
+    // Bottom up merge sort, so sorting the events doesn't box anything
+    private void sortEvents(int n) {
+        int[] sorted = mergeSort(mEvents, mScratch, n, true);
+        if (sorted != mEvents) {
+            mScratch = mEvents;
+            mEvents = sorted;
+        }
+    }
+    // Sorts the first n of src as events, or as segments by orderAtStart. Returns whichever of
+    // src and dst they end up in.
+    private int[] mergeSort(int[] src, int[] dst, int n, boolean events) {
+        for (int width = 1; width < n; width *= 2) {
+            for (int lo = 0; lo < n; lo += 2 * width) {
+                int mid = Math.min(lo + width, n);
+                int hi = Math.min(lo + 2 * width, n);
+                int i = lo;
+                int j = mid;
+                for (int k = lo; k < hi; k++) {
+                    if (i < mid && (j >= hi || (events ? compareEvents(src[i], src[j])
+                            : orderAtStart(src[i], src[j])) <= 0)) {
+                        dst[k] = src[i++];
+                    } else {
+                        dst[k] = src[j++];
+                    }
+                }
+            }
+            int[] tmp = src;
+            src = dst;
+            dst = tmp;
+        }
+        return src;
+    }
+
+    private void grow() {
+        int capacity = 2 * mKey.length;
+        mLx = Arrays.copyOf(mLx, capacity);
+        mLy = Arrays.copyOf(mLy, capacity);
+        mRx = Arrays.copyOf(mRx, capacity);
+        mRy = Arrays.copyOf(mRy, capacity);
+        mKey = Arrays.copyOf(mKey, capacity);
+        mEvents = new int[2 * capacity];
+        mScratch = new int[2 * capacity];
+    }
+}
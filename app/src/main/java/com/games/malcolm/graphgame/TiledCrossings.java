@@ -0,0 +1,186 @@
+package com.games.malcolm.graphgame;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ *
+ * All crossing pairs among a set of segments, found by binning the segments into square tiles
+ * by bounding box and only testing the pairs that share a tile. Tiles are independent, so they
+ * can be split over several tasks.
+ *
+ * Two segments can share many tiles. A pair is only tested, and reported, in the lowest row
+ * and column that both their boxes cover, which is a tile they are both in, so every crossing
+ * comes out exactly once whatever the tiling. The pairs are sorted before they are handed
+ * back, so the result doesn't depend on how many tasks there were either.
+ *
+ * Unlike SegmentSweep this needs no general position, crossings are decided by
+ * Segment.crosses on every candidate pair.
+ */
+
+public class TiledCrossings {
+    private static final int MIN_CAPACITY = 16;
+    private static final int MIN_SEGMENTS_PER_TASK = 256;
+
+    // Tile ranges of each segment's box, inclusive
+    private int[] mColumn0 = new int[MIN_CAPACITY];
+    private int[] mColumn1 = new int[MIN_CAPACITY];
+    private int[] mRow0 = new int[MIN_CAPACITY];
+    private int[] mRow1 = new int[MIN_CAPACITY];
+    private int mColumns;
+    private int mRows;
+    // Segments of tile t, in increasing order, are mTileSegments[mTileStart[t]] up to
+    // mTileStart[t + 1]
+    private int[] mTileStart = new int[MIN_CAPACITY];
+    private int[] mTileSegments = new int[MIN_CAPACITY];
+    // Crossings as first << 32 | second, first < second
+    private long[] mPairs = new long[MIN_CAPACITY];
+    private int mPairCount;
+    private long[][] mPartPairs = new long[0][];
+    private int[] mPartCounts = new int[0];
+
+    /**
+     * Find every pair of the first n segments that cross. Returns how many there are; see
+     * first and second, which give them in increasing order of first and then second. A null
+     * executor, or too few segments to be worth splitting, does it all on this thread.
+     */
+    public int findAll(final Segment[] segments, int n, Executor executor, int tasks) {
+        mPairCount = 0;
+        if (n < 2) return 0;
+        tile(segments, n);
+        final int parts = Math.max(1, Math.min(tasks, n / MIN_SEGMENTS_PER_TASK));
+        if (mPartPairs.length < parts) {
+            mPartPairs = Arrays.copyOf(mPartPairs, parts);
+            mPartCounts = new int[parts];
+        }
+        Runnable[] work = new Runnable[parts];
+        for (int t = 0; t < parts; t++) {
+            final int part = t;
+            work[t] = new Runnable() {
+                @Override
+                public void run() {
+                    // Every parts-th tile, so a crowded corner is spread over all the tasks
+                    mPartCounts[part] = 0;
+                    for (int tile = part; tile < mColumns * mRows; tile += parts) {
+                        findInTile(segments, tile, part);
+                    }
+                }
+            };
+        }
+        Parallel.run(executor, work);
+        for (int t = 0; t < parts; t++) {
+            if (mPartCounts[t] == 0) continue;
+            ensurePairCapacity(mPairCount + mPartCounts[t]);
+            System.arraycopy(mPartPairs[t], 0, mPairs, mPairCount, mPartCounts[t]);
+            mPairCount += mPartCounts[t];
+        }
+        Arrays.sort(mPairs, 0, mPairCount);
+        return mPairCount;
+    }
+    public int first(int i) {
+        return (int) (mPairs[i] >>> 32);
+    }
+    public int second(int i) {
+        return (int) mPairs[i];
+    }
+
+    // Square tiles about the size of an average segment, but only about as many of them as
+    // there are segments, in all and along each side
+    private void tile(Segment[] segments, int n) {
+        float minX = Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+        double extent = 0;
+        for (int i = 0; i < n; i++) {
+            Segment s = segments[i];
+            minX = Math.min(minX, s.mMinX);
+            minY = Math.min(minY, s.mMinY);
+            maxX = Math.max(maxX, s.mMaxX);
+            maxY = Math.max(maxY, s.mMaxY);
+            extent += Math.max(s.mMaxX - s.mMinX, s.mMaxY - s.mMinY);
+        }
+        double width = (double) maxX - minX;
+        double height = (double) maxY - minY;
+        double size = Math.max(extent / n, Math.sqrt(width * height / n));
+        size = Math.max(size, Math.max(width, height) / n);
+        if (!(size > 0)) size = 1; // every segment is the same point
+        mColumns = (int) (width / size) + 1;
+        mRows = (int) (height / size) + 1;
+        if (mColumn0.length < n) {
+            int capacity = Math.max(n, 2 * mColumn0.length);
+            mColumn0 = new int[capacity];
+            mColumn1 = new int[capacity];
+            mRow0 = new int[capacity];
+            mRow1 = new int[capacity];
+        }
+        int tiles = mColumns * mRows;
+        if (mTileStart.length < tiles + 1) {
+            mTileStart = new int[Math.max(tiles + 1, 2 * mTileStart.length)];
+        }
+        Arrays.fill(mTileStart, 0, tiles + 1, 0);
+        int entries = 0;
+        for (int i = 0; i < n; i++) {
+            Segment s = segments[i];
+            mColumn0[i] = cell(s.mMinX - (double) minX, size, mColumns);
+            mColumn1[i] = cell(s.mMaxX - (double) minX, size, mColumns);
+            mRow0[i] = cell(s.mMinY - (double) minY, size, mRows);
+            mRow1[i] = cell(s.mMaxY - (double) minY, size, mRows);
+            for (int r = mRow0[i]; r <= mRow1[i]; r++) {
+                for (int c = mColumn0[i]; c <= mColumn1[i]; c++) {
+                    mTileStart[r * mColumns + c + 1]++;
+                }
+            }
+            entries += (mRow1[i] - mRow0[i] + 1) * (mColumn1[i] - mColumn0[i] + 1);
+        }
+        for (int t = 0; t < tiles; t++) mTileStart[t + 1] += mTileStart[t];
+        if (mTileSegments.length < entries) {
+            mTileSegments = new int[Math.max(entries, 2 * mTileSegments.length)];
+        }
+        // Fill each tile from its start, then shift the starts back
+        for (int i = 0; i < n; i++) {
+            for (int r = mRow0[i]; r <= mRow1[i]; r++) {
+                for (int c = mColumn0[i]; c <= mColumn1[i]; c++) {
+                    mTileSegments[mTileStart[r * mColumns + c]++] = i;
+                }
+            }
+        }
+        for (int t = tiles; t > 0; t--) mTileStart[t] = mTileStart[t - 1];
+        mTileStart[0] = 0;
+    }
+    private static int cell(double offset, double size, int cells) {
+        return Math.min((int) (offset / size), cells - 1);
+    }
+
+    private void findInTile(Segment[] segments, int tile, int part) {
+        int column = tile % mColumns;
+        int row = tile / mColumns;
+        int start = mTileStart[tile];
+        int end = mTileStart[tile + 1];
+        for (int a = start; a < end; a++) {
+            int i = mTileSegments[a];
+            for (int b = a + 1; b < end; b++) {
+                int j = mTileSegments[b];
+                // Only in the first tile they share
+                if (Math.max(mColumn0[i], mColumn0[j]) != column) continue;
+                if (Math.max(mRow0[i], mRow0[j]) != row) continue;
+                if (!segments[i].crosses(segments[j])) continue;
+                addPair(part, (long) i << 32 | j);
+            }
+        }
+    }
+    private void addPair(int part, long pair) {
+        long[] pairs = mPartPairs[part];
+        int count = mPartCounts[part];
+        if (pairs == null || count == pairs.length) {
+            pairs = pairs == null ? new long[MIN_CAPACITY] : Arrays.copyOf(pairs, 2 * count);
+            mPartPairs[part] = pairs;
+        }
+        pairs[count] = pair;
+        mPartCounts[part] = count + 1;
+    }
+    private void ensurePairCapacity(int capacity) {
+        if (capacity <= mPairs.length) return;
+        mPairs = Arrays.copyOf(mPairs, Math.max(capacity, 2 * mPairs.length));
+    }
+}
@@ -0,0 +1,40 @@
+package com.games.malcolm.graphgame;
+
+/**
+ * Timing for the benchmarks in this directory. The work is run once to warm up and then a few
+ * more times, and the fastest run counts. Every run has to return the same checksum, which
+ * the benchmark then compares between the ways it timed.
+ */
+final class BenchmarkTimer {
+    private static final int RUNS = 5;
+
+    interface Work {
+        long run();
+    }
+
+    private long mChecksum;
+
+    /**
+     * Fastest time in nanoseconds of running work once.
+     */
+    long best(Work work) {
+        long checksum = work.run();
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            long again = work.run();
+            best = Math.min(best, System.nanoTime() - start);
+            if (again != checksum) {
+                throw new AssertionError("Run " + i + " returned " + again + ", not " + checksum);
+            }
+        }
+        mChecksum = checksum;
+        return best;
+    }
+    /**
+     * What the work timed by the last call to best returned.
+     */
+    long checksum() {
+        return mChecksum;
+    }
+}
@@ -0,0 +1,183 @@
+package com.games.malcolm.graphgame;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Edits on MeshGraph, with every validation cross-checked against the full validators.
+ */
+public class MeshGraphTest {
+
+    @Test(timeout = 10000)
+    public void addGraphEdge_ignoresLoops() throws Exception {
+        MeshGraph graph = newGraph();
+        int a = graph.addGraphVertex(100, 100);
+        int b = graph.addGraphVertex(300, 100);
+        graph.addGraphEdge(a, a); // a has no edges yet
+        assertEquals(0, graph.mEdges.size());
+        graph.addGraphEdge(a, b);
+        graph.addGraphEdge(b, b); // b has one
+        assertEquals(2, graph.mEdges.size());
+        graph.addGraphEdges(new int[] {a}, new int[] {a});
+        assertEquals(2, graph.mEdges.size());
+        graph.validateGraphFull();
+    }
+
+    @Test
+    public void addGraphEdge_keepsMeshInOnePiece() throws Exception {
+        MeshGraph graph = newGraph();
+        int a = graph.addGraphVertex(100, 300);
+        int b = graph.addGraphVertex(500, 300);
+        int c = graph.addGraphVertex(300, 100);
+        int d = graph.addGraphVertex(300, 500);
+        int e = graph.addGraphVertex(800, 100);
+        graph.addGraphEdge(a, b);
+        graph.addGraphEdge(c, e); // touches neither a nor b
+        assertEquals(2, graph.mEdges.size());
+        graph.addGraphEdge(c, d); // crosses a b
+        assertEquals(8, graph.mEdges.size());
+        graph.validateGraphFull();
+    }
+
+    @Test
+    public void moveGraphVertex_acrossCrossings() throws Exception {
+        MeshGraph graph = newGraph();
+        int a = graph.addGraphVertex(100, 300);
+        int b = graph.addGraphVertex(500, 300);
+        int c = graph.addGraphVertex(300, 100);
+        int d = graph.addGraphVertex(300, 500);
+        int e = graph.addGraphVertex(700, 100);
+        int f = graph.addGraphVertex(700, 500);
+        graph.addGraphEdge(a, b);
+        graph.addGraphEdge(b, e);
+        graph.addGraphEdge(e, f);
+        graph.addGraphEdge(c, d); // crosses a b
+        assertEquals(1, graph.vertexCrossings(c));
+
+        // c d leaves a b behind and crosses e f instead
+        graph.moveGraphVertex(c, 900, 200);
+        graph.validateGraph();
+        assertEquals(c, graph.pointOnAnyVertex(900, 200));
+        assertEquals(1, graph.crossingCount());
+        assertEquals(0, graph.vertexCrossings(a));
+        assertEquals(1, graph.vertexCrossings(f));
+
+        // Nothing would hold c d to the rest from there, so c stays put
+        graph.moveGraphVertex(c, 100, 600);
+        graph.validateGraph();
+        assertEquals(c, graph.pointOnAnyVertex(900, 200));
+        assertEquals(1, graph.crossingCount());
+
+        // and back across a b
+        graph.moveGraphVertex(c, 300, 100);
+        graph.validateGraph();
+        assertEquals(c, graph.pointOnAnyVertex(300, 100));
+        assertEquals(1, graph.vertexCrossings(a));
+        assertEquals(0, graph.vertexCrossings(f));
+        graph.validateGraphFull();
+    }
+
+    @Test
+    public void moveGraphVertex_alongPath() throws Exception {
+        MeshGraph graph = newGraph();
+        int x = graph.addGraphVertex(100, 100);
+        int a = graph.addGraphVertex(200, 300);
+        int v = graph.addGraphVertex(400, 300);
+        int b = graph.addGraphVertex(600, 300);
+        int y = graph.addGraphVertex(700, 100);
+        graph.addGraphEdge(x, a);
+        graph.addGraphEdge(a, v);
+        graph.addGraphEdge(v, b);
+        graph.addGraphEdge(b, y);
+
+        // Both edges of v are all that hold the path together
+        graph.moveGraphVertex(v, 400, 500);
+        graph.validateGraph();
+        assertEquals(v, graph.pointOnAnyVertex(400, 500));
+        assertEquals(-1, graph.pointOnAnyVertex(400, 300));
+        assertEquals(0, graph.crossingCount());
+
+        // Back up past a, where v b crosses x a
+        graph.moveGraphVertex(v, 100, 200);
+        graph.validateGraph();
+        assertEquals(v, graph.pointOnAnyVertex(100, 200));
+        assertEquals(1, graph.crossingCount());
+        assertEquals(1, graph.vertexCrossings(x));
+        graph.validateGraphFull();
+    }
+
+    // Random adds, moves and deletes, some of which the graph has to refuse and roll back.
+    // Handles of deleted vertices stay in the list, so stale ones get used too.
+    @Test(timeout = 60000)
+    public void randomEdits_keepGraphValid() throws Exception {
+        for (int seed = 0; seed < 40; seed++) {
+            Random random = new Random(seed);
+            MeshGraph graph = newGraph();
+            ArrayList<Integer> handles = new ArrayList<>();
+            for (int step = 0; step < 80; step++) {
+                int op = random.nextInt(20);
+                String edit = "";
+                try {
+                    if (op < 5 || handles.size() < 2) {
+                        int x = 40 + random.nextInt(900);
+                        int y = 40 + random.nextInt(1000);
+                        edit = "add vertex at " + x + ", " + y;
+                        int h = graph.addGraphVertex(x, y);
+                        if (h >= 0) handles.add(h);
+                    } else if (op < 13) {
+                        int a = pick(random, handles);
+                        int b = pick(random, handles);
+                        edit = "add edge " + a + " " + b;
+                        graph.addGraphEdge(a, b);
+                    } else if (op < 14) {
+                        int[] from = new int[3];
+                        int[] to = new int[3];
+                        for (int k = 0; k < 3; k++) {
+                            from[k] = pick(random, handles);
+                            to[k] = pick(random, handles);
+                        }
+                        edit = "add edges";
+                        graph.addGraphEdges(from, to);
+                    } else if (op < 15) {
+                        int a = pick(random, handles);
+                        int b = pick(random, handles);
+                        edit = "delete edge " + a + " " + b;
+                        graph.deleteGraphEdge(a, b);
+                    } else if (op < 17) {
+                        int a = pick(random, handles);
+                        edit = "delete vertex " + a;
+                        graph.deleteGraphVertex(a);
+                    } else {
+                        int a = pick(random, handles);
+                        int x = 40 + random.nextInt(900);
+                        int y = 40 + random.nextInt(1000);
+                        edit = "move vertex " + a + " to " + x + ", " + y;
+                        graph.moveGraphVertex(a, x, y);
+                    }
+                    graph.validateGraph();
+                } catch (AssertionError e) {
+                    throw new AssertionError("seed " + seed + ", step " + step + " (" + edit
+                            + "): " + e.getMessage());
+                }
+                int total = 0;
+                for (int h : handles) total += Math.max(0, graph.vertexCrossings(h));
+                assertEquals(4 * graph.crossingCount(), total);
+            }
+            graph.validateGraphFull();
+        }
+    }
+
+    private static int pick(Random random, ArrayList<Integer> handles) {
+        return handles.get(random.nextInt(handles.size()));
+    }
+
+    private static MeshGraph newGraph() {
+        MeshGraph graph = new MeshGraph();
+        graph.setCrossCheckValidation(true);
+        return graph;
+    }
+}
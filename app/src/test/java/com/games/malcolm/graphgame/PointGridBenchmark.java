@@ -0,0 +1,124 @@
+package com.games.malcolm.graphgame;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Finds the point under a touch, and the nearest few points, among many points spread over a
+ * large board, once by scanning every point and once with PointGrid. Both have to find the
+ * same points; reports what a query costs each way.
+ */
+public class PointGridBenchmark {
+    private static final int N = 10000;
+    private static final int QUERIES = 20000;
+    private static final float SIZE = 6000;
+    private static final float RADIUS = 60;
+    private static final int K = 4;
+
+    @Test
+    public void queries_matchScan() throws Exception {
+        Random random = new Random(1);
+        final float[] xs = new float[N];
+        final float[] ys = new float[N];
+        final PointGrid grid = new PointGrid(2 * RADIUS);
+        for (int i = 0; i < N; i++) {
+            xs[i] = SIZE * random.nextFloat();
+            ys[i] = SIZE * random.nextFloat();
+            grid.add(i, xs[i], ys[i]);
+        }
+        final float[] q = new float[2 * QUERIES];
+        for (int i = 0; i < q.length; i++) q[i] = SIZE * random.nextFloat();
+
+        BenchmarkTimer timer = new BenchmarkTimer();
+        long scanNs = timer.best(new BenchmarkTimer.Work() {
+            @Override
+            public long run() {
+                return scanWithin(xs, ys, q);
+            }
+        });
+        long expected = timer.checksum();
+        long gridNs = timer.best(new BenchmarkTimer.Work() {
+            @Override
+            public long run() {
+                return gridWithin(grid, q);
+            }
+        });
+        assertEquals(expected, timer.checksum());
+        System.out.println(String.format("within: scan=%.1fns grid=%.1fns (%d)",
+                (double) scanNs / QUERIES, (double) gridNs / QUERIES, expected));
+
+        scanNs = timer.best(new BenchmarkTimer.Work() {
+            @Override
+            public long run() {
+                return scanNearest(xs, ys, q);
+            }
+        });
+        expected = timer.checksum();
+        gridNs = timer.best(new BenchmarkTimer.Work() {
+            @Override
+            public long run() {
+                return gridNearest(grid, q);
+            }
+        });
+        assertEquals(expected, timer.checksum());
+        System.out.println(String.format("nearest %d: scan=%.1fns grid=%.1fns (%d)", K,
+                (double) scanNs / QUERIES, (double) gridNs / QUERIES, expected));
+    }
+
+    // Sums of the points found by each query, weighted by the query and their rank, so both
+    // have to find the same ones in the same order to agree
+    private static long scanWithin(float[] xs, float[] ys, float[] q) {
+        long sum = 0;
+        for (int j = 0; j < QUERIES; j++) {
+            int found = 0;
+            for (int i = 0; i < N; i++) {
+                if (Geometry.isInCircle(xs[i], ys[i], q[2 * j], q[2 * j + 1], RADIUS)) {
+                    sum += (long) (j + 1) * (++found) * i;
+                }
+            }
+        }
+        return sum;
+    }
+    private static long gridWithin(PointGrid grid, float[] q) {
+        long sum = 0;
+        for (int j = 0; j < QUERIES; j++) {
+            int n = grid.within(q[2 * j], q[2 * j + 1], RADIUS);
+            for (int k = 0; k < n; k++) sum += (long) (j + 1) * (k + 1) * grid.foundKey(k);
+        }
+        return sum;
+    }
+    private static long scanNearest(float[] xs, float[] ys, float[] q) {
+        int[] best = new int[K];
+        double[] bestDistance = new double[K];
+        long sum = 0;
+        for (int j = 0; j < QUERIES; j++) {
+            int found = 0;
+            for (int i = 0; i < N; i++) {
+                double dx = (double) xs[i] - q[2 * j];
+                double dy = (double) ys[i] - q[2 * j + 1];
+                double distance = dx * dx + dy * dy;
+                int at = found;
+                while (at > 0 && bestDistance[at - 1] > distance) at--;
+                if (at == K) continue;
+                if (found < K) found++;
+                System.arraycopy(best, at, best, at + 1, found - at - 1);
+                System.arraycopy(bestDistance, at, bestDistance, at + 1, found - at - 1);
+                best[at] = i;
+                bestDistance[at] = distance;
+            }
+            for (int k = 0; k < found; k++) sum += (long) (j + 1) * (k + 1) * best[k];
+        }
+        return sum;
+    }
+    private static long gridNearest(PointGrid grid, float[] q) {
+        long sum = 0;
+        for (int j = 0; j < QUERIES; j++) {
+            int n = grid.nearest(q[2 * j], q[2 * j + 1], K);
+            for (int k = 0; k < n; k++) sum += (long) (j + 1) * (k + 1) * grid.foundKey(k);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,150 @@
+package com.games.malcolm.graphgame;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the exact predicates on degenerate input and reports how often the exact fallback
+ * runs, and what it costs, for random and adversarial inputs.
+ */
+public class PredicatesBenchmark {
+    private static final int N = 200000;
+
+    @Test
+    public void orientation_isExactOnDegenerateInput() throws Exception {
+        assertEquals(1, Predicates.orientation(0, 0, 1, 0, 0, 1));
+        assertEquals(-1, Predicates.orientation(0, 0, 1, 0, 0, -1));
+        assertEquals(0, Predicates.orientation(0, 0, 1, 1, 2, 2));
+        // Collinear, but the naive float determinant rounds away from zero
+        assertEquals(0, Predicates.orientation(0.1f, 0.1f, 0.3f, 0.3f, 0.7f, 0.7f));
+        // The smallest possible step off a long line is still seen
+        float y = Math.nextUp(1e6f);
+        assertEquals(1, Predicates.orientation(0, 0, 2e6f, 2e6f, 1e6f, y));
+        assertEquals(-1, Predicates.orientation(0, 0, 2e6f, 2e6f, y, 1e6f));
+    }
+
+    @Test
+    public void segmentsIntersect_ignoresTouchingSegments() throws Exception {
+        assertTrue(Predicates.segmentsIntersect(0, 0, 2, 2, 0, 2, 2, 0));
+        assertFalse(Predicates.segmentsIntersect(0, 0, 1, 1, 1, 1, 2, 0)); // shared endpoint
+        assertFalse(Predicates.segmentsIntersect(0, 0, 2, 0, 1, 0, 1, 1)); // T junction
+        assertFalse(Predicates.segmentsIntersect(0, 0, 2, 0, 1, 0, 3, 0)); // collinear overlap
+        assertFalse(Predicates.segmentsIntersect(0, 0, 1, 0, 0, 1, 1, 1)); // parallel
+    }
+
+    @Test
+    public void intersectionPoint_staysOnSegment() throws Exception {
+        float[] out = new float[2];
+        assertTrue(Predicates.intersectionPoint(0, 0, 2, 2, 0, 2, 2, 0, out));
+        assertEquals(1f, out[0], 0f);
+        assertEquals(1f, out[1], 0f);
+        assertFalse(Predicates.intersectionPoint(0, 0, 1, 0, 0, 1, 1, 1, out));
+        // Nearly parallel segments crossing near an endpoint
+        Random random = new Random(7);
+        for (int i = 0; i < 10000; i++) {
+            float ax = random.nextFloat();
+            float ay = random.nextFloat();
+            float bx = ax + 1000 * random.nextFloat();
+            float by = ay + 1000 * random.nextFloat();
+            float cx = ax + (bx - ax) * 0.999f;
+            float cy = ay + (by - ay) * 0.999f + 1e-3f;
+            float dx = bx + 1;
+            float dy = by - 1e-3f;
+            if (!Predicates.segmentsIntersect(ax, ay, bx, by, cx, cy, dx, dy)) continue;
+            assertTrue(Predicates.intersectionPoint(ax, ay, bx, by, cx, cy, dx, dy, out));
+            assertTrue(Math.min(ax, bx) <= out[0] && out[0] <= Math.max(ax, bx));
+            assertTrue(Math.min(ay, by) <= out[1] && out[1] <= Math.max(ay, by));
+        }
+    }
+
+    @Test
+    public void pointInPolygon_countsSharedVerticesOnce() throws Exception {
+        float[] xs = {0, 2, 4, 2};
+        float[] ys = {2, 0, 2, 4};
+        assertTrue(Predicates.pointInPolygon(2, 2, xs, ys, 4));
+        assertTrue(Predicates.pointInPolygon(1, 2, xs, ys, 4)); // ray through two vertices
+        assertFalse(Predicates.pointInPolygon(5, 2, xs, ys, 4));
+        assertFalse(Predicates.pointInPolygon(2, 5, xs, ys, 4));
+    }
+
+    @Test
+    public void fallbackRate() throws Exception {
+        Random random = new Random(1);
+        float[] pts = new float[6 * N];
+        for (int i = 0; i < pts.length; i++) pts[i] = 1000 * random.nextFloat();
+        report("random", pts);
+
+        // Adversarial: the third point is on the line through the first two, or one ulp off it.
+        // Points on the line are exact ties in double, which only the exact sum can settle.
+        for (int i = 0; i < N; i++) {
+            float ax = 1000 * random.nextFloat();
+            float ay = 1000 * random.nextFloat();
+            float dx = random.nextInt(64) - 32;
+            float dy = random.nextInt(64) - 32;
+            float t = random.nextInt(16);
+            float cy = ay + t * dy;
+            int off = random.nextInt(3);
+            if (off == 1) cy = Math.nextUp(cy);
+            else if (off == 2) cy = Math.nextDown(cy);
+            pts[6 * i] = ax;
+            pts[6 * i + 1] = ay;
+            pts[6 * i + 2] = ax + dx;
+            pts[6 * i + 3] = ay + dy;
+            pts[6 * i + 4] = ax + t * dx;
+            pts[6 * i + 5] = cy;
+        }
+        report("near collinear", pts);
+
+        // Adversarial: small integer grid, lots of exact collinearity
+        for (int i = 0; i < pts.length; i++) pts[i] = random.nextInt(8);
+        report("integer grid", pts);
+    }
+
+    private static void report(String name, final float[] pts) {
+        BenchmarkTimer timer = new BenchmarkTimer();
+        long naiveNs = timer.best(new BenchmarkTimer.Work() {
+            @Override
+            public long run() {
+                return naive(pts);
+            }
+        });
+        long filteredNs = timer.best(new BenchmarkTimer.Work() {
+            @Override
+            public long run() {
+                return filtered(pts);
+            }
+        });
+        System.out.println(String.format("%s: fallbacks=%.3f%% naive=%.1fns filtered=%.1fns (%d)",
+                name, 100.0 * fallbacks(pts) / N, (double) naiveNs / N, (double) filteredNs / N,
+                timer.checksum()));
+    }
+    // How many of the triples orientation can't settle without the exact sum
+    private static int fallbacks(float[] p) {
+        int count = 0;
+        for (int i = 0; i < 6 * N; i += 6) {
+            int sign = Predicates.orientationFilter(p[i], p[i + 1], p[i + 2], p[i + 3],
+                    p[i + 4], p[i + 5]);
+            if (sign == Predicates.UNCERTAIN) count++;
+        }
+        return count;
+    }
+    private static int naive(float[] p) {
+        int sum = 0;
+        for (int i = 0; i < 6 * N; i += 6) {
+            float det = (p[i + 2] - p[i]) * (p[i + 5] - p[i + 1])
+                    - (p[i + 3] - p[i + 1]) * (p[i + 4] - p[i]);
+            sum += det > 0 ? 1 : (det < 0 ? -1 : 0);
+        }
+        return sum;
+    }
+    private static int filtered(float[] p) {
+        int sum = 0;
+        for (int i = 0; i < 6 * N; i += 6) {
+            sum += Predicates.orientation(p[i], p[i + 1], p[i + 2], p[i + 3], p[i + 4], p[i + 5]);
+        }
+        return sum;
+    }
+}
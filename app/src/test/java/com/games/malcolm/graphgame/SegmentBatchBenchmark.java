@@ -0,0 +1,86 @@
+package com.games.malcolm.graphgame;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests one segment against many, pair by pair with Predicates.segmentsIntersect and in
+ * blocks with SegmentBatch. Both have to find the same segments; reports what each costs per
+ * pair for short segments, long ones, and ones on a small integer grid.
+ */
+public class SegmentBatchBenchmark {
+    private static final int N = 4096;
+    private static final int QUERIES = 2000;
+
+    @Test
+    public void crossing_matchesPairByPair() throws Exception {
+        Random random = new Random(1);
+        report("short", segments(random, 1000, 50), segments(random, 1000, 50));
+        report("long", segments(random, 1000, 1000), segments(random, 1000, 1000));
+        float[] grid = new float[4 * N];
+        for (int i = 0; i < grid.length; i++) grid[i] = random.nextInt(8);
+        float[] queries = new float[4 * QUERIES];
+        for (int i = 0; i < queries.length; i++) queries[i] = random.nextInt(8);
+        report("integer grid", grid, queries);
+    }
+
+    // Segments from random points to points at most length away in each direction
+    private static float[] segments(Random random, float size, float length) {
+        float[] s = new float[4 * Math.max(N, QUERIES)];
+        for (int i = 0; i < s.length; i += 4) {
+            s[i] = size * random.nextFloat();
+            s[i + 1] = size * random.nextFloat();
+            s[i + 2] = s[i] + length * (2 * random.nextFloat() - 1);
+            s[i + 3] = s[i + 1] + length * (2 * random.nextFloat() - 1);
+        }
+        return s;
+    }
+
+    private static void report(String name, final float[] s, final float[] q) {
+        final SegmentBatch batch = new SegmentBatch();
+        for (int i = 0; i < 4 * N; i += 4) batch.add(s[i], s[i + 1], s[i + 2], s[i + 3]);
+        BenchmarkTimer timer = new BenchmarkTimer();
+        long pairNs = timer.best(new BenchmarkTimer.Work() {
+            @Override
+            public long run() {
+                return pairByPair(s, q);
+            }
+        });
+        long expected = timer.checksum();
+        long batchNs = timer.best(new BenchmarkTimer.Work() {
+            @Override
+            public long run() {
+                return batched(batch, q);
+            }
+        });
+        assertEquals(expected, timer.checksum());
+        System.out.println(String.format("%s: pair by pair=%.2fns batch=%.2fns (%d)", name,
+                (double) pairNs / N / QUERIES, (double) batchNs / N / QUERIES, expected));
+    }
+    // Sum of the indices crossed by each query, weighted by the query, so both have to find
+    // the same ones in the same order to agree
+    private static long pairByPair(float[] s, float[] q) {
+        long sum = 0;
+        for (int j = 0; j < QUERIES; j++) {
+            int found = 0;
+            for (int i = 0; i < N; i++) {
+                if (Predicates.segmentsIntersect(q[4 * j], q[4 * j + 1], q[4 * j + 2],
+                        q[4 * j + 3], s[4 * i], s[4 * i + 1], s[4 * i + 2], s[4 * i + 3])) {
+                    sum += (long) (j + 1) * (++found) * i;
+                }
+            }
+        }
+        return sum;
+    }
+    private static long batched(SegmentBatch batch, float[] q) {
+        long sum = 0;
+        for (int j = 0; j < QUERIES; j++) {
+            int n = batch.crossing(q[4 * j], q[4 * j + 1], q[4 * j + 2], q[4 * j + 3]);
+            for (int k = 0; k < n; k++) sum += (long) (j + 1) * (k + 1) * batch.hit(k);
+        }
+        return sum;
+    }
+}